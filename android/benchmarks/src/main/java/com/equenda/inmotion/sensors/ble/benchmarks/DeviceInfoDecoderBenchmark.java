@@ -0,0 +1,47 @@
+package com.equenda.inmotion.sensors.ble.benchmarks;
+
+import com.equenda.inmotion.sensors.ble.peripherals.BLEConstants;
+import com.equenda.inmotion.sensors.ble.peripherals.DeviceInfoDecoder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the device information decoder.
+ *
+ * @author Jason Waring
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeviceInfoDecoderBenchmark {
+
+    private HashMap<String, Object> deviceInfo;
+
+    @Setup
+    public void setup() {
+        deviceInfo = new HashMap<String, Object>();
+    }
+
+    @Benchmark
+    public Object decodeSystemId() {
+        DeviceInfoDecoder.decode(BLEConstants.HANDLE_DEV_INFO_SYSTEM_ID, Payloads.SYSTEM_ID, deviceInfo);
+        return deviceInfo;
+    }
+
+    @Benchmark
+    public Object decodeFirmwareRev() {
+        DeviceInfoDecoder.decode(BLEConstants.HANDLE_DEV_INFO_FIRMWARE_REV, Payloads.FIRMWARE_REV, deviceInfo);
+        return deviceInfo;
+    }
+
+    @Benchmark
+    public Object decodeManufacturerName() {
+        DeviceInfoDecoder.decode(BLEConstants.HANDLE_DEV_INFO_MANUFACTURER_NAME, Payloads.MANUFACTURER_NAME, deviceInfo);
+        return deviceInfo;
+    }
+}
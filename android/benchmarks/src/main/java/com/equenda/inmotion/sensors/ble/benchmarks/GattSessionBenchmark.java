@@ -0,0 +1,205 @@
+package com.equenda.inmotion.sensors.ble.benchmarks;
+
+import com.equenda.inmotion.sensors.ble.peripherals.BLEServiceListener;
+import com.equenda.inmotion.sensors.ble.peripherals.FakeGattTransport;
+import com.equenda.inmotion.sensors.ble.peripherals.GattSession;
+import com.equenda.inmotion.sensors.ble.peripherals.multispread.MultispreadConstants;
+import com.equenda.inmotion.sensors.ble.peripherals.multispread.MultispreadProfile;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks a notification through the whole session: index lookup, profile decode and
+ * publication to the listener, driven by the in-memory fake transport.
+ * <p>
+ * The session decodes on its worker, so notifications are raised in batches from a task on the
+ * worker, where they are decoded inline. {@link #handOverSpeed()} raises them from the benchmark
+ * thread instead, to include the hand-over to the worker, as the Android stack does.
+ * <p>
+ * Before measuring, the setup checks that {@link #FRAMES} rounds of speed, door and load cell
+ * notifications publish exactly {@link #FRAMES} "sensors" events under the default "all" policy.
+ *
+ * @author Jason Waring
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GattSessionBenchmark {
+
+    private static final UUID SPEED_UUID = UUID.fromString(MultispreadConstants.SPEED_CHAR_UUID);
+    private static final UUID DOOR_OPENING_UUID = UUID.fromString(MultispreadConstants.DOOR_OPENING_CHAR_UUID);
+    private static final UUID LOAD_CELL_UUID = UUID.fromString(MultispreadConstants.LOAD_CELL_CHAR_UUID);
+
+    private static final int BATCH = 100;
+    private static final int FRAMES = 30;
+
+    private ScheduledExecutorService timer;
+    private FakeGattTransport transport;
+    private GattSession session;
+    private byte[] loadCells;
+    private Blackhole blackhole;
+    private Runnable speedBatch;
+    private Runnable frameBatch;
+    private Runnable noop;
+    private int sensorEvents;
+
+    @Setup
+    public void setup(Blackhole bh) throws InterruptedException {
+        blackhole = bh;
+        loadCells = Payloads.multiLoadCells(4);
+
+        timer = Executors.newSingleThreadScheduledExecutor();
+        transport = new FakeGattTransport();
+        transport.setLatency(0, 0);
+        transport.addCharacteristic(MultispreadConstants.SPEED_CHAR_UUID, Payloads.SPEED)
+                 .addCharacteristic(MultispreadConstants.DOOR_OPENING_CHAR_UUID, Payloads.DOOR_OPENING)
+                 .addCharacteristic(MultispreadConstants.LOAD_CELL_CHAR_UUID, loadCells);
+
+        final CountDownLatch discovered = new CountDownLatch(1);
+        session = new GattSession("00:00:00:00:00:01", transport, new MultispreadProfile(), timer);
+        session.setListener(new BLEServiceListener() {
+            @Override
+            public void onConnecting() {
+            }
+
+            @Override
+            public void onConnected() {
+            }
+
+            @Override
+            public void onDisconnected() {
+            }
+
+            @Override
+            public void onServicesDiscovered() {
+                discovered.countDown();
+            }
+
+            @Override
+            public void onData(String dataType, HashMap<String, Object> data) {
+                if (MultispreadConstants.SENSORS_TAG.equals(dataType)) {
+                    sensorEvents++;
+                }
+                blackhole.consume(data);
+            }
+
+            @Override
+            public void onLinkChanged(int mtu, int connectionPriority) {
+            }
+
+            @Override
+            public void onReconnecting(int attempt) {
+            }
+
+            @Override
+            public void onReconnected(long reconnectMs, int attempts) {
+            }
+        });
+
+        session.connect();
+        discovered.await();
+        session.setCharacteristicNotification(MultispreadConstants.HANDLE_SPEED, true);
+        session.setCharacteristicNotification(MultispreadConstants.HANDLE_DOOR_OPENING, true);
+        session.setCharacteristicNotification(MultispreadConstants.HANDLE_LOAD_CELL, true);
+
+        // Let the descriptor writes drain through the radio thread.
+        Thread.sleep(100);
+
+        speedBatch = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < BATCH; i++) {
+                    transport.notifyNow(SPEED_UUID, Payloads.SPEED);
+                }
+            }
+        };
+        frameBatch = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < BATCH; i++) {
+                    transport.notifyNow(SPEED_UUID, Payloads.SPEED);
+                    transport.notifyNow(DOOR_OPENING_UUID, Payloads.DOOR_OPENING);
+                    transport.notifyNow(LOAD_CELL_UUID, loadCells);
+                }
+            }
+        };
+        noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        checkFrameEvents();
+    }
+
+    /**
+     * Each round of speed, door and load cell notifications must publish one snapshot, not one
+     * event per notification.
+     */
+    private void checkFrameEvents() throws InterruptedException {
+        Future<Integer> published = timer.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int before = sensorEvents;
+                for (int i = 0; i < FRAMES; i++) {
+                    transport.notifyNow(SPEED_UUID, Payloads.SPEED);
+                    transport.notifyNow(DOOR_OPENING_UUID, Payloads.DOOR_OPENING);
+                    transport.notifyNow(LOAD_CELL_UUID, loadCells);
+                }
+                return sensorEvents - before;
+            }
+        });
+
+        int events;
+        try {
+            events = published.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Frame check failed", e.getCause());
+        }
+        if (events != FRAMES) {
+            throw new IllegalStateException(3 * FRAMES + " notifications gave " + events
+                    + " sensors events, expected " + FRAMES);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.close();
+        transport.shutdown();
+        timer.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void notifySpeed() throws InterruptedException, ExecutionException {
+        timer.submit(speedBatch).get();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void notifyFrame() throws InterruptedException, ExecutionException {
+        timer.submit(frameBatch).get();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void handOverSpeed() throws InterruptedException, ExecutionException {
+        for (int i = 0; i < BATCH; i++) {
+            transport.notifyNow(SPEED_UUID, Payloads.SPEED);
+        }
+        timer.submit(noop).get();
+    }
+}
@@ -0,0 +1,48 @@
+package com.equenda.inmotion.sensors.ble.benchmarks;
+
+import com.equenda.inmotion.sensors.ble.peripherals.heartrate.HeartRateDecoder;
+import com.equenda.inmotion.sensors.ble.peripherals.heartrate.HeartRateMeasurement;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the heart rate decoders.
+ *
+ * @author Jason Waring
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeartRateDecoderBenchmark {
+
+    private final HeartRateMeasurement measurement = new HeartRateMeasurement();
+    private long now = 1000000L;
+
+    @Benchmark
+    public int decodeHeartRateUInt8() {
+        return HeartRateDecoder.decodeHeartRate(Payloads.HEART_RATE_UINT8);
+    }
+
+    @Benchmark
+    public int decodeHeartRateUInt16() {
+        return HeartRateDecoder.decodeHeartRate(Payloads.HEART_RATE_UINT16);
+    }
+
+    // A full measurement, with contact, energy expended and 4 RR intervals, timed as arriving
+    // once a second.
+    @Benchmark
+    public long decodeMeasurementWithRr() {
+        now += 1000;
+        measurement.decode(Payloads.HEART_RATE_RR, now);
+        return measurement.getBeatTime(measurement.getRrCount() - 1);
+    }
+
+    @Benchmark
+    public String decodeSensorLocation() {
+        return HeartRateDecoder.decodeSensorLocation(Payloads.BODY_SENSOR_LOCATION);
+    }
+}
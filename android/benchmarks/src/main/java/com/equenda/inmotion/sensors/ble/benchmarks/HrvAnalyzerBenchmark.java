@@ -0,0 +1,52 @@
+package com.equenda.inmotion.sensors.ble.benchmarks;
+
+import com.equenda.inmotion.sensors.ble.peripherals.heartrate.HrvAnalyzer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the sliding window heart rate variability, whose cost per beat should not depend
+ * on the window length.
+ *
+ * @author Jason Waring
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HrvAnalyzerBenchmark {
+
+    @Param({"30", "300", "3000"})
+    public int window;
+
+    private HrvAnalyzer analyzer;
+    private int beat;
+
+    @Setup
+    public void setup() {
+        analyzer = new HrvAnalyzer(window);
+        for (int i = 0; i < window; i++) {
+            analyzer.add(rr(i));
+        }
+    }
+
+    // A full window, so every beat also evicts one.
+    @Benchmark
+    public boolean addBeat() {
+        return analyzer.add(rr(beat++));
+    }
+
+    @Benchmark
+    public double addBeatAndRead() {
+        analyzer.add(rr(beat++));
+        return analyzer.getRmssd() + analyzer.getSdnn() + analyzer.getPnn50();
+    }
+
+    // About 75 bpm, with some beat to beat variation.
+    private static int rr(int i) {
+        return 800 + ((i * 37) % 120) - 60;
+    }
+}
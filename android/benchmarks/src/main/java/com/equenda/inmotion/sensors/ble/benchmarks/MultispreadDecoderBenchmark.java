@@ -0,0 +1,111 @@
+package com.equenda.inmotion.sensors.ble.benchmarks;
+
+import com.equenda.inmotion.sensors.ble.peripherals.multispread.LoadCellCalibration;
+import com.equenda.inmotion.sensors.ble.peripherals.multispread.MultispreadFrame;
+import com.equenda.inmotion.sensors.ble.peripherals.multispread.MultispreadResponseDecoder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the Multispread sensor and command response decoders.
+ *
+ * @author Jason Waring
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MultispreadDecoderBenchmark {
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int ports;
+
+    private MultispreadFrame frame;
+    private byte[] loadCells;
+    private int[] packedCells;
+    private LoadCellCalibration calibration;
+
+    @Setup
+    public void setup() {
+        frame = new MultispreadFrame();
+        loadCells = Payloads.multiLoadCells(ports);
+        packedCells = Payloads.packedCells(ports);
+
+        frame.decodeSpeed(Payloads.SPEED);
+        frame.decodeDoorOpening(Payloads.DOOR_OPENING);
+        frame.decodeLoadCells(loadCells);
+
+        // Calibrate every port, with gains that are not powers of two.
+        calibration = LoadCellCalibration.NONE.withTare(250);
+        for (int port = 0; port < ports; port++) {
+            calibration = calibration.withPort(port, 1000 + port, 0.0125 * (port + 1), true);
+        }
+    }
+
+    @Benchmark
+    public int decodeMultiLoadCells() {
+        frame.decodeLoadCells(loadCells);
+        return frame.getLoadTotal();
+    }
+
+    @Benchmark
+    public int decodeCalibratedLoadCells() {
+        frame.decodeLoadCells(loadCells, calibration);
+        return frame.getLoadTotal();
+    }
+
+    @Benchmark
+    public void unpack3ByteInt(Blackhole bh) {
+        for (int packed : packedCells) {
+            bh.consume(MultispreadFrame.unpack3ByteInt(packed));
+        }
+    }
+
+    @Benchmark
+    public int decodeLoadCellTotal() {
+        frame.decodeLoadCells(Payloads.LOAD_CELL_TOTAL);
+        return frame.getLoadTotal();
+    }
+
+    @Benchmark
+    public int decodeSpeed() {
+        frame.decodeSpeed(Payloads.SPEED);
+        return frame.getBeltSpeed();
+    }
+
+    @Benchmark
+    public int decodeDoorOpening() {
+        frame.decodeDoorOpening(Payloads.DOOR_OPENING);
+        return frame.getDoorOpening();
+    }
+
+    // The cost paid at the edge, when a frame is published.
+    @Benchmark
+    public Object frameToMap() {
+        return frame.toMap();
+    }
+
+    @Benchmark
+    public Object decodeCalibrationResponse() {
+        return MultispreadResponseDecoder.decode(Payloads.RESPONSE_CALIBRATION);
+    }
+
+    @Benchmark
+    public Object decodeDriveWheelResponse() {
+        return MultispreadResponseDecoder.decode(Payloads.RESPONSE_DRIVE_WHEEL);
+    }
+
+    @Benchmark
+    public Object decodeDoorDiagnosticsResponse() {
+        return MultispreadResponseDecoder.decode(Payloads.RESPONSE_DOOR_DIAGNOSTICS);
+    }
+
+    @Benchmark
+    public Object decodeDriveWheelDiagnosticsResponse() {
+        return MultispreadResponseDecoder.decode(Payloads.RESPONSE_DRIVE_WHEEL_DIAGNOSTICS);
+    }
+}
@@ -0,0 +1,83 @@
+package com.equenda.inmotion.sensors.ble.benchmarks;
+
+/**
+ * Characteristic payloads, as captured from a Multispread controller and heart rate straps.
+ *
+ * @author Jason Waring
+ */
+final class Payloads {
+
+    // Spinner 742 rpm, belt 118 rpm.
+    static final byte[] SPEED = {0x02, (byte) 0xE6, 0x00, 0x76};
+
+    // Spinner only, from older firmware.
+    static final byte[] SPEED_SPINNER_ONLY = {0x02, (byte) 0xE6};
+
+    // Door 35.2%.
+    static final byte[] DOOR_OPENING = {0x01, 0x60};
+
+    // Single load cell total, from older firmware.
+    static final byte[] LOAD_CELL_TOTAL = {0x00, 0x01, (byte) 0x86, (byte) 0xA0};
+
+    static final byte[] RESPONSE_CALIBRATION = {0x01, 0x01};
+    static final byte[] RESPONSE_DRIVE_WHEEL = {0x02, 0x03};
+    static final byte[] RESPONSE_DOOR_DIAGNOSTICS = {0x03, 0x01, (byte) 0xF4, 0x00, 0x00, 0x00, 0x29};
+    static final byte[] RESPONSE_DRIVE_WHEEL_DIAGNOSTICS = {0x04, 0x2F, 0x08, 0x00, 0x00, 0x00, 0x22};
+
+    // Heart rate measurements: 8-bit 72 bpm, and 16-bit 181 bpm.
+    static final byte[] HEART_RATE_UINT8 = {0x00, 0x48};
+    static final byte[] HEART_RATE_UINT16 = {0x01, (byte) 0xB5, 0x00};
+    // Flags: contact supported and detected, energy expended, RR intervals. 4 beats of 250/1024 s.
+    static final byte[] HEART_RATE_RR = {0x1E, 0x48, 0x10, 0x00,
+                                         (byte) 0xFA, 0x00, (byte) 0xFA, 0x00, (byte) 0xFA, 0x00, (byte) 0xFA, 0x00};
+    static final byte[] BODY_SENSOR_LOCATION = {0x01};
+
+    static final byte[] SYSTEM_ID = {(byte) 0xB0, (byte) 0xB4, 0x48, 0x00, 0x00, (byte) 0xC8, 0x4C, 0x7A};
+    static final byte[] FIRMWARE_REV = "1.4.12 (Mar 14 2016)".getBytes();
+    static final byte[] MANUFACTURER_NAME = "Equenda Software".getBytes();
+
+    // Load cell readings, in kg x 10, with the odd unfitted cell (-0).
+    private static final int[] CELLS = {
+        12034, 11987, -15, 0x00800000, 12210, 11876, 402, 398,
+        12001, 0x00800000, 11999, 12345, -2, 7, 11900, 12102
+    };
+
+    private Payloads() {
+    }
+
+    /**
+     * Build a multi load cell packet: a count, then a port byte and a 3 byte big-endian value
+     * per cell.
+     *
+     * @param ports The number of ports, between 1 and 16.
+     * @return The packet.
+     */
+    static byte[] multiLoadCells(int ports) {
+        byte[] data = new byte[1 + (ports << 2)];
+        data[0] = (byte) ports;
+
+        for (int i = 0; i < ports; ++i) {
+            int index = (i << 2) + 1;
+            int value = CELLS[i];
+            data[index] = (byte) i;
+            data[index + 1] = (byte) (value >> 16);
+            data[index + 2] = (byte) (value >> 8);
+            data[index + 3] = (byte) value;
+        }
+
+        return data;
+    }
+
+    /**
+     * @param ports The number of ports.
+     * @return The packed port and 3 byte values, as read from a multi load cell packet.
+     */
+    static int[] packedCells(int ports) {
+        int[] packed = new int[ports];
+        for (int i = 0; i < ports; ++i) {
+            packed[i] = (i << 24) | (CELLS[i] & 0x00FFFFFF);
+        }
+
+        return packed;
+    }
+}
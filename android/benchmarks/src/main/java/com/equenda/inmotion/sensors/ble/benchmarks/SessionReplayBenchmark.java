@@ -0,0 +1,82 @@
+package com.equenda.inmotion.sensors.ble.benchmarks;
+
+import com.equenda.inmotion.sensors.ble.API;
+import com.equenda.inmotion.sensors.ble.SessionReplay;
+import com.equenda.inmotion.sensors.ble.peripherals.BLEProfileBase;
+import com.equenda.inmotion.sensors.ble.peripherals.BlackBoxRecorder;
+import com.equenda.inmotion.sensors.ble.peripherals.CharacteristicIndex;
+import com.equenda.inmotion.sensors.ble.peripherals.GattTransport;
+import com.equenda.inmotion.sensors.ble.peripherals.multispread.MultispreadConstants;
+import com.equenda.inmotion.sensors.ble.peripherals.multispread.MultispreadProfile;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the replay of a recorded capture at maximum speed, through the sessions, profiles
+ * and decoders and on to the API. The capture is a full black box of spreader frames.
+ *
+ * @author Jason Waring
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionReplayBenchmark {
+
+    private static final long ADDRESS = BlackBoxRecorder.addressToLong("00:00:00:00:00:01");
+
+    private File capture;
+    private SessionReplay replay;
+
+    @Setup
+    public void setup(final Blackhole bh) throws IOException {
+        capture = File.createTempFile("capture", ".bin");
+        capture.deleteOnExit();
+
+        byte[] loadCells = Payloads.multiLoadCells(4);
+        BlackBoxRecorder recorder = BlackBoxRecorder.open(capture, BlackBoxRecorder.DEFAULT_CAPACITY);
+        recorder.append(BlackBoxRecorder.TYPE_CONNECTION, ADDRESS, CharacteristicIndex.NO_HANDLE,
+                        GattTransport.STATUS_SUCCESS, new byte[] {BlackBoxRecorder.CONNECTED});
+        for (int i = 0; i < 10000; i++) {
+            recorder.append(BlackBoxRecorder.TYPE_NOTIFY, ADDRESS, MultispreadConstants.HANDLE_SPEED,
+                            GattTransport.STATUS_SUCCESS, Payloads.SPEED);
+            recorder.append(BlackBoxRecorder.TYPE_NOTIFY, ADDRESS, MultispreadConstants.HANDLE_DOOR_OPENING,
+                            GattTransport.STATUS_SUCCESS, Payloads.DOOR_OPENING);
+            recorder.append(BlackBoxRecorder.TYPE_NOTIFY, ADDRESS, MultispreadConstants.HANDLE_LOAD_CELL,
+                            GattTransport.STATUS_SUCCESS, loadCells);
+        }
+        recorder.close();
+
+        API api = new API(new API.EventSink() {
+            @Override
+            public void fireEvent(String eventName, HashMap<String, Object> props) {
+                bh.consume(props);
+            }
+        });
+
+        replay = new SessionReplay(api, "Multispread", "spreader", new SessionReplay.ProfileFactory() {
+            @Override
+            public BLEProfileBase createProfile(String address) {
+                return new MultispreadProfile();
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        replay.close();
+        capture.delete();
+    }
+
+    @Benchmark
+    public long replayCapture() throws IOException {
+        return replay.replay(capture);
+    }
+}
@@ -1,22 +1,30 @@
 package com.equenda.inmotion.sensors.ble;
 
-import android.bluetooth.BluetoothDevice;
-import org.appcelerator.kroll.KrollModule;
-
 import java.util.Date;
 import java.util.HashMap;
 
 /**
  * The event API used to communicate over Kroll to the Titanium app through the event protocol.
+ * <p>
+ * Events are handed to an {@link EventSink}, which the module implements with
+ * {@code KrollModule.fireEvent}. The API itself has no Android or Kroll dependencies, so a
+ * replay can drive it on a plain JVM with a sink of its own.
  *
  * @author Jason Waring
  */
 public class API {
 
-    private KrollModule module;
+    /**
+     * Receives the events of the API.
+     */
+    public interface EventSink {
+        void fireEvent(String eventName, HashMap<String, Object> props);
+    }
+
+    private EventSink sink;
 
-    public API(KrollModule module) {
-        this.module = module;
+    public API(EventSink sink) {
+        this.sink = sink;
     }
 
     public void sendStartDiscovery() {
@@ -38,6 +46,13 @@ public class API {
         fireEvent("bluetooth-le:scanning", props);
     }
 
+    public void sendDiscoveryFailed(int errorCode) {
+        HashMap<String, Object> props = new HashMap<String, Object>();
+        props.put("action", "discovery-failed");
+        props.put("errorCode", errorCode);
+        fireEvent("bluetooth-le:scanning", props);
+    }
+
     public void sendStopDiscovery() {
         HashMap<String, Object> props = new HashMap<String, Object>();
         props.put("action", "discovery-stopped");
@@ -54,6 +69,42 @@ public class API {
         fireEvent("bluetooth-le:connection", data);
     }
 
+    /**
+     * Send the negotiated link parameters of a device, as a connection event.
+     */
+    public void sendLinkStatus(String address, int mtu, int connectionPriority) {
+
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        data.put("timestamp", new Date().getTime());
+        data.put("address", address);
+        data.put("status", "link-changed");
+        data.put("mtu", mtu);
+        data.put("connectionPriority", connectionPriority);
+
+        fireEvent("bluetooth-le:connection", data);
+    }
+
+    /**
+     * Send the progress of a native reconnection of a device, as a connection event.
+     *
+     * @param status      "reconnecting" or "reconnected".
+     * @param attempts    The attempt number, or the attempts it took.
+     * @param reconnectMs The time taken to reconnect, in milliseconds, or -1 while reconnecting.
+     */
+    public void sendReconnectStatus(String address, String status, int attempts, long reconnectMs) {
+
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        data.put("timestamp", new Date().getTime());
+        data.put("address", address);
+        data.put("status", status);
+        data.put("attempts", attempts);
+        if (reconnectMs >= 0) {
+            data.put("reconnectTime", reconnectMs);
+        }
+
+        fireEvent("bluetooth-le:connection", data);
+    }
+
     public void sendStatus(String status, String label) {
 
         HashMap<String, Object> data = new HashMap<String, Object>();
@@ -87,10 +138,40 @@ public class API {
         fireEvent("bluetooth-le:data", data);
     }
 
+    /**
+     * Send a batch of samples from one device as columns: a timestamp per sample, and for each
+     * value key an array with one entry per sample.
+     */
+    public void sendDataBatch(String name, String serviceType, String dataType, String address,
+                              long[] timestamps, HashMap<String, Object> columns) {
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        data.put("name", name);
+        data.put("address", address);
+        data.put("service", serviceType);
+        data.put("type", dataType);
+        data.put("count", timestamps.length);
+        data.put("timestamps", timestamps);
+        data.put("values", columns);
+
+        fireEvent("bluetooth-le:data-batch", data);
+    }
+
+    /**
+     * Send a snapshot of the session metrics of a device.
+     */
+    public void sendStats(String address, HashMap<String, Object> stats) {
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        data.put("timestamp", new Date().getTime());
+        data.put("address", address);
+        data.put("stats", stats);
+
+        fireEvent("bluetooth-le:stats", data);
+    }
+
     private void fireEvent(String eventName, HashMap<String, Object> props) {
         HashMap<String, Object> dataProps = new HashMap<String, Object>();
         dataProps.put("data", props);
 
-        module.fireEvent(eventName, dataProps);
+        sink.fireEvent(eventName, dataProps);
     }
 }
@@ -18,4 +18,10 @@ public interface BLECallback {
     void onDeviceInfo(BLEPeripheral peripheral, HashMap<String, Object> deviceInfo);
 
     void onData(BLEPeripheral peripheral, String name, String dataType, HashMap<String, Object> data);
+
+    void onLinkChanged(BLEPeripheral peripheral, int mtu, int connectionPriority);
+
+    void onReconnecting(BLEPeripheral peripheral, int attempt);
+
+    void onReconnected(BLEPeripheral peripheral, long reconnectMs, int attempts);
 }
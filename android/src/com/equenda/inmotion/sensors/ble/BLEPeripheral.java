@@ -1,7 +1,10 @@
 package com.equenda.inmotion.sensors.ble;
 
 import android.bluetooth.BluetoothDevice;
+import com.equenda.inmotion.sensors.ble.peripherals.BlackBoxRecorder;
+import com.equenda.inmotion.sensors.ble.peripherals.SampleHistory;
 
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -19,6 +22,31 @@ public interface BLEPeripheral {
 
     boolean isConnected();
 
+    void setBroadcastMode(boolean enabled);
+
+    /**
+     * @param recorder The recorder for the raw events of the device, or null for none.
+     */
+    void setRecorder(BlackBoxRecorder recorder);
+
+    /**
+     * Set the link parameters to negotiate after connection.
+     *
+     * @param mtu                The ATT MTU to request.
+     * @param connectionPriority The connection priority to request.
+     */
+    void setLinkParameters(int mtu, int connectionPriority);
+
+    /**
+     * Set how the device is reconnected when its link is lost.
+     *
+     * @param enabled     True to reconnect, rather than disconnect.
+     * @param maxAttempts The attempts before giving up, or 0 for no limit.
+     * @param baseDelayMs The delay before the first attempt, in milliseconds.
+     * @param maxDelayMs  The longest delay between attempts, in milliseconds.
+     */
+    void setReconnectPolicy(boolean enabled, int maxAttempts, long baseDelayMs, long maxDelayMs);
+
     void connect(BLECallback callback);
 
     void disconnect();
@@ -26,4 +54,16 @@ public interface BLEPeripheral {
     void update(Map values);
 
     void requestDeviceInfo();
+
+    /**
+     * @return The recent samples of the connected device, or null if it is not connected.
+     */
+    SampleHistory getHistory();
+
+    /**
+     * @param periodic True for the periodic stats report, which measures notification rates over
+     *                 a window of its own.
+     * @return A snapshot of the session metrics of the device, or null if it is not connected.
+     */
+    HashMap<String, Object> getStats(boolean periodic);
 }
@@ -2,12 +2,14 @@ package com.equenda.inmotion.sensors.ble;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
 import android.os.ParcelUuid;
 import com.equenda.inmotion.sensors.ble.peripherals.heartrate.HeartRateConstants;
 import com.equenda.inmotion.sensors.ble.peripherals.heartrate.HeartRatePeripheral;
 import com.equenda.inmotion.sensors.ble.peripherals.multispread.MultispreadConstants;
 import com.equenda.inmotion.sensors.ble.peripherals.multispread.MultispreadPeripheral;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -68,6 +70,26 @@ public class BLEPeripheralFactory {
         return null;
     }
 
+    /**
+     * Build the scan filters that match the peripherals {@link #inferType(String, List)} knows
+     * about, by service UUID or name, so that the controller can drop everything else.
+     *
+     * @return The filters, any of which may match.
+     */
+    public static final List<ScanFilter> buildScanFilters() {
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+
+        for (String uuid : new String[]{HeartRateConstants.SERVICE_UUID, MultispreadConstants.SERVICE_UUID, TASKIT_SERIAL_SERVICE_UUID}) {
+            filters.add(new ScanFilter.Builder().setServiceUuid(ParcelUuid.fromString(uuid)).build());
+        }
+
+        for (String name : new String[]{SENSORTAG_NAME, SENSORTAG_ALT_NAME}) {
+            filters.add(new ScanFilter.Builder().setDeviceName(name).build());
+        }
+
+        return filters;
+    }
+
     // Infer the supported BLE device. Returns a name or null.
     private static String inferType(String deviceName, List<ParcelUuid> services) {
 
@@ -3,9 +3,18 @@
  */
 package com.equenda.inmotion.sensors.ble;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
@@ -13,11 +22,19 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.ParcelUuid;
+import com.equenda.inmotion.sensors.ble.peripherals.BlackBoxRecorder;
+import com.equenda.inmotion.sensors.ble.peripherals.GattTransport;
+import com.equenda.inmotion.sensors.ble.peripherals.ReconnectSupervisor;
+import com.equenda.inmotion.sensors.ble.peripherals.SampleHistory;
+import com.equenda.inmotion.sensors.ble.peripherals.SampleRing;
 import org.appcelerator.kroll.KrollModule;
 import org.appcelerator.kroll.annotations.Kroll;
 
@@ -33,14 +50,53 @@ public class BtBleSensorsModule extends KrollModule {
 
     private final static int REQUEST_DISABLE_BT = 0;
     private final static int REQUEST_ENABLE_BT = 1;
-
-    private API api = new API(this);
+    private final static String BLACK_BOX_FILE = "bt-ble-blackbox.bin";
+
+    @Kroll.constant
+    public static final int SCAN_MODE_LOW_POWER = ScanSettings.SCAN_MODE_LOW_POWER;
+    @Kroll.constant
+    public static final int SCAN_MODE_BALANCED = ScanSettings.SCAN_MODE_BALANCED;
+    @Kroll.constant
+    public static final int SCAN_MODE_LOW_LATENCY = ScanSettings.SCAN_MODE_LOW_LATENCY;
+    @Kroll.constant
+    public static final int MATCH_MODE_AGGRESSIVE = ScanSettings.MATCH_MODE_AGGRESSIVE;
+    @Kroll.constant
+    public static final int MATCH_MODE_STICKY = ScanSettings.MATCH_MODE_STICKY;
+    @Kroll.constant
+    public static final int CONNECTION_PRIORITY_BALANCED = GattTransport.CONNECTION_PRIORITY_BALANCED;
+    @Kroll.constant
+    public static final int CONNECTION_PRIORITY_HIGH = GattTransport.CONNECTION_PRIORITY_HIGH;
+    @Kroll.constant
+    public static final int CONNECTION_PRIORITY_LOW_POWER = GattTransport.CONNECTION_PRIORITY_LOW_POWER;
+
+    private API api = new API(new API.EventSink() {
+        @Override
+        public void fireEvent(String eventName, HashMap<String, Object> props) {
+            BtBleSensorsModule.this.fireEvent(eventName, props);
+        }
+    });
     private BluetoothManager btManager;
     private BluetoothAdapter btAdapter;
     private String status;
+    private boolean broadcastMode = false;
+    private int linkMtu = GattTransport.DEFAULT_MTU;
+    private int linkPriority = GattTransport.CONNECTION_PRIORITY_BALANCED;
+    private boolean reconnectEnabled = false;
+    private int reconnectAttempts = ReconnectSupervisor.UNLIMITED_ATTEMPTS;
+    private long reconnectBaseDelayMs = ReconnectSupervisor.DEFAULT_BASE_DELAY_MS;
+    private long reconnectMaxDelayMs = ReconnectSupervisor.DEFAULT_MAX_DELAY_MS;
+    private volatile DataBatcher batcher;
+    private ScheduledExecutorService batchTimer;
+    private BlackBoxRecorder blackBox;
+    private ScheduledExecutorService statsTimer;
+    private ScheduledFuture<?> statsTask;
     private BluetoothLeScanner bluetoothLeScanner;
-    private Map<String, BLEPeripheral> discovered = new HashMap<String, BLEPeripheral>();
-    private Map<String, BLEPeripheral> active = new HashMap<String, BLEPeripheral>();
+    private final ScanTracker scanTracker = new ScanTracker();
+    private int scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+    private long scanReportDelayMs = 0;
+    private int scanMatchMode = ScanSettings.MATCH_MODE_AGGRESSIVE;
+    private boolean scanFiltered = true;
+    private Map<String, BLEPeripheral> active = new ConcurrentHashMap<String, BLEPeripheral>();
 
     public BtBleSensorsModule() {
         super();
@@ -68,6 +124,9 @@ public class BtBleSensorsModule extends KrollModule {
     public void onDestroy(Activity activity) {
         Log.i(TAG, "onDestroy");
         this.cancelDiscovery();
+        this.setBatching(0, 0);
+        this.setBlackBox(false, null);
+        this.setStatsInterval(0);
         this.disable();
         this.btAdapter = null;
         this.btManager = null;
@@ -111,7 +170,7 @@ public class BtBleSensorsModule extends KrollModule {
     public boolean isConnected(String address) {
         if (isEnabled()) {
             if (active.containsKey(address)) {
-                BLEPeripheral peripheral = discovered.get(address);
+                BLEPeripheral peripheral = active.get(address);
                 return peripheral.isConnected();
             }
         }
@@ -126,22 +185,20 @@ public class BtBleSensorsModule extends KrollModule {
             // If the peripheral is not active, then we need to create it.
             if (!active.containsKey(address)) {
 
-                // First check whether a hint was provided. If not, then try to use the previously
-                // discovered peripheral.
-                String type = typeHint; // typeHint can be null.
-                if (type == null) {
-                    if (!discovered.containsKey(address)) {
+                // Reuse the peripheral found by discovery, unless a different type was hinted.
+                BLEPeripheral peripheral = scanTracker.getPeripheral(address);
+                if (peripheral == null || (typeHint != null && !typeHint.equals(peripheral.getType()))) {
+                    if (typeHint == null) {
                         Log.e(TAG, "Device not previous discovered and no type hint was provided");
                         return;
                     }
-                    type = discovered.get(address).getType();
-                }
 
-                // Given the type, we can create the peripheral directly from the address and type.
-                BLEPeripheral peripheral = BLEPeripheralFactory.createPeripheral(getActivity(), type, btAdapter.getRemoteDevice(address));
-                if (peripheral == null) {
-                    Log.e(TAG, String.format("Failed to find a peripheral for address %s and type %s", address, type));
-                    return;
+                    // Given the type, we can create the peripheral directly from the address and type.
+                    peripheral = BLEPeripheralFactory.createPeripheral(getActivity(), typeHint, btAdapter.getRemoteDevice(address));
+                    if (peripheral == null) {
+                        Log.e(TAG, String.format("Failed to find a peripheral for address %s and type %s", address, typeHint));
+                        return;
+                    }
                 }
 
                 active.put(address, peripheral);
@@ -149,6 +206,10 @@ public class BtBleSensorsModule extends KrollModule {
 
             BLEPeripheral peripheral = active.get(address);
             if (!peripheral.isConnected()) {
+                peripheral.setBroadcastMode(broadcastMode);
+                peripheral.setRecorder(blackBox);
+                peripheral.setLinkParameters(linkMtu, linkPriority);
+                peripheral.setReconnectPolicy(reconnectEnabled, reconnectAttempts, reconnectBaseDelayMs, reconnectMaxDelayMs);
                 peripheral.connect(leDataCallback);
             }
         }
@@ -158,16 +219,146 @@ public class BtBleSensorsModule extends KrollModule {
     public void disconnect(String address) {
         if (isEnabled()) {
             if (active.containsKey(address)) {
-                BLEPeripheral peripheral = active.get(address);
-                if (peripheral.isConnected()) {
-                    peripheral.disconnect();
-                }
+                // A peripheral that is reconnecting is not connected, but is stopped all the same.
+                active.get(address).disconnect();
 
                 // Device removed from active list, in disconnect callback.
             }
         }
     }
 
+    /**
+     * Deliver data from the GATT services over broadcast intents rather than directly. This is
+     * only for compatibility, and applies to subsequent connections.
+     */
+    @Kroll.method
+    public void setBroadcastMode(boolean enabled) {
+        broadcastMode = enabled;
+    }
+
+    /**
+     * Negotiate a larger ATT MTU and a connection priority after connecting, for subsequent
+     * connections. The negotiated values are reported as a "link-changed" connection event.
+     *
+     * @param mtu                The ATT MTU to request, up to 517, or 23 for the default.
+     * @param connectionPriority One of the CONNECTION_PRIORITY_ constants.
+     */
+    @Kroll.method
+    public void setLinkParameters(int mtu, int connectionPriority) {
+        linkMtu = mtu;
+        linkPriority = connectionPriority;
+    }
+
+    /**
+     * Reconnect natively when the link to a device is lost, for subsequent connections, rather
+     * than report it disconnected. Attempts back off exponentially, with jitter, from the base
+     * delay up to the maximum. The device is reported as "reconnecting" for each attempt, and as
+     * "reconnected" with the reconnectTime once its notifications are restored, or "disconnected"
+     * once the attempts run out.
+     *
+     * @param enabled     If true, reconnect.
+     * @param maxAttempts The attempts before giving up, or null or 0 for no limit.
+     * @param baseDelayMs The delay before the first attempt, in milliseconds, or null for 500.
+     * @param maxDelayMs  The longest delay between attempts, in milliseconds, or null for 30000.
+     */
+    @Kroll.method
+    public void setAutoReconnect(boolean enabled,
+                                 @Kroll.argument(optional=true) Integer maxAttempts,
+                                 @Kroll.argument(optional=true) Integer baseDelayMs,
+                                 @Kroll.argument(optional=true) Integer maxDelayMs) {
+        reconnectEnabled = enabled;
+        reconnectAttempts = (maxAttempts != null) ? maxAttempts : ReconnectSupervisor.UNLIMITED_ATTEMPTS;
+        reconnectBaseDelayMs = (baseDelayMs != null) ? baseDelayMs : ReconnectSupervisor.DEFAULT_BASE_DELAY_MS;
+        reconnectMaxDelayMs = (maxDelayMs != null) ? maxDelayMs : ReconnectSupervisor.DEFAULT_MAX_DELAY_MS;
+    }
+
+    /**
+     * Batch sensor data per device, and deliver it as columnar bluetooth-le:data-batch events
+     * rather than one bluetooth-le:data event per sample. A batch is sent when it holds
+     * maxSamples, or windowMs after its first sample. A zero window or count turns batching off.
+     */
+    @Kroll.method
+    public void setBatching(int windowMs, int maxSamples) {
+        DataBatcher previous = batcher;
+        batcher = null;
+        if (previous != null) {
+            previous.close();
+        }
+
+        if (windowMs > 0 && maxSamples > 0) {
+            if (batchTimer == null) {
+                batchTimer = Executors.newSingleThreadScheduledExecutor();
+            }
+            batcher = new DataBatcher(api, batchTimer, windowMs, maxSamples);
+
+        } else if (batchTimer != null) {
+            batchTimer.shutdown();
+            batchTimer = null;
+        }
+    }
+
+    /**
+     * Record every raw GATT event of every device to a fixed-size circular file, which survives
+     * the process. Reopening a log of the same capacity keeps its records.
+     *
+     * @param enabled  If true, record.
+     * @param capacity The size of the log in bytes, or null for the default of 1 MB.
+     */
+    @Kroll.method
+    public void setBlackBox(boolean enabled, @Kroll.argument(optional=true) Integer capacity) {
+        BlackBoxRecorder previous = blackBox;
+        blackBox = null;
+
+        if (enabled) {
+            try {
+                blackBox = BlackBoxRecorder.open(blackBoxFile(),
+                                                 (capacity != null) ? capacity : BlackBoxRecorder.DEFAULT_CAPACITY);
+            } catch (IOException ex) {
+                Log.e(TAG, "Unable to open the black box log", ex);
+            }
+        }
+
+        for (BLEPeripheral peripheral : active.values()) {
+            peripheral.setRecorder(blackBox);
+        }
+
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Read back the black box log, oldest first. This also reads the log of a previous run when
+     * recording is off.
+     *
+     * @return An array of records, each with type, time, nanos, address, handle, status and hex
+     * payload.
+     */
+    @Kroll.method
+    public Object[] readBlackBox() {
+        BlackBoxRecorder recorder = blackBox;
+        if (recorder != null) {
+            return recorder.read().toArray();
+        }
+
+        File file = blackBoxFile();
+        if (!file.exists() || file.length() <= BlackBoxRecorder.FILE_HEADER_SIZE) {
+            return new Object[0];
+        }
+
+        try {
+            recorder = BlackBoxRecorder.open(file, (int) (file.length() - BlackBoxRecorder.FILE_HEADER_SIZE));
+            try {
+                return recorder.read().toArray();
+            } finally {
+                recorder.close();
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "Unable to read the black box log", ex);
+            return new Object[0];
+        }
+    }
+
     @Kroll.method
     public boolean hasListener(String eventName) {
         return false;
@@ -197,12 +388,112 @@ public class BtBleSensorsModule extends KrollModule {
         }
     }
 
+    /**
+     * Set how often discovered devices are reported. The RSSI is smoothed with the given EWMA
+     * weight, and a device is reported on first sight, on a smoothed RSSI change of at least
+     * rssiThreshold dB, or every intervalMs while it is still advertising.
+     */
+    @Kroll.method
+    public void setScanReporting(double smoothing, int rssiThreshold, int intervalMs) {
+        scanTracker.configure(smoothing, rssiThreshold, intervalMs);
+    }
+
+    /**
+     * Set the scan settings for subsequent discovery. A report delay above zero has the
+     * controller batch results, which are delivered at most every reportDelayMs. It is ignored on
+     * controllers that cannot batch. When filtered, the controller drops advertisements from
+     * unsupported devices.
+     */
+    @Kroll.method
+    public void setScanSettings(int scanMode, int reportDelayMs, int matchMode, @Kroll.argument(optional=true) Boolean filtered) {
+        this.scanMode = scanMode;
+        this.scanReportDelayMs = Math.max(0, reportDelayMs);
+        this.scanMatchMode = matchMode;
+        this.scanFiltered = (filtered == null) || filtered;
+    }
+
+    /**
+     * Get the metrics of a connected device: notification counts and rates per characteristic,
+     * decode and dispatch latency histograms, GATT operation queue depth, round-trip time and
+     * failures. Notification rates are measured since the previous call, apart from the window
+     * of the bluetooth-le:stats event.
+     *
+     * @return A dictionary of metrics, or null if the device is not connected.
+     */
+    @Kroll.method
+    public HashMap getStats(String address) {
+        BLEPeripheral peripheral = active.get(address);
+        return (peripheral != null) ? peripheral.getStats(false) : null;
+    }
+
+    /**
+     * Send a bluetooth-le:stats event for each connected device every intervalMs. Zero stops
+     * the events.
+     */
+    @Kroll.method
+    public void setStatsInterval(int intervalMs) {
+        if (statsTask != null) {
+            statsTask.cancel(false);
+            statsTask = null;
+        }
+
+        if (intervalMs > 0) {
+            if (statsTimer == null) {
+                statsTimer = Executors.newSingleThreadScheduledExecutor();
+            }
+            statsTask = statsTimer.scheduleAtFixedRate(statsReporter, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+
+        } else if (statsTimer != null) {
+            statsTimer.shutdown();
+            statsTimer = null;
+        }
+    }
+
+    /**
+     * Get the recent samples of a channel of a connected device, e.g. "load" or "port1", at or
+     * after a time. Only the requested range is copied.
+     *
+     * @return A dictionary of timestamps and values arrays, or null if there is no such channel.
+     */
+    @Kroll.method
+    public HashMap getHistory(String address, String channel, @Kroll.argument(optional=true) Double fromTs) {
+        SampleHistory history = historyOf(address);
+        SampleRing ring = (history != null) ? history.get(channel) : null;
+        if (ring == null) {
+            return null;
+        }
+
+        SampleRing.Slice slice = ring.since((fromTs != null) ? fromTs.longValue() : Long.MIN_VALUE);
+
+        HashMap<String, Object> result = new HashMap<String, Object>();
+        result.put("address", address);
+        result.put("channel", channel);
+        result.put("timestamps", slice.timestamps);
+        result.put("values", slice.values);
+        return result;
+    }
+
+    /**
+     * @return The names of the history channels of a connected device.
+     */
+    @Kroll.method
+    public String[] getHistoryChannels(String address) {
+        SampleHistory history = historyOf(address);
+        if (history == null) {
+            return new String[0];
+        }
+
+        List<String> channels = history.getChannels();
+        return channels.toArray(new String[channels.size()]);
+    }
+
     @Kroll.method
     public void startDiscovery() {
         prepare();
         if (btAdapter != null && btAdapter.isEnabled() && bluetoothLeScanner == null) {
+            scanTracker.resetReporting();
             bluetoothLeScanner = btAdapter.getBluetoothLeScanner();
-            bluetoothLeScanner.startScan(leScanCallback);
+            bluetoothLeScanner.startScan((scanFiltered) ? BLEPeripheralFactory.buildScanFilters() : null, buildScanSettings(), leScanCallback);
             Log.d(TAG, "sendStartDiscovery");
             api.sendStartDiscovery();
         }
@@ -212,6 +503,10 @@ public class BtBleSensorsModule extends KrollModule {
     public void cancelDiscovery() {
         prepare();
         if (btAdapter != null && btAdapter.isEnabled() && bluetoothLeScanner != null) {
+            // Deliver whatever the controller is still holding before stopping.
+            if (reportDelayMs() > 0) {
+                bluetoothLeScanner.flushPendingScanResults(leScanCallback);
+            }
             bluetoothLeScanner.stopScan(leScanCallback);
             Log.d(TAG, "cancelDiscovery");
             api.sendStopDiscovery();
@@ -219,6 +514,32 @@ public class BtBleSensorsModule extends KrollModule {
         }
     }
 
+    private File blackBoxFile() {
+        return new File(TiApplication.getInstance().getFilesDir(), BLACK_BOX_FILE);
+    }
+
+    private SampleHistory historyOf(String address) {
+        BLEPeripheral peripheral = active.get(address);
+        return (peripheral != null) ? peripheral.getHistory() : null;
+    }
+
+    private ScanSettings buildScanSettings() {
+        ScanSettings.Builder builder = new ScanSettings.Builder()
+            .setScanMode(scanMode)
+            .setReportDelay(reportDelayMs());
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            builder.setMatchMode(scanMatchMode);
+        }
+
+        return builder.build();
+    }
+
+    // A report delay fails the scan on a controller that cannot batch results.
+    private long reportDelayMs() {
+        return (btAdapter != null && btAdapter.isOffloadedScanBatchingSupported()) ? scanReportDelayMs : 0;
+    }
+
     private void prepare() {
         boolean hasLe = getActivity().getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE);
         if (hasLe) {
@@ -264,6 +585,18 @@ public class BtBleSensorsModule extends KrollModule {
         }
     }
 
+    private final Runnable statsReporter = new Runnable() {
+        @Override
+        public void run() {
+            for (BLEPeripheral peripheral : active.values()) {
+                HashMap<String, Object> stats = peripheral.getStats(true);
+                if (stats != null) {
+                    api.sendStats(peripheral.getAddress(), stats);
+                }
+            }
+        }
+    };
+
     private BLECallback leDataCallback = new BLECallback() {
         @Override
         public void onConnecting(BLEPeripheral peripheral) {
@@ -282,6 +615,10 @@ public class BtBleSensorsModule extends KrollModule {
 
         @Override
         public void onDisconnected(BLEPeripheral peripheral) {
+            DataBatcher b = batcher;
+            if (b != null) {
+                b.flush(peripheral.getAddress());
+            }
             api.sendConnectionStatus(peripheral.getAddress(), "disconnected");
 
             // Cleanup.
@@ -295,40 +632,92 @@ public class BtBleSensorsModule extends KrollModule {
             api.sendDeviceInfo(peripheral.getAddress(), values);
         }
 
+        @Override
+        public void onLinkChanged(BLEPeripheral peripheral, int mtu, int connectionPriority) {
+            api.sendLinkStatus(peripheral.getAddress(), mtu, connectionPriority);
+        }
+
+        @Override
+        public void onReconnecting(BLEPeripheral peripheral, int attempt) {
+            // The peripheral stays active while it reconnects.
+            api.sendReconnectStatus(peripheral.getAddress(), "reconnecting", attempt, -1);
+        }
+
+        @Override
+        public void onReconnected(BLEPeripheral peripheral, long reconnectMs, int attempts) {
+            api.sendReconnectStatus(peripheral.getAddress(), "reconnected", attempts, reconnectMs);
+        }
+
         @Override
         public void onData(BLEPeripheral peripheral, String serviceType, String dataType, HashMap<String, Object> values) {
-            api.sendData(peripheral.getName(), serviceType, dataType, peripheral.getAddress(), values);
+            // Only the sensor stream is batched; command responses are sent straight away.
+            DataBatcher b = batcher;
+            if (b != null && "sensors".equals(dataType)) {
+                b.add(peripheral.getName(), serviceType, dataType, peripheral.getAddress(), values);
+            } else {
+                api.sendData(peripheral.getName(), serviceType, dataType, peripheral.getAddress(), values);
+            }
         }
     };
 
-    private ScanCallback leScanCallback = new ScanCallback() {
-        @Override
-        public void onScanResult(int callbackType, ScanResult result) {
-            String deviceName = result.getScanRecord().getDeviceName();
-            List<ParcelUuid> serviceUuids = result.getScanRecord().getServiceUuids();
-            BluetoothDevice device = result.getDevice();
-            BLEPeripheral peripheral = BLEPeripheralFactory.createPeripheral(getActivity(), deviceName, serviceUuids, device);
-
-            if (peripheral != null) {
-                // Add peripheral if not previously discovered.
-                if (!discovered.containsKey(peripheral.getAddress())) {
-                    discovered.put(peripheral.getAddress(), peripheral);
-                }
+    private void processScanResult(ScanResult result) {
+        BluetoothDevice device = result.getDevice();
+        String address = device.getAddress();
+
+        // Batched results are delivered late, so use the time the advertisement was received.
+        long now = result.getTimestampNanos() / 1000000L;
+
+        // Inspect a device when it is first seen, and again while it is unsupported if it
+        // advertises a name or service UUID it had not sent before.
+        ScanRecord record = result.getScanRecord();
+        ScanTracker.Entry entry = scanTracker.observe(address, record.getDeviceName(), uuidsOf(record.getServiceUuids()), now);
+        if (entry.needsInspection()) {
+            List<ParcelUuid> serviceUuids = new ArrayList<ParcelUuid>();
+            for (UUID uuid : entry.getServiceUuids()) {
+                serviceUuids.add(new ParcelUuid(uuid));
+            }
+            scanTracker.resolve(entry, BLEPeripheralFactory.createPeripheral(getActivity(), entry.getName(), serviceUuids, device));
+        }
 
-                api.sendDeviceDetected(peripheral.getName(), peripheral.getAddress(), peripheral.getType(), result.getRssi());
+        BLEPeripheral peripheral = entry.getPeripheral();
+        if (peripheral != null && scanTracker.update(entry, result.getRssi(), now)) {
+            api.sendDeviceDetected(peripheral.getName(), address, peripheral.getType(), entry.getRssi());
+        }
+    }
+
+    private static List<UUID> uuidsOf(List<ParcelUuid> parcelUuids) {
+        List<UUID> uuids = new ArrayList<UUID>();
+        if (parcelUuids != null) {
+            for (ParcelUuid parcelUuid : parcelUuids) {
+                uuids.add(parcelUuid.getUuid());
             }
+        }
+        return uuids;
+    }
 
+    private ScanCallback leScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            processScanResult(result);
             super.onScanResult(callbackType, result);
         }
 
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                processScanResult(result);
+            }
             super.onBatchScanResults(results);
         }
 
         @Override
         public void onScanFailed(int errorCode) {
             super.onScanFailed(errorCode);
+
+            // The scan never started, so the next startDiscovery may try again.
+            Log.e(TAG, "Scan failed with error " + errorCode);
+            bluetoothLeScanner = null;
+            api.sendDiscoveryFailed(errorCode);
         }
     };
 }
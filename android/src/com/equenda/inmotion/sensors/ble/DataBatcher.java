@@ -0,0 +1,178 @@
+package com.equenda.inmotion.sensors.ble;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects sensor samples per device and delivers them to the app as one columnar event, rather
+ * than one event per sample, to cut the number of crossings of the Kroll bridge.
+ * <p>
+ * A batch holds the samples of one device and data type. Each value key becomes a column, with
+ * one entry per sample (null where a sample lacked the key), alongside a column of timestamps.
+ * A batch is sent once it holds the maximum number of samples, or when the window has elapsed
+ * since its first sample, whichever comes first.
+ * <p>
+ * Session workers may still hold a batcher after the app replaces it, so a closed batcher sends
+ * what it still receives straight through, rather than batching it behind a stopped timer.
+ *
+ * @author Jason Waring
+ */
+public class DataBatcher {
+
+    private final API api;
+    private final ScheduledExecutorService timer;
+    private final long windowMs;
+    private final int maxSamples;
+    private final HashMap<String, Batch> batches = new HashMap<String, Batch>();
+    private boolean closed;
+
+    /**
+     * @param api        The API the batches are sent through.
+     * @param timer      The executor for the window timeouts.
+     * @param windowMs   The longest time a sample is held, in milliseconds.
+     * @param maxSamples The most samples in a batch.
+     */
+    public DataBatcher(API api, ScheduledExecutorService timer, long windowMs, int maxSamples) {
+        this.api = api;
+        this.timer = timer;
+        this.windowMs = windowMs;
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * Add a sample to the batch of its device, or send it at once if the batcher is closed.
+     */
+    public synchronized void add(String name, String serviceType, String dataType, String address, HashMap<String, Object> values) {
+        if (closed) {
+            api.sendData(name, serviceType, dataType, address, values);
+            return;
+        }
+
+        String key = address + '/' + dataType;
+        Batch batch = batches.get(key);
+        if (batch == null) {
+            batch = new Batch(name, serviceType, dataType, address);
+            batches.put(key, batch);
+        }
+
+        if (batch.count == 0) {
+            timer.schedule(new WindowTask(key, batch.generation), windowMs, TimeUnit.MILLISECONDS);
+        }
+
+        // A sample that carries its own time, such as a synchronized snapshot, keeps it.
+        Object timestamp = values.get("timestamp");
+        batch.add((timestamp instanceof Long) ? (Long) timestamp : System.currentTimeMillis(), values);
+        if (batch.count >= maxSamples) {
+            send(batch);
+        }
+    }
+
+    /**
+     * Send the pending samples of a device, e.g. before it disconnects.
+     *
+     * @param address The device address.
+     */
+    public synchronized void flush(String address) {
+        for (Batch batch : batches.values()) {
+            if (batch.address.equals(address)) {
+                send(batch);
+            }
+        }
+    }
+
+    /**
+     * Send all pending samples.
+     */
+    public synchronized void flushAll() {
+        for (Batch batch : batches.values()) {
+            send(batch);
+        }
+    }
+
+    /**
+     * Send all pending samples, and send any later ones straight through. Call this before
+     * shutting down the timer.
+     */
+    public synchronized void close() {
+        flushAll();
+        closed = true;
+    }
+
+    private synchronized void onWindowElapsed(String key, int generation) {
+        Batch batch = batches.get(key);
+        if (batch != null && batch.generation == generation) {
+            send(batch);
+        }
+    }
+
+    private void send(Batch batch) {
+        if (batch.count == 0) {
+            return;
+        }
+
+        HashMap<String, Object> columns = new HashMap<String, Object>();
+        for (Map.Entry<String, Object[]> e : batch.columns.entrySet()) {
+            columns.put(e.getKey(), Arrays.copyOf(e.getValue(), batch.count));
+        }
+
+        api.sendDataBatch(batch.name, batch.serviceType, batch.dataType, batch.address,
+                          Arrays.copyOf(batch.timestamps, batch.count), columns);
+        batch.reset();
+    }
+
+    private class Batch {
+        final String name;
+        final String serviceType;
+        final String dataType;
+        final String address;
+        final long[] timestamps = new long[maxSamples];
+        final LinkedHashMap<String, Object[]> columns = new LinkedHashMap<String, Object[]>();
+        int count;
+        int generation;
+
+        Batch(String name, String serviceType, String dataType, String address) {
+            this.name = name;
+            this.serviceType = serviceType;
+            this.dataType = dataType;
+            this.address = address;
+        }
+
+        void add(long timestamp, Map<String, Object> values) {
+            timestamps[count] = timestamp;
+            for (Map.Entry<String, Object> e : values.entrySet()) {
+                Object[] column = columns.get(e.getKey());
+                if (column == null) {
+                    column = new Object[maxSamples];
+                    columns.put(e.getKey(), column);
+                }
+                column[count] = e.getValue();
+            }
+            count++;
+        }
+
+        void reset() {
+            columns.clear();
+            count = 0;
+            generation++;
+        }
+    }
+
+    private class WindowTask implements Runnable {
+        private final String key;
+        private final int generation;
+
+        WindowTask(String key, int generation) {
+            this.key = key;
+            this.generation = generation;
+        }
+
+        @Override
+        public void run() {
+            onWindowElapsed(key, generation);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.equenda.inmotion.sensors.ble;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Tracks the devices seen while scanning, keyed by address, so that each advertisement does not
+ * create a new peripheral or fire a new event.
+ * <p>
+ * The RSSI of each device is smoothed with an exponentially weighted moving average. A detection
+ * is only reported on first sight, when the smoothed RSSI has moved by at least the threshold
+ * since the last report, or when the report interval has elapsed.
+ * <p>
+ * Unsupported devices are remembered too, with the name and service UUIDs they have advertised,
+ * and are only inspected again when a packet brings a name or a UUID not seen before, as many
+ * devices send them only in the scan response or an alternate advertisement. Devices not seen
+ * for a while are forgotten, so a busy site does not grow the table without bound.
+ *
+ * @author Jason Waring
+ */
+public class ScanTracker {
+
+    public static final double DEFAULT_SMOOTHING = 0.25;
+    public static final int DEFAULT_RSSI_THRESHOLD = 6;
+    public static final long DEFAULT_REPORT_INTERVAL_MS = 5000;
+    public static final long DEFAULT_EVICT_AFTER_MS = 300000;
+
+    /**
+     * The scan state of one device.
+     */
+    public static class Entry {
+        private BLEPeripheral peripheral;
+        private String name;
+        private final LinkedHashSet<UUID> serviceUuids = new LinkedHashSet<UUID>();
+        private boolean inspect = true;
+        private long seenAt;
+        private double rssi;
+        private int reportedRssi;
+        private long reportedAt;
+        private boolean reported;
+
+        /**
+         * @return The peripheral, or null if the device is not supported.
+         */
+        public BLEPeripheral getPeripheral() {
+            return peripheral;
+        }
+
+        /**
+         * @return True if the device should be inspected, as it is new, or not supported and has
+         * advertised something new.
+         */
+        public boolean needsInspection() {
+            return inspect;
+        }
+
+        /**
+         * @return The name the device has advertised, or null.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The service UUIDs the device has advertised, in any packet.
+         */
+        public List<UUID> getServiceUuids() {
+            return new ArrayList<UUID>(serviceUuids);
+        }
+
+        /**
+         * @return The smoothed RSSI, in dBm.
+         */
+        public int getRssi() {
+            return (int) Math.round(rssi);
+        }
+    }
+
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private double smoothing = DEFAULT_SMOOTHING;
+    private int rssiThreshold = DEFAULT_RSSI_THRESHOLD;
+    private long reportIntervalMs = DEFAULT_REPORT_INTERVAL_MS;
+    private long lastEviction;
+
+    /**
+     * Set the reporting policy.
+     *
+     * @param smoothing        The EWMA weight of a new RSSI sample, from 0 to 1 (1 is no smoothing).
+     * @param rssiThreshold    The change in smoothed RSSI, in dB, that is reported at once.
+     * @param reportIntervalMs The interval at which a device is reported again, in milliseconds.
+     */
+    public synchronized void configure(double smoothing, int rssiThreshold, long reportIntervalMs) {
+        this.smoothing = Math.max(0.0, Math.min(1.0, smoothing));
+        this.rssiThreshold = rssiThreshold;
+        this.reportIntervalMs = reportIntervalMs;
+    }
+
+    /**
+     * @param address The device address.
+     * @return The entry, or null if the device has not been seen.
+     */
+    public synchronized Entry get(String address) {
+        return entries.get(address);
+    }
+
+    /**
+     * @param address The device address.
+     * @return The peripheral, or null if the device has not been seen or is not supported.
+     */
+    public synchronized BLEPeripheral getPeripheral(String address) {
+        Entry entry = entries.get(address);
+        return (entry != null) ? entry.peripheral : null;
+    }
+
+    /**
+     * Record an advertisement, tracking the device if it is new. An unsupported device that
+     * brings a name or service UUID not seen before is flagged for inspection again.
+     *
+     * @param address      The device address.
+     * @param name         The advertised name, or null.
+     * @param serviceUuids The advertised service UUIDs, or null.
+     * @param now          The time, in milliseconds.
+     * @return The entry.
+     */
+    public synchronized Entry observe(String address, String name, Collection<UUID> serviceUuids, long now) {
+        if (now - lastEviction >= DEFAULT_EVICT_AFTER_MS) {
+            evict(now);
+        }
+
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(address, entry);
+        }
+        entry.seenAt = now;
+
+        if (entry.peripheral == null) {
+            if (name != null && !name.equals(entry.name)) {
+                entry.name = name;
+                entry.inspect = true;
+            }
+            if (serviceUuids != null && entry.serviceUuids.addAll(serviceUuids)) {
+                entry.inspect = true;
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Record the result of inspecting a device.
+     *
+     * @param entry      The device entry.
+     * @param peripheral The peripheral, or null if the device is not supported.
+     */
+    public synchronized void resolve(Entry entry, BLEPeripheral peripheral) {
+        entry.peripheral = peripheral;
+        entry.inspect = false;
+    }
+
+    /**
+     * Add an RSSI sample from an advertisement.
+     *
+     * @param entry The device entry.
+     * @param rssi  The RSSI, in dBm.
+     * @param now   The time, in milliseconds.
+     * @return True if the detection should be reported.
+     */
+    public synchronized boolean update(Entry entry, int rssi, long now) {
+        if (!entry.reported) {
+            entry.rssi = rssi;
+            entry.reported = true;
+        } else {
+            entry.rssi += smoothing * (rssi - entry.rssi);
+
+            int smoothed = entry.getRssi();
+            if (Math.abs(smoothed - entry.reportedRssi) < rssiThreshold && now - entry.reportedAt < reportIntervalMs) {
+                return false;
+            }
+        }
+
+        entry.reportedRssi = entry.getRssi();
+        entry.reportedAt = now;
+        return true;
+    }
+
+    /**
+     * Report every device afresh on its next advertisement, e.g. when a new scan starts. The
+     * peripherals are kept.
+     */
+    public synchronized void resetReporting() {
+        for (Entry entry : entries.values()) {
+            entry.reported = false;
+        }
+    }
+
+    // Forget the devices not seen within the eviction interval.
+    private void evict(long now) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().seenAt >= DEFAULT_EVICT_AFTER_MS) {
+                it.remove();
+            }
+        }
+        lastEviction = now;
+    }
+}
@@ -0,0 +1,260 @@
+package com.equenda.inmotion.sensors.ble;
+
+import com.equenda.inmotion.sensors.ble.peripherals.BLEProfileBase;
+import com.equenda.inmotion.sensors.ble.peripherals.BLEServiceListener;
+import com.equenda.inmotion.sensors.ble.peripherals.BlackBoxRecorder;
+import com.equenda.inmotion.sensors.ble.peripherals.CharacteristicIndex;
+import com.equenda.inmotion.sensors.ble.peripherals.GattSession;
+import com.equenda.inmotion.sensors.ble.peripherals.GattTransport;
+import com.equenda.inmotion.sensors.ble.peripherals.ReplayTransport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a {@link BlackBoxRecorder} capture through the same sessions, profiles and decoders as
+ * a live connection, and on to the {@link API}, with no Bluetooth involved.
+ * <p>
+ * Each recorded address gets its own {@link GattSession} over a {@link ReplayTransport}, and its
+ * events are relayed to the API as the module relays a live peripheral. Records are handed over in
+ * order from the caller's thread to one worker shared by all the sessions, so a replay is
+ * deterministic, and a call returns once the worker has decoded all it was handed. The speed is 1 for real time, N for
+ * N times faster, or {@link #MAX_SPEED} to deliver records as fast as they decode, e.g. to measure
+ * decoding throughput on a desktop JVM with an {@link API.EventSink} of its own. Whatever the
+ * speed, each record is decoded at its recorded time, so samples are stamped, filtered and
+ * synchronized as they were live.
+ *
+ * @author Jason Waring
+ */
+public class SessionReplay {
+
+    public static final double MAX_SPEED = 0;
+
+    /**
+     * Creates the profile for a recorded device.
+     */
+    public interface ProfileFactory {
+        BLEProfileBase createProfile(String address);
+    }
+
+    private final API api;
+    private final String name;
+    private final String serviceType;
+    private final ProfileFactory factory;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final HashMap<Long, Replayed> sessions = new HashMap<Long, Replayed>();
+    private double speed = MAX_SPEED;
+
+    /**
+     * @param api         The API the decoded events are sent to.
+     * @param name        The device name reported with the data.
+     * @param serviceType The service type reported with the data, e.g. "spreader".
+     * @param factory     Creates the profile for each recorded device.
+     */
+    public SessionReplay(API api, String name, String serviceType, ProfileFactory factory) {
+        this.api = api;
+        this.name = name;
+        this.serviceType = serviceType;
+        this.factory = factory;
+    }
+
+    /**
+     * @param speed 1 for real time, N for N times faster, or {@link #MAX_SPEED}.
+     */
+    public void setSpeed(double speed) {
+        this.speed = Math.max(MAX_SPEED, speed);
+    }
+
+    /**
+     * Replay a capture file. Sessions carry over between calls, so a capture split over several
+     * files may be replayed in order.
+     *
+     * @param capture The log file.
+     * @return The number of records replayed.
+     * @throws IOException If the file cannot be read, or is not a log.
+     */
+    public long replay(File capture) throws IOException {
+        Pacer pacer = new Pacer();
+        try {
+            BlackBoxRecorder.scan(capture, pacer);
+        } finally {
+            drain();
+        }
+        return pacer.count;
+    }
+
+    /**
+     * @param address The device address.
+     * @return The replayed session of the device, or null if it has no records.
+     */
+    public GattSession getSession(String address) {
+        Replayed replayed = sessions.get(BlackBoxRecorder.addressToLong(address));
+        return (replayed != null) ? replayed.session : null;
+    }
+
+    /**
+     * Close all sessions. The replay may not be reused.
+     */
+    public void close() {
+        for (Replayed replayed : sessions.values()) {
+            replayed.session.setListener(null);
+            replayed.session.close();
+        }
+        sessions.clear();
+        timer.shutdown();
+    }
+
+    // Wait for the worker to run all it has been handed.
+    private void drain() {
+        try {
+            timer.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            // Nothing was run.
+        }
+    }
+
+    // Opens a session for a recorded device. A capture may begin after the connection record
+    // has been overwritten, so the session is connected unless the first record connects it.
+    private Replayed open(long address, int firstType, long timestamp) {
+        String strAddress = BlackBoxRecorder.addressToString(address);
+        ReplayTransport transport = new ReplayTransport();
+        GattSession session = new GattSession(strAddress, transport, factory.createProfile(strAddress), timer);
+
+        for (int handle = CharacteristicIndex.NO_HANDLE + 1; handle < CharacteristicIndex.MAX_HANDLES; handle++) {
+            UUID uuid = session.uuidOf(handle);
+            if (uuid != null) {
+                transport.addCharacteristic(uuid);
+            }
+        }
+
+        session.setListener(new Relay(strAddress));
+        session.connect();
+        // The session connects its transport on the worker, before records can be delivered.
+        drain();
+        if (firstType != BlackBoxRecorder.TYPE_CONNECTION) {
+            transport.deliver(BlackBoxRecorder.TYPE_CONNECTION, null, GattTransport.STATUS_SUCCESS,
+                              new byte[] {BlackBoxRecorder.CONNECTED}, timestamp);
+        }
+
+        Replayed replayed = new Replayed(session, transport);
+        sessions.put(address, replayed);
+        return replayed;
+    }
+
+    private static class Replayed {
+        final GattSession session;
+        final ReplayTransport transport;
+
+        Replayed(GattSession session, ReplayTransport transport) {
+            this.session = session;
+            this.transport = transport;
+        }
+    }
+
+    // Delivers records at the replay speed, each with its recorded wall clock time. The recorded
+    // clock restarts at each open record, as it was written by a new process. A capture whose
+    // first open record has been overwritten is anchored to the time of the replay.
+    private class Pacer implements BlackBoxRecorder.Visitor {
+        long count;
+        private boolean started;
+        private long recordedStart;
+        private long recordedStartMs;
+        private long replayStart;
+
+        @Override
+        public void onRecord(int type, long nanos, long address, int handle, int status, byte[] payload) {
+            if (type == BlackBoxRecorder.TYPE_OPEN || !started) {
+                started = true;
+                recordedStart = nanos;
+                recordedStartMs = (type == BlackBoxRecorder.TYPE_OPEN) ? BlackBoxRecorder.openTimeOf(payload)
+                                                                       : System.currentTimeMillis();
+                replayStart = System.nanoTime();
+            }
+
+            if (type == BlackBoxRecorder.TYPE_OPEN) {
+                return;
+            }
+
+            if (speed > MAX_SPEED) {
+                long due = replayStart + (long) ((nanos - recordedStart) / speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            long timestamp = recordedStartMs + (nanos - recordedStart) / 1000000L;
+            Replayed replayed = sessions.get(address);
+            if (replayed == null) {
+                replayed = open(address, type, timestamp);
+            }
+
+            replayed.transport.deliver(type, replayed.session.uuidOf(handle), status, payload, timestamp);
+            count++;
+        }
+    }
+
+    // Relays session events to the API, as the module does for a live peripheral.
+    private class Relay implements BLEServiceListener {
+        private final String address;
+
+        Relay(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public void onConnecting() {
+            api.sendConnectionStatus(address, "connecting");
+        }
+
+        @Override
+        public void onConnected() {
+            api.sendConnectionStatus(address, "connected");
+        }
+
+        @Override
+        public void onDisconnected() {
+            api.sendConnectionStatus(address, "disconnected");
+        }
+
+        @Override
+        public void onServicesDiscovered() {
+        }
+
+        @Override
+        public void onData(String dataType, HashMap<String, Object> data) {
+            if ("deviceInfo".equalsIgnoreCase(dataType)) {
+                api.sendDeviceInfo(address, data);
+            } else {
+                api.sendData(name, serviceType, dataType, address, data);
+            }
+        }
+
+        @Override
+        public void onLinkChanged(int mtu, int connectionPriority) {
+            api.sendLinkStatus(address, mtu, connectionPriority);
+        }
+
+        @Override
+        public void onReconnecting(int attempt) {
+            api.sendReconnectStatus(address, "reconnecting", attempt, -1);
+        }
+
+        @Override
+        public void onReconnected(long reconnectMs, int attempts) {
+            api.sendReconnectStatus(address, "reconnected", attempts, reconnectMs);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import android.bluetooth.*;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.UUID;
+
+import static android.bluetooth.BluetoothGattDescriptor.*;
+
+/**
+ * A {@link GattTransport} backed by the Android Bluetooth GATT API.
+ * <p>
+ * Based on the Android Open Source Heart Rate source code example.
+ *
+ * @author Jason Waring
+ */
+public class AndroidGattTransport implements GattTransport {
+    private final static String TAG = AndroidGattTransport.class.getSimpleName();
+
+    private static final UUID CLIENT_CHARACTERISTIC_CONFIG_UUID = UUID.fromString(BLEConstants.CLIENT_CHARACTERISTIC_CONFIG);
+
+    private final Context context;
+    private final BluetoothAdapter btAdapter;
+    private volatile BluetoothGatt btGatt;
+    private volatile Callback callback;
+    private volatile HashMap<UUID, BluetoothGattCharacteristic> characteristics = new HashMap<UUID, BluetoothGattCharacteristic>();
+
+    public AndroidGattTransport(Context context, BluetoothAdapter btAdapter) {
+        this.context = context;
+        this.btAdapter = btAdapter;
+    }
+
+    @Override
+    public boolean connect(String address, Callback callback) {
+        this.callback = callback;
+
+        // Previously connected device.  Try to reconnect.  Reusing the client skips registering a
+        // new one, and the stack completes the connection in the background, as with autoConnect,
+        // once the device is advertising again.
+        if (btGatt != null) {
+            Log.d(TAG, "Trying to use an existing btGatt for connection.");
+            return btGatt.connect();
+        }
+
+        final BluetoothDevice device = btAdapter.getRemoteDevice(address);
+        if (device == null) {
+            Log.w(TAG, "Device not found.  Unable to connect.");
+            return false;
+        }
+
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        Log.d(TAG, "Trying to create a new connection.");
+        btGatt = device.connectGatt(context, false, btGattCallback);
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        BluetoothGatt gatt = btGatt;
+        if (gatt != null) {
+            gatt.disconnect();
+        }
+    }
+
+    @Override
+    public void close() {
+        BluetoothGatt gatt = btGatt;
+        if (gatt != null) {
+            gatt.close();
+            btGatt = null;
+        }
+    }
+
+    @Override
+    public boolean discoverServices() {
+        BluetoothGatt gatt = btGatt;
+        return gatt != null && gatt.discoverServices();
+    }
+
+    @Override
+    public Collection<UUID> getCharacteristics() {
+        return characteristics.keySet();
+    }
+
+    @Override
+    public int readCharacteristic(UUID uuid) {
+        BluetoothGatt gatt = btGatt;
+        BluetoothGattCharacteristic c = characteristics.get(uuid);
+        if (gatt == null || c == null) {
+            return GattOperation.RESULT_REFUSED;
+        }
+
+        return gatt.readCharacteristic(c) ? GattOperation.RESULT_PENDING : GattOperation.RESULT_REFUSED;
+    }
+
+    @Override
+    public int writeCharacteristic(UUID uuid, byte[] value, boolean withResponse) {
+        BluetoothGatt gatt = btGatt;
+        BluetoothGattCharacteristic c = characteristics.get(uuid);
+        if (gatt == null || c == null) {
+            return GattOperation.RESULT_REFUSED;
+        }
+
+        c.setWriteType((withResponse) ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        c.setValue(value);
+        // A write without response is acknowledged too, once sent, and the stack is busy until then.
+        return gatt.writeCharacteristic(c) ? GattOperation.RESULT_PENDING : GattOperation.RESULT_REFUSED;
+    }
+
+    @Override
+    public int setNotification(UUID uuid, boolean enabled) {
+        BluetoothGatt gatt = btGatt;
+        BluetoothGattCharacteristic c = characteristics.get(uuid);
+        if (gatt == null || c == null) {
+            return GattOperation.RESULT_REFUSED;
+        }
+
+        gatt.setCharacteristicNotification(c, enabled);
+        BluetoothGattDescriptor descriptor = c.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG_UUID);
+        if (descriptor == null) {
+            return GattOperation.RESULT_COMPLETED;
+        }
+
+        descriptor.setValue((enabled) ? ENABLE_NOTIFICATION_VALUE : DISABLE_NOTIFICATION_VALUE);
+        return gatt.writeDescriptor(descriptor) ? GattOperation.RESULT_PENDING : GattOperation.RESULT_REFUSED;
+    }
+
+    @Override
+    public int requestMtu(int mtu) {
+        BluetoothGatt gatt = btGatt;
+        if (gatt == null) {
+            return GattOperation.RESULT_REFUSED;
+        }
+
+        // Before Lollipop the link keeps the default MTU.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return GattOperation.RESULT_COMPLETED;
+        }
+
+        return gatt.requestMtu(mtu) ? GattOperation.RESULT_PENDING : GattOperation.RESULT_REFUSED;
+    }
+
+    @Override
+    public int requestConnectionPriority(int priority) {
+        BluetoothGatt gatt = btGatt;
+        if (gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return GattOperation.RESULT_REFUSED;
+        }
+
+        return gatt.requestConnectionPriority(priority) ? GattOperation.RESULT_COMPLETED : GattOperation.RESULT_REFUSED;
+    }
+
+    // Implements callback methods for GATT events that the app cares about.  For example,
+    // connection change and services discovered.
+    private final BluetoothGattCallback btGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                Log.i(TAG, "Connected to GATT server.");
+                callback.onConnectionStateChange(true, status);
+
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.i(TAG, "Disconnected from GATT server.");
+                characteristics = new HashMap<UUID, BluetoothGattCharacteristic>();
+                callback.onConnectionStateChange(false, status);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                HashMap<UUID, BluetoothGattCharacteristic> discovered = new HashMap<UUID, BluetoothGattCharacteristic>();
+                for (BluetoothGattService s : gatt.getServices()) {
+                    for (BluetoothGattCharacteristic c : s.getCharacteristics()) {
+                        discovered.put(c.getUuid(), c);
+                    }
+                }
+                characteristics = discovered;
+
+            } else {
+                Log.w(TAG, "onServicesDiscovered failed: " + status);
+            }
+
+            callback.onServicesDiscovered(status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.d(TAG, "onCharacteristicRead error: " + status);
+            }
+
+            callback.onCharacteristicRead(characteristic.getUuid(), copyOf(characteristic.getValue()), status,
+                                          System.currentTimeMillis());
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.d(TAG, "onCharacteristicWrite error: " + status);
+            }
+
+            callback.onCharacteristicWrite(characteristic.getUuid(), copyOf(characteristic.getValue()), status,
+                                           System.currentTimeMillis());
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            callback.onCharacteristicChanged(characteristic.getUuid(), copyOf(characteristic.getValue()),
+                                             System.currentTimeMillis());
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.d(TAG, "Error writing GATT Descriptor: " + status);
+            }
+
+            callback.onNotificationWrite(descriptor.getCharacteristic().getUuid(), status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.d(TAG, "onMtuChanged error: " + status);
+            }
+
+            callback.onMtuChanged(mtu, status);
+        }
+    };
+
+    // The stack reuses the value of a characteristic, and it is decoded on the session worker.
+    private static byte[] copyOf(byte[] value) {
+        return (value != null) ? value.clone() : null;
+    }
+}
@@ -31,6 +31,19 @@ public interface BLEConstants {
     public static final String DEV_INFO_MANUFACTURER_NAME = "00002a29-0000-1000-8000-00805f9b34fb";
     public static final String DEV_INFO_11073_CERT_DATA = "00002a2a-0000-1000-8000-00805f9b34fb";
 
+    // Characteristic handles for the device information, see CharacteristicIndex.
+    public static final int HANDLE_DEV_INFO_SYSTEM_ID = 1;
+    public static final int HANDLE_DEV_INFO_MODEL_NUMBER = 2;
+    public static final int HANDLE_DEV_INFO_SERIAL_NUMBER = 3;
+    public static final int HANDLE_DEV_INFO_FIRMWARE_REV = 4;
+    public static final int HANDLE_DEV_INFO_HARDWARE_REV = 5;
+    public static final int HANDLE_DEV_INFO_SOFTWARE_REV = 6;
+    public static final int HANDLE_DEV_INFO_MANUFACTURER_NAME = 7;
+    public static final int HANDLE_DEV_INFO_11073_CERT_DATA = 8;
+
+    // The first handle free for a peripheral's own characteristics.
+    public static final int HANDLE_FIRST_SERVICE = 16;
+
     // Client notification configuration
     public static final String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
 }
@@ -3,7 +3,9 @@ package com.equenda.inmotion.sensors.ble.peripherals;
 import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
 import android.content.*;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import com.equenda.inmotion.sensors.ble.BLECallback;
 import com.equenda.inmotion.sensors.ble.BLEPeripheral;
 import org.appcelerator.kroll.common.Log;
@@ -22,14 +24,25 @@ import static android.content.Context.BIND_NOT_FOREGROUND;
 public abstract class BLEPeripheralBase<T> implements BLEPeripheral {
 
     private static final String TAG = BLEPeripheralBase.class.getSimpleName();
+    public static final String FILTERS_TAG = "filters";
 
     private Class<T> serviceClass;
     private Activity activity;
     private BluetoothDevice device;
     private String type;
-    private BLEServiceBase bleService;
-    private BLECallback callback;
-    private boolean connected;
+    private volatile BLEServiceBase bleService;
+    private volatile BLECallback callback;
+    private volatile boolean connected;
+    private volatile boolean reconnecting;
+    private boolean broadcastMode;
+    private volatile BlackBoxRecorder recorder;
+    private volatile int linkMtu = GattTransport.DEFAULT_MTU;
+    private volatile int linkPriority = GattTransport.CONNECTION_PRIORITY_BALANCED;
+    private volatile boolean reconnectEnabled;
+    private volatile int reconnectAttempts = ReconnectSupervisor.UNLIMITED_ATTEMPTS;
+    private volatile long reconnectBaseDelayMs = ReconnectSupervisor.DEFAULT_BASE_DELAY_MS;
+    private volatile long reconnectMaxDelayMs = ReconnectSupervisor.DEFAULT_MAX_DELAY_MS;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     public BLEPeripheralBase(final Class<T> serviceClass,
                              final Activity activity,
@@ -63,10 +76,49 @@ public abstract class BLEPeripheralBase<T> implements BLEPeripheral {
         return connected;
     }
 
+    @Override
+    public void setBroadcastMode(boolean enabled) {
+        this.broadcastMode = enabled;
+    }
+
+    @Override
+    public void setRecorder(BlackBoxRecorder recorder) {
+        this.recorder = recorder;
+
+        GattSession session = getSession();
+        if (session != null) {
+            session.setRecorder(recorder);
+        }
+    }
+
+    @Override
+    public void setLinkParameters(int mtu, int connectionPriority) {
+        this.linkMtu = mtu;
+        this.linkPriority = connectionPriority;
+
+        GattSession session = getSession();
+        if (session != null) {
+            session.setLinkParameters(mtu, connectionPriority);
+        }
+    }
+
+    @Override
+    public void setReconnectPolicy(boolean enabled, int maxAttempts, long baseDelayMs, long maxDelayMs) {
+        this.reconnectEnabled = enabled;
+        this.reconnectAttempts = maxAttempts;
+        this.reconnectBaseDelayMs = baseDelayMs;
+        this.reconnectMaxDelayMs = maxDelayMs;
+
+        GattSession session = getSession();
+        if (session != null) {
+            session.setReconnectPolicy(enabled, maxAttempts, baseDelayMs, maxDelayMs);
+        }
+    }
+
     @Override
     public void connect(BLECallback callback) {
         this.callback = callback;
-        if (!connected) {
+        if (!connected && !reconnecting) {
             Log.i(TAG, "Connecting");
             Intent gattServiceIntent = new Intent(activity, serviceClass);
             activity.startService(gattServiceIntent);
@@ -77,44 +129,85 @@ public abstract class BLEPeripheralBase<T> implements BLEPeripheral {
 
     @Override
     public void disconnect() {
-        if (connected) {
+        if (connected || reconnecting) {
             Log.i(TAG, "Disconnecting");
             callback = null;
 
+            // Only this device's session is closed; other devices served by the same service
+            // stay connected, and the service stops itself once the last session is closed.
             if (bleService != null) {
-                Intent gattServiceIntent = new Intent(activity, serviceClass);
-                activity.stopService(gattServiceIntent);
+                releaseService();
+                activity.unbindService(serviceConnection);
             }
+            connected = false;
+            reconnecting = false;
         }
     }
 
+    /**
+     * Apply the updates common to all peripherals, such as the "filters" configuration.
+     * Subclasses handle their own commands, and should call this first.
+     */
     @Override
     public void update(Map values) {
+        if (values.containsKey(FILTERS_TAG)) {
+            GattSession session = getSession();
+            Object config = values.get(FILTERS_TAG);
+            if (session != null) {
+                session.setFilters((config instanceof Map) ? (Map) config : null);
+            }
+        }
     }
 
+    /**
+     * Read all of the device information again, and cache it.
+     */
     @Override
     public void requestDeviceInfo() {
-        if (bleService != null) {
-            bleService.readCharacteristic(BLEConstants.DEV_INFO_SYSTEM_ID);
-            bleService.readCharacteristic(BLEConstants.DEV_INFO_MODEL_NUMBER);
-            bleService.readCharacteristic(BLEConstants.DEV_INFO_SERIAL_NUMBER);
-            bleService.readCharacteristic(BLEConstants.DEV_INFO_FIRMWARE_REV);
-            bleService.readCharacteristic(BLEConstants.DEV_INFO_HARDWARE_REV);
-            bleService.readCharacteristic(BLEConstants.DEV_INFO_SOFTWARE_REV);
-            bleService.readCharacteristic(BLEConstants.DEV_INFO_MANUFACTURER_NAME);
-            bleService.readCharacteristic(BLEConstants.DEV_INFO_11073_CERT_DATA);
+        GattSession session = getSession();
+        if (session != null) {
+            session.requestDeviceInfo(true);
         }
     }
 
+    @Override
+    public SampleHistory getHistory() {
+        GattSession session = getSession();
+        return (session != null) ? session.getProfile().getHistory() : null;
+    }
+
+    @Override
+    public HashMap<String, Object> getStats(boolean periodic) {
+        BLEServiceBase service = bleService;
+        return (service != null) ? service.getStats(getAddress(), periodic) : null;
+    }
 
     public abstract String getServiceType();
 
     protected abstract BLEServiceBase buildBLEService(IBinder service);
 
-    protected abstract void handleServiceDiscovery(BLEServiceBase bleService);
+    protected abstract void handleServiceDiscovery(GattSession session);
+
+    /**
+     * @return The GATT session for this device, or null if the service is not bound.
+     */
+    protected GattSession getSession() {
+        BLEServiceBase service = bleService;
+        return (service != null) ? service.getSession(getAddress()) : null;
+    }
+
+    // Close this device's session, and stop listening to the service.
+    private void releaseService() {
+        if (broadcastMode) {
+            try {
+                activity.unregisterReceiver(gattUpdateReceiver);
+            } catch (Throwable th) {
+            }
+        }
 
-    protected BLEServiceBase getBLEService() {
-        return bleService;
+        bleService.disconnect(getAddress());
+        bleService.close(getAddress());
+        bleService = null;
     }
 
     // Code to manage Service lifecycle.
@@ -125,9 +218,22 @@ public abstract class BLEPeripheralBase<T> implements BLEPeripheral {
             Log.i(TAG, "Service connected");
             bleService = buildBLEService(service);
             if (bleService.initialize()) {
+                // Data is delivered directly, unless the intent protocol has been asked for.
+                if (broadcastMode) {
+                    activity.registerReceiver(gattUpdateReceiver, makeGattUpdateIntentFilter());
+                    bleService.setBroadcastEnabled(true);
+                }
+
                 // Automatically connects to the device upon successful start-up initialization.
-                activity.registerReceiver(gattUpdateReceiver, makeGattUpdateIntentFilter());
-                bleService.connect(device.getAddress());
+                bleService.connect(device.getAddress(), (broadcastMode) ? null : serviceListener);
+
+                // The settings of this peripheral apply to its own session, not the whole service.
+                GattSession session = getSession();
+                if (session != null) {
+                    session.setRecorder(recorder);
+                    session.setLinkParameters(linkMtu, linkPriority);
+                    session.setReconnectPolicy(reconnectEnabled, reconnectAttempts, reconnectBaseDelayMs, reconnectMaxDelayMs);
+                }
             }
         }
 
@@ -135,18 +241,93 @@ public abstract class BLEPeripheralBase<T> implements BLEPeripheral {
         public void onServiceDisconnected(ComponentName componentName) {
             if (bleService != null) {
                 Log.i(TAG, "Service disconnected");
-                try {
-                    activity.unregisterReceiver(gattUpdateReceiver);
-                } catch (Throwable th) {
-                }
-                bleService.close();
-                bleService = null;
+                releaseService();
                 connected = false;
+                reconnecting = false;
             }
         }
     };
 
-    // Handles various events fired by the Service.
+    // Handles events delivered directly by the Service. Data is handed on from the GATT
+    // callback thread, while connection changes are moved to the main thread as before.
+    private final BLEServiceListener serviceListener = new BLEServiceListener() {
+        @Override
+        public void onConnecting() {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleConnecting();
+                }
+            });
+        }
+
+        @Override
+        public void onConnected() {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleConnected();
+                }
+            });
+        }
+
+        @Override
+        public void onDisconnected() {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleDisconnected();
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered() {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleServicesDiscovered();
+                }
+            });
+        }
+
+        @Override
+        public void onData(String dataType, HashMap<String, Object> data) {
+            handleData(dataType, data);
+        }
+
+        @Override
+        public void onLinkChanged(final int mtu, final int connectionPriority) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleLinkChanged(mtu, connectionPriority);
+                }
+            });
+        }
+
+        @Override
+        public void onReconnecting(final int attempt) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleReconnecting(attempt);
+                }
+            });
+        }
+
+        @Override
+        public void onReconnected(final long reconnectMs, final int attempts) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleReconnected(reconnectMs, attempts);
+                }
+            });
+        }
+    };
+
+    // Handles various events fired by the Service, when the intent protocol is used.
     // ACTION_GATT_CONNECTED: connected to a GATT server.
     // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
     // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
@@ -157,43 +338,117 @@ public abstract class BLEPeripheralBase<T> implements BLEPeripheral {
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
 
+            // The service broadcasts for every device it is connected to.
+            if (!getAddress().equalsIgnoreCase(intent.getStringExtra(BLEServiceBase.EXTRA_ADDRESS))) {
+                return;
+            }
+
             if (BLEServiceBase.ACTION_GATT_CONNECTED.equals(action)) {
-                connected = true;
-                if (callback != null) {
-                    callback.onConnected(BLEPeripheralBase.this);
-                }
+                handleConnected();
 
             } else if (BLEServiceBase.ACTION_GATT_CONNECTING.equals(action)) {
-                connected = false;
-                callback.onConnecting(BLEPeripheralBase.this);
+                handleConnecting();
 
             } else if (BLEServiceBase.ACTION_GATT_DISCONNECTED.equals(action)) {
-                connected = false;
-                callback.onDisconnected(BLEPeripheralBase.this);
+                handleDisconnected();
 
             } else if (BLEServiceBase.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                handleServiceDiscovery(bleService);
+                handleServicesDiscovered();
 
-                requestDeviceInfo();
+            } else if (BLEServiceBase.ACTION_GATT_LINK_CHANGED.equals(action)) {
+                handleLinkChanged(intent.getIntExtra(BLEServiceBase.EXTRA_MTU, GattTransport.DEFAULT_MTU),
+                                  intent.getIntExtra(BLEServiceBase.EXTRA_CONNECTION_PRIORITY,
+                                                     GattTransport.CONNECTION_PRIORITY_BALANCED));
 
-            } else if (BLEServiceBase.ACTION_DATA_AVAILABLE.equals(action)) {
-                HashMap<String, Object> data = (HashMap<String, Object>) intent.getSerializableExtra(BLEServiceBase.EXTRA_DATA);
+            } else if (BLEServiceBase.ACTION_GATT_RECONNECTING.equals(action)) {
+                handleReconnecting(intent.getIntExtra(BLEServiceBase.EXTRA_ATTEMPTS, 0));
 
-                if (intent.hasExtra(BLEServiceBase.EXTRA_DATA_TYPE)) {
-                    String dataType = intent.getStringExtra(BLEServiceBase.EXTRA_DATA_TYPE);
-                    if ("deviceInfo".equalsIgnoreCase(dataType)) {
-                        callback.onDeviceInfo(BLEPeripheralBase.this, data);
+            } else if (BLEServiceBase.ACTION_GATT_RECONNECTED.equals(action)) {
+                handleReconnected(intent.getLongExtra(BLEServiceBase.EXTRA_RECONNECT_TIME, 0),
+                                  intent.getIntExtra(BLEServiceBase.EXTRA_ATTEMPTS, 0));
 
-                    } else {
-                        callback.onData(BLEPeripheralBase.this, getServiceType(), dataType, data);
-                    }
-                } else {
-                    callback.onData(BLEPeripheralBase.this, getServiceType(), "sensors", data);
-                }
+            } else if (BLEServiceBase.ACTION_DATA_AVAILABLE.equals(action)) {
+                HashMap<String, Object> data = (HashMap<String, Object>) intent.getSerializableExtra(BLEServiceBase.EXTRA_DATA);
+                String dataType = intent.hasExtra(BLEServiceBase.EXTRA_DATA_TYPE) ? intent.getStringExtra(BLEServiceBase.EXTRA_DATA_TYPE) : "sensors";
+                handleData(dataType, data);
             }
         }
     };
 
+    private void handleConnecting() {
+        connected = false;
+        BLECallback cb = callback;
+        if (cb != null) {
+            cb.onConnecting(this);
+        }
+    }
+
+    private void handleConnected() {
+        connected = true;
+        reconnecting = false;
+        BLECallback cb = callback;
+        if (cb != null) {
+            cb.onConnected(this);
+        }
+    }
+
+    private void handleDisconnected() {
+        connected = false;
+        reconnecting = false;
+        BLECallback cb = callback;
+        if (cb != null) {
+            cb.onDisconnected(this);
+        }
+    }
+
+    private void handleLinkChanged(int mtu, int connectionPriority) {
+        BLECallback cb = callback;
+        if (cb != null) {
+            cb.onLinkChanged(this, mtu, connectionPriority);
+        }
+    }
+
+    private void handleReconnecting(int attempt) {
+        connected = false;
+        reconnecting = true;
+        BLECallback cb = callback;
+        if (cb != null) {
+            cb.onReconnecting(this, attempt);
+        }
+    }
+
+    // The session restored its notifications itself, so the device is not set up again.
+    private void handleReconnected(long reconnectMs, int attempts) {
+        BLECallback cb = callback;
+        if (cb != null) {
+            cb.onReconnected(this, reconnectMs, attempts);
+        }
+    }
+
+    private void handleServicesDiscovered() {
+        GattSession session = getSession();
+        if (session != null) {
+            handleServiceDiscovery(session);
+
+            // Cached device information is published at once, and only revalidated.
+            session.requestDeviceInfo(false);
+        }
+    }
+
+    private void handleData(String dataType, HashMap<String, Object> data) {
+        BLECallback cb = callback;
+        if (cb == null) {
+            return;
+        }
+
+        if ("deviceInfo".equalsIgnoreCase(dataType)) {
+            cb.onDeviceInfo(this, data);
+
+        } else {
+            cb.onData(this, getServiceType(), dataType, data);
+        }
+    }
+
     private IntentFilter makeGattUpdateIntentFilter() {
         final IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(BLEServiceBase.ACTION_GATT_CONNECTING);
@@ -202,6 +457,9 @@ public abstract class BLEPeripheralBase<T> implements BLEPeripheral {
         intentFilter.addAction(BLEServiceBase.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BLEServiceBase.ACTION_GATT_SERVICES_DISCOVERED);
         intentFilter.addAction(BLEServiceBase.ACTION_DATA_AVAILABLE);
+        intentFilter.addAction(BLEServiceBase.ACTION_GATT_LINK_CHANGED);
+        intentFilter.addAction(BLEServiceBase.ACTION_GATT_RECONNECTING);
+        intentFilter.addAction(BLEServiceBase.ACTION_GATT_RECONNECTED);
         return intentFilter;
     }
 
@@ -0,0 +1,133 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An abstract base for the device specific half of a {@link GattSession}: which characteristics
+ * to register, how to decode them, and how to turn commands into writes.
+ * <p>
+ * A profile has no Android dependencies, so it can be driven by a {@link FakeGattTransport} on a
+ * plain JVM. It is attached to exactly one session, and only called on the worker of that
+ * session, so it needs no locks.
+ *
+ * @author Jason Waring
+ */
+public abstract class BLEProfileBase {
+
+    private GattSession session;
+    private final SampleHistory history = new SampleHistory();
+    private HashMap<String, ChannelFilter> filters = new HashMap<String, ChannelFilter>();
+
+    void attach(GattSession session) {
+        this.session = session;
+    }
+
+    /**
+     * @return The session the profile is attached to.
+     */
+    protected GattSession getSession() {
+        return session;
+    }
+
+    /**
+     * @return The recent samples of the device, recorded by the decoders.
+     */
+    public SampleHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Replace the channel filters, e.g. {load: {deadband: 2}, spinnerSpeed: {decimation: 4}}.
+     * Channels without a filter publish every sample.
+     *
+     * @param config The filter configuration per channel, or null to remove all filters.
+     */
+    public void setFilters(Map config) {
+        HashMap<String, ChannelFilter> updated = new HashMap<String, ChannelFilter>();
+        if (config != null) {
+            for (Object entry : config.entrySet()) {
+                Map.Entry e = (Map.Entry) entry;
+                if (e.getValue() instanceof Map) {
+                    updated.put(e.getKey().toString(), ChannelFilter.fromMap((Map) e.getValue()));
+                }
+            }
+        }
+
+        filters = updated;
+    }
+
+    /**
+     * Register the characteristics the profile uses against their handles. This is called
+     * once, when the session is created.
+     *
+     * @param index The characteristic index
+     */
+    public abstract void registerCharacteristics(CharacteristicIndex index);
+
+    /**
+     * Decode a characteristic value, from a read, write or notification. Decoded values are
+     * handed on with {@link #publishData(String, HashMap)}. Samples are stamped, filtered and
+     * synchronized by the given timestamp rather than the clock, so a replay at any speed
+     * decodes as the live session did.
+     *
+     * @param handle    The registered handle, or {@link CharacteristicIndex#NO_HANDLE}
+     * @param value     The characteristic value
+     * @param timestamp The wall clock time the value arrived, in milliseconds
+     */
+    public abstract void decodeData(int handle, byte[] value, long timestamp);
+
+    /**
+     * A set of commands to update, for the device.
+     *
+     * @param commands The commands
+     */
+    public abstract void updateDevice(Map commands);
+
+    /**
+     * Pass a sample through the filter of its channel.
+     *
+     * @param channel The channel name
+     * @param now     The time of the sample, in milliseconds
+     * @param value   The value
+     * @return True if the sample is significant and should be published.
+     */
+    protected boolean accept(String channel, long now, int value) {
+        ChannelFilter filter = filters.get(channel);
+        return filter == null || filter.accept(now, value);
+    }
+
+    /**
+     * Publish decoded data to the session listener. The map is handed over by reference and
+     * must not be modified afterwards.
+     *
+     * @param dataType The data type
+     * @param data     The decoded values
+     */
+    protected void publishData(String dataType, HashMap<String, Object> data) {
+        session.publishData(dataType, data);
+    }
+
+    /**
+     * Request a write to a registered characteristic.
+     *
+     * @param handle       The characteristic handle
+     * @param data         The data to write.
+     * @param withResponse If false, write without response.
+     */
+    protected void writeCharacteristic(int handle, byte[] data, boolean withResponse) {
+        session.writeCharacteristic(handle, data, withResponse);
+    }
+
+    /**
+     * Request a write of a setpoint to a registered characteristic, where a newer value replaces
+     * one that is still queued.
+     *
+     * @param handle       The characteristic handle
+     * @param data         The data to write.
+     * @param withResponse If false, write without response.
+     */
+    protected void writeSetpoint(int handle, byte[] data, boolean withResponse) {
+        session.writeSetpoint(handle, data, withResponse);
+    }
+}
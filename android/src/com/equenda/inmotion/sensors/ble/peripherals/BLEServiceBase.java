@@ -1,22 +1,31 @@
 package com.equenda.inmotion.sensors.ble.peripherals;
 
 import android.app.Service;
-import android.bluetooth.*;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
 import android.util.Log;
 
-import java.util.*;
-
-import static android.bluetooth.BluetoothGattDescriptor.*;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * An abstract base service class for for managing connection and data communication
  * with a BLE GATT server.
  * <p>
- * Based on the Android Open Source Heart Rate source code example.
+ * The service hosts one independent {@link GattSession} per device address, each over its own
+ * {@link AndroidGattTransport}, with its own operation queue, {@link BLEProfileBase} decoder
+ * state and lifecycle, so several peripherals of the same type can be connected at once. Each
+ * session runs on its own worker thread, so GATT work never runs on the main thread and a busy
+ * device does not hold up the others. The service adds the Android plumbing: the adapter,
+ * binding and the compatibility broadcasts.
  *
  * @author Jason Waring
  */
@@ -27,24 +36,26 @@ public abstract class BLEServiceBase extends Service {
     public final static String ACTION_GATT_DISCONNECTED = "com.equenda.inmotion.sensors.ble.ACTION_GATT_DISCONNECTED";
     public final static String ACTION_GATT_SERVICES_DISCOVERED = "com.equenda.inmotion.sensors.ble.ACTION_GATT_SERVICES_DISCOVERED";
     public final static String ACTION_DATA_AVAILABLE = "com.equenda.inmotion.sensors.ble.ACTION_DATA_AVAILABLE";
+    public final static String ACTION_GATT_LINK_CHANGED = "com.equenda.inmotion.sensors.ble.ACTION_GATT_LINK_CHANGED";
+    public final static String ACTION_GATT_RECONNECTING = "com.equenda.inmotion.sensors.ble.ACTION_GATT_RECONNECTING";
+    public final static String ACTION_GATT_RECONNECTED = "com.equenda.inmotion.sensors.ble.ACTION_GATT_RECONNECTED";
     public final static String EXTRA_DATA = "com.equenda.inmotion.sensors.ble.EXTRA_DATA";
     public final static String EXTRA_DATA_TYPE = "com.equenda.inmotion.sensors.ble.EXTRA_DATA_TYPE";
+    public final static String EXTRA_ADDRESS = "com.equenda.inmotion.sensors.ble.EXTRA_ADDRESS";
+    public final static String EXTRA_MTU = "com.equenda.inmotion.sensors.ble.EXTRA_MTU";
+    public final static String EXTRA_CONNECTION_PRIORITY = "com.equenda.inmotion.sensors.ble.EXTRA_CONNECTION_PRIORITY";
+    public final static String EXTRA_ATTEMPTS = "com.equenda.inmotion.sensors.ble.EXTRA_ATTEMPTS";
+    public final static String EXTRA_RECONNECT_TIME = "com.equenda.inmotion.sensors.ble.EXTRA_RECONNECT_TIME";
 
     private final static String TAG = BLEServiceBase.class.getSimpleName();
 
-    protected static final int STATE_DISCONNECTED = 0;
-    protected static final int STATE_CONNECTING = 1;
-    protected static final int STATE_CONNECTED = 2;
-
     private BluetoothManager btManager;
     private BluetoothAdapter btAdapter;
-    private String deviceAddress;
-    private BluetoothGatt btGatt;
-    private int connectionState = STATE_DISCONNECTED;
-    private HashMap<String, String> deviceInfo = new HashMap<String, String>();
-    private Queue<BluetoothGattDescriptor> descriptorWriteDescQueue = new LinkedList<BluetoothGattDescriptor>();
-    private Queue<BluetoothGattCharacteristic> characteristicWriteQueue = new LinkedList<BluetoothGattCharacteristic>();
-    private Queue<BluetoothGattCharacteristic> characteristicReadQueue = new LinkedList<BluetoothGattCharacteristic>();
+    private final ConcurrentHashMap<String, GattSession> sessions = new ConcurrentHashMap<String, GattSession>();
+    private volatile long operationTimeoutMs = GattOperationScheduler.DEFAULT_TIMEOUT_MS;
+    private volatile int operationRetries = GattOperationScheduler.DEFAULT_MAX_RETRIES;
+    private volatile boolean broadcastEnabled = false;
+    private DeviceInfoStore deviceInfoStore;
 
     private final IBinder binder = new LocalBinder();
 
@@ -61,10 +72,20 @@ public abstract class BLEServiceBase extends Service {
 
     @Override
     public boolean onUnbind(Intent intent) {
-        disconnect();
+        for (GattSession session : sessions.values()) {
+            session.disconnect();
+        }
         return super.onUnbind(intent);
     }
 
+    @Override
+    public void onDestroy() {
+        for (String address : sessions.keySet()) {
+            close(address);
+        }
+        super.onDestroy();
+    }
+
     /**
      * Initializes a reference to the local Bluetooth adapter.
      *
@@ -88,434 +109,270 @@ public abstract class BLEServiceBase extends Service {
         return true;
     }
 
-    public BluetoothGatt getGatt() {
-        return btGatt;
-    }
-
-    public int getConnectionState() {
-        return connectionState;
-    }
-
-    public void setConnectionState(int cs) {
-        connectionState = cs;
-        switch (connectionState) {
-            case STATE_DISCONNECTED:
-                broadcastSimple(ACTION_GATT_DISCONNECTED);
-                break;
-
-            case STATE_CONNECTED:
-                broadcastSimple(ACTION_GATT_CONNECTED);
-                break;
-
-            case STATE_CONNECTING:
-                broadcastSimple(ACTION_GATT_CONNECTING);
-                break;
-        }
-    }
-
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Enable or disable publishing events as broadcast intents. This is only kept for
+     * compatibility with receivers of the original intent protocol. Each intent carries the
+     * device address in {@link #EXTRA_ADDRESS}.
      *
-     * @param address The device address of the destination device.
-     * @return Return true if the connection is initiated successfully. The connection result
-     * is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * @param enabled If true, broadcast intents as well as calling the listeners.
      */
-    public boolean connect(final String address) {
-        if (btAdapter == null || address == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
-            return false;
-        }
-
-        // Previously connected device.  Try to reconnect.
-        if (deviceAddress != null && address.equalsIgnoreCase(deviceAddress) && btGatt != null) {
-            Log.d(TAG, "Trying to use an existing btGatt for connection.");
-            if (btGatt.connect()) {
-                setConnectionState(STATE_CONNECTING);
-                return true;
-            } else {
-                return false;
-            }
-        }
-
-        final BluetoothDevice device = btAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
-        }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        btGatt = device.connectGatt(this, false, btGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        deviceAddress = address;
-        setConnectionState(STATE_CONNECTING);
-        return true;
+    public void setBroadcastEnabled(boolean enabled) {
+        this.broadcastEnabled = enabled;
     }
 
     /**
-     * Disconnects an existing connection or cancel a pending connection. The disconnection result
-     * is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * Set the acknowledgement timeout and retry budget for GATT operations, for all sessions.
+     *
+     * @param timeoutMs  The timeout, in milliseconds.
+     * @param maxRetries The number of retries after the first attempt.
      */
-    public void disconnect() {
-        if (btAdapter == null || btGatt == null) {
-            return;
-        }
+    public void setOperationTimeout(long timeoutMs, int maxRetries) {
+        operationTimeoutMs = timeoutMs;
+        operationRetries = maxRetries;
 
-        btGatt.disconnect();
-        setConnectionState(STATE_DISCONNECTED);
+        for (GattSession session : sessions.values()) {
+            session.setOperationTimeout(timeoutMs, maxRetries);
+        }
     }
 
     /**
-     * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
+     * @param address The device address.
+     * @return The session for the device, or null if it has not been connected.
      */
-    public void close() {
-        if (btGatt == null) {
-            return;
-        }
-        btGatt.close();
-        btGatt = null;
+    public GattSession getSession(String address) {
+        return (address != null) ? sessions.get(keyOf(address)) : null;
     }
 
     /**
-     * Find a characteristic by the UUID string
-     *
-     * @param strUuid The uuid as a string
-     * @return The characteristic OR null if not found
+     * @param address  The device address.
+     * @param periodic True for the periodic stats report.
+     * @return A snapshot of the metrics of the device session, or null if it has not been
+     * connected.
+     * @see SessionStats
      */
-    public BluetoothGattCharacteristic findCharacteristic(String strUuid) {
-        if (btAdapter == null || btGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return null;
-        }
-
-        UUID uuid = UUID.fromString(strUuid);
-        for (BluetoothGattService s : btGatt.getServices()) {
-            for (BluetoothGattCharacteristic c : s.getCharacteristics()) {
-                if (uuid.equals(c.getUuid())) {
-                    return c;
-                }
-            }
-        }
-
-        return null;
+    public HashMap<String, Object> getStats(String address, boolean periodic) {
+        GattSession session = getSession(address);
+        return (session != null) ? session.getStats(periodic) : null;
     }
 
     /**
-     * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
-     * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
-     *
-     * @param strUuid Characteristic UUID to act on, as a string
+     * @return The number of sessions, connected or not.
      */
-    public void readCharacteristic(String strUuid) {
-        BluetoothGattCharacteristic c = findCharacteristic(strUuid);
-        if (c != null) {
-            readGattCharacteristic(c);
-        }
+    public int getSessionCount() {
+        return sessions.size();
     }
 
-    /**
-     * Request a write to a given {@code BluetoothGattCharacteristic}. The read result is reported
-     * asynchronously through the {@code BluetoothGattCallback#onCharacteristicWrite(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
-     *
-     * @param strUuid Characteristic UUID to act on, as a string
-     * @param data    The data to write.
-     */
-    public void writeCharacteristic(String strUuid, byte[] data) {
-        BluetoothGattCharacteristic c = findCharacteristic(strUuid);
-        if (c != null) {
-            writeGattCharacteristic(c, data);
-        }
+    public int getConnectionState(String address) {
+        GattSession session = getSession(address);
+        return (session != null) ? session.getConnectionState() : GattSession.STATE_DISCONNECTED;
     }
 
     /**
-     * Enables or disables notification on a give characteristic.
+     * Connects to the GATT server hosted on the Bluetooth LE device, creating a session for the
+     * device if there is not one already. Sessions for other devices are not affected.
      *
-     * @param strUuid Characteristic UUID to act on.
-     * @param enabled If true, enable notification.  False otherwise.
+     * @param address  The device address of the destination device.
+     * @param listener The listener for the events and decoded data of this device, or null.
+     * @return Return true if the connection is initiated successfully. The connection result
+     * is reported asynchronously to the listener.
      */
-    public void setCharacteristicNotification(String strUuid, boolean enabled) {
-        if (btAdapter == null || btGatt == null) {
-            return;
+    public boolean connect(final String address, final BLEServiceListener listener) {
+        if (btAdapter == null || address == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+            return false;
         }
 
-        BluetoothGattCharacteristic c = findCharacteristic(strUuid);
-        if (c != null) {
-            btGatt.setCharacteristicNotification(c, enabled);
-            BluetoothGattDescriptor descriptor = c.getDescriptor(UUID.fromString(BLEConstants.CLIENT_CHARACTERISTIC_CONFIG));
-            if (descriptor != null) {
-                descriptor.setValue((enabled) ? ENABLE_NOTIFICATION_VALUE : DISABLE_NOTIFICATION_VALUE);
-                writeGattDescriptor(descriptor);
-            }
+        String key = keyOf(address);
+        GattSession session = sessions.get(key);
+
+        // A previously connected device keeps its session, and reconnects.
+        if (session == null) {
+            session = new GattSession(address, new AndroidGattTransport(this, btAdapter), createProfile(address), newWorker(address));
+            session.setOperationTimeout(operationTimeoutMs, operationRetries);
+            session.setDeviceInfoStore(deviceInfoStore());
+            sessions.put(key, session);
         }
-    }
 
-    /**
-     * Retrieves a list of supported GATT services on the connected device. This should be
-     * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
-     *
-     * @return A {@code List} of supported services.
-     */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (btGatt == null) return null;
-        return btGatt.getServices();
+        session.setListener(new SessionRelay(address, listener));
+        session.connect();
+        return true;
     }
 
     /**
-     * A set of commands to update, for the service,
-     *
-     * @param values The values
-     */
-    public abstract void updateDevice(Map values);
-
-    /**
-     * An abstract method to build a Data Characteristic intent.
-     *
-     * @param action         The action
-     * @param characteristic The characteristic
-     * @return An intent or null.
-     */
-    public abstract Intent buildDataIntent(final String action,
-                                           final BluetoothGattCharacteristic characteristic);
-
-
-    /**
-     * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
-     * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
+     * Disconnects an existing connection or cancel a pending connection. The disconnection result
+     * is reported asynchronously to the listener.
      *
-     * @param characteristic The characteristic to read from.
+     * @param address The device address.
      */
-    private void readGattCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (btAdapter == null || btGatt == null) {
-            return;
+    public void disconnect(String address) {
+        GattSession session = getSession(address);
+        if (session != null) {
+            session.disconnect();
         }
-        //put the characteristic into the read queue
-        characteristicReadQueue.add(characteristic);
-
-        dispatchNextRequest();
     }
 
     /**
-     * Request a write to a given {@code BluetoothGattCharacteristic}. The read result is reported
-     * asynchronously through the {@code BluetoothGattCallback#onCharacteristicWrite(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
+     * After using a given BLE device, the app must call this method to ensure resources are
+     * released properly. The service stops itself once the last session is closed.
      *
-     * @param characteristic The characteristic to write to.
-     * @param data           The data to write.
+     * @param address The device address.
      */
-    private void writeGattCharacteristic(BluetoothGattCharacteristic characteristic, byte[] data) {
-        if (btAdapter == null || btGatt == null) {
+    public void close(String address) {
+        GattSession session = (address != null) ? sessions.remove(keyOf(address)) : null;
+        if (session == null) {
             return;
         }
 
-        characteristic.setValue(data);
-
-        //put the characteristic into the write queue
-        characteristicWriteQueue.add(characteristic);
-
-        dispatchNextRequest();
-    }
+        session.setListener(null);
+        session.close();
 
-    private void writeGattDescriptor(BluetoothGattDescriptor d) {
-        //put the descriptor into the write queue
-        descriptorWriteDescQueue.add(d);
+        // The close is queued on the worker, which finishes its queue before it stops.
+        session.getWorker().shutdown();
 
-        dispatchNextRequest();
-    }
-
-    private void broadcastSimple(final String action) {
-        sendBroadcast(new Intent(action));
-    }
-
-    private void broadcastData(final BluetoothGattCharacteristic characteristic) {
-        Intent intent = this.buildDataIntent(ACTION_DATA_AVAILABLE, characteristic);
-        if (intent != null) {
-            sendBroadcast(intent);
+        if (sessions.isEmpty()) {
+            stopSelf();
         }
     }
 
-    private boolean isDeviceInfoCharacteristic(BluetoothGattCharacteristic characteristic) {
-        String uuid = characteristic.getUuid().toString();
-
-        return BLEConstants.DEV_INFO_SYSTEM_ID.equalsIgnoreCase(uuid) ||
-                   BLEConstants.DEV_INFO_MODEL_NUMBER.equalsIgnoreCase(uuid) ||
-                   BLEConstants.DEV_INFO_SERIAL_NUMBER.equalsIgnoreCase(uuid) ||
-                   BLEConstants.DEV_INFO_FIRMWARE_REV.equalsIgnoreCase(uuid) ||
-                   BLEConstants.DEV_INFO_HARDWARE_REV.equalsIgnoreCase(uuid) ||
-                   BLEConstants.DEV_INFO_SOFTWARE_REV.equalsIgnoreCase(uuid) ||
-                   BLEConstants.DEV_INFO_MANUFACTURER_NAME.equalsIgnoreCase(uuid) ||
-                   BLEConstants.DEV_INFO_11073_CERT_DATA.equalsIgnoreCase(uuid);
+    /**
+     * Create the profile that registers and decodes the characteristics of the device. This is
+     * called once per device session, so profile state is never shared between devices.
+     *
+     * @param address The device address, for profiles with per device settings.
+     * @return A new profile
+     */
+    protected abstract BLEProfileBase createProfile(String address);
+
+    // A session worker, named for the device.
+    private static ScheduledExecutorService newWorker(final String address) {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "GattSession " + address);
+            }
+        });
     }
 
-    private void broadcastDeviceInfo(final BluetoothGattCharacteristic characteristic) {
-        Intent intent = buildDeviceInfoIntent(characteristic);
-        if (intent != null) {
-            sendBroadcast(intent);
+    // The device information cache, shared by all sessions.
+    private synchronized DeviceInfoStore deviceInfoStore() {
+        if (deviceInfoStore == null) {
+            deviceInfoStore = new PreferencesDeviceInfoStore(this);
         }
+        return deviceInfoStore;
     }
 
-    private Intent buildDeviceInfoIntent(final BluetoothGattCharacteristic characteristic) {
-
-        String uuid = characteristic.getUuid().toString();
-        if (BLEConstants.DEV_INFO_SYSTEM_ID.equalsIgnoreCase(uuid)) {
-            deviceInfo.put("systemId", charToHex(characteristic));
-
-        } else if (BLEConstants.DEV_INFO_MODEL_NUMBER.equalsIgnoreCase(uuid)) {
-            deviceInfo.put("modelNumber", charToString(characteristic));
-
-        } else if (BLEConstants.DEV_INFO_SERIAL_NUMBER.equalsIgnoreCase(uuid)) {
-            deviceInfo.put("serialNumber", charToString(characteristic));
-
-        } else if (BLEConstants.DEV_INFO_FIRMWARE_REV.equalsIgnoreCase(uuid)) {
-            deviceInfo.put("firmwareRev", charToString(characteristic));
-
-        } else if (BLEConstants.DEV_INFO_HARDWARE_REV.equalsIgnoreCase(uuid)) {
-            deviceInfo.put("hardwareRev", charToString(characteristic));
-
-        } else if (BLEConstants.DEV_INFO_SOFTWARE_REV.equalsIgnoreCase(uuid)) {
-            deviceInfo.put("softwareRev", charToString(characteristic));
-
-        } else if (BLEConstants.DEV_INFO_MANUFACTURER_NAME.equalsIgnoreCase(uuid)) {
-            deviceInfo.put("manufacturerName", charToString(characteristic));
-
-        } else if (BLEConstants.DEV_INFO_11073_CERT_DATA.equalsIgnoreCase(uuid)) {
-            deviceInfo.put("certData", charToString(characteristic));
-        }
-
-        final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
-        intent.putExtra(EXTRA_DATA_TYPE, "deviceInfo");
-        intent.putExtra(EXTRA_DATA, deviceInfo);
-        return intent;
+    private static String keyOf(String address) {
+        return address.toUpperCase(Locale.US);
     }
 
+    // Relays the events of one session to its listener and, in compatibility mode, as
+    // broadcasts tagged with the device address.
+    private class SessionRelay implements BLEServiceListener {
+        private final String address;
+        private final BLEServiceListener listener;
 
-    // Process the dispatch queue in order:
-    // - Write descriptor
-    // - Read characteristic
-    // - Write characteristic.
-    private void dispatchNextRequest() {
-
-        //if there is more to write, do it!
-        if (descriptorWriteDescQueue.size() > 0) {
-            btGatt.writeDescriptor(descriptorWriteDescQueue.element());
-
-        } else if (characteristicReadQueue.size() > 0) {
-            btGatt.readCharacteristic(characteristicReadQueue.element());
-
-        } else if (characteristicWriteQueue.size() > 0) {
-            btGatt.writeCharacteristic(characteristicWriteQueue.element());
-
+        SessionRelay(String address, BLEServiceListener listener) {
+            this.address = address;
+            this.listener = listener;
         }
-    }
 
-
-    protected String charToString(BluetoothGattCharacteristic characteristic) {
-        byte[] data = characteristic.getValue();
-        return new String(data);
-    }
-
-    protected String charToHex(BluetoothGattCharacteristic characteristic) {
-        byte[] data = characteristic.getValue();
-        final StringBuilder stringBuilder = new StringBuilder(data.length);
-        for (byte byteChar : data) {
-            stringBuilder.append(String.format("%02X", byteChar));
+        @Override
+        public void onConnecting() {
+            if (listener != null) {
+                listener.onConnecting();
+            }
+            broadcastSimple(ACTION_GATT_CONNECTING);
         }
 
-        return stringBuilder.toString();
-    }
+        @Override
+        public void onConnected() {
+            if (listener != null) {
+                listener.onConnected();
+            }
+            broadcastSimple(ACTION_GATT_CONNECTED);
+        }
 
+        @Override
+        public void onDisconnected() {
+            if (listener != null) {
+                listener.onDisconnected();
+            }
+            broadcastSimple(ACTION_GATT_DISCONNECTED);
+        }
 
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback btGattCallback = new BluetoothGattCallback() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.i(TAG, "Connected to GATT server.");
-
-                setConnectionState(STATE_CONNECTED);
-                getGatt().discoverServices();
-                broadcastSimple(ACTION_GATT_CONNECTED);
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.i(TAG, "Disconnected from GATT server.");
-                setConnectionState(STATE_DISCONNECTED);
-                broadcastSimple(ACTION_GATT_DISCONNECTED);
+        public void onServicesDiscovered() {
+            if (listener != null) {
+                listener.onServicesDiscovered();
             }
+            broadcastSimple(ACTION_GATT_SERVICES_DISCOVERED);
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastSimple(ACTION_GATT_SERVICES_DISCOVERED);
+        public void onData(String dataType, HashMap<String, Object> data) {
+            if (listener != null) {
+                listener.onData(dataType, data);
+            }
 
-            } else {
-                Log.w(TAG, "onServicesDiscovered failed: " + status);
+            if (broadcastEnabled) {
+                final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+                intent.putExtra(EXTRA_ADDRESS, address);
+                intent.putExtra(EXTRA_DATA_TYPE, dataType);
+                intent.putExtra(EXTRA_DATA, data);
+                sendBroadcast(intent);
             }
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            try {
-                characteristicReadQueue.remove();
-
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    if (isDeviceInfoCharacteristic(characteristic)) {
-                        broadcastDeviceInfo(characteristic);
-                    } else {
-                        broadcastData(characteristic);
-                    }
-                } else {
-                    Log.d(TAG, "onCharacteristicRead error: " + status);
-                }
-            } finally {
-                dispatchNextRequest();
+        public void onLinkChanged(int mtu, int connectionPriority) {
+            if (listener != null) {
+                listener.onLinkChanged(mtu, connectionPriority);
             }
-        }
 
-        public void onCharacteristicWrite(BluetoothGatt gatt,
-                                          BluetoothGattCharacteristic characteristic, int status) {
-            try {
-                characteristicWriteQueue.remove();
-
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    broadcastData(characteristic);
-                } else {
-                    Log.d(TAG, "onCharacteristicWrite error: " + status);
-                }
-            } finally {
-                dispatchNextRequest();
+            if (broadcastEnabled) {
+                final Intent intent = new Intent(ACTION_GATT_LINK_CHANGED);
+                intent.putExtra(EXTRA_ADDRESS, address);
+                intent.putExtra(EXTRA_MTU, mtu);
+                intent.putExtra(EXTRA_CONNECTION_PRIORITY, connectionPriority);
+                sendBroadcast(intent);
             }
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            broadcastData(characteristic);
+        public void onReconnecting(int attempt) {
+            if (listener != null) {
+                listener.onReconnecting(attempt);
+            }
+
+            if (broadcastEnabled) {
+                final Intent intent = new Intent(ACTION_GATT_RECONNECTING);
+                intent.putExtra(EXTRA_ADDRESS, address);
+                intent.putExtra(EXTRA_ATTEMPTS, attempt);
+                sendBroadcast(intent);
+            }
         }
 
         @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            try {
-                descriptorWriteDescQueue.remove();  //pop the item that we just finishing writing
-
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    // NOP
-                } else {
-                    Log.d(TAG, "Error writing GATT Descriptor: " + status);
-                }
-            } finally {
-                dispatchNextRequest();
+        public void onReconnected(long reconnectMs, int attempts) {
+            if (listener != null) {
+                listener.onReconnected(reconnectMs, attempts);
+            }
+
+            if (broadcastEnabled) {
+                final Intent intent = new Intent(ACTION_GATT_RECONNECTED);
+                intent.putExtra(EXTRA_ADDRESS, address);
+                intent.putExtra(EXTRA_ATTEMPTS, attempts);
+                intent.putExtra(EXTRA_RECONNECT_TIME, reconnectMs);
+                sendBroadcast(intent);
             }
         }
-    };
 
+        private void broadcastSimple(final String action) {
+            if (broadcastEnabled) {
+                final Intent intent = new Intent(action);
+                intent.putExtra(EXTRA_ADDRESS, address);
+                sendBroadcast(intent);
+            }
+        }
+    }
 }
@@ -0,0 +1,49 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.HashMap;
+
+/**
+ * A direct, in-process listener for events raised by a {@link BLEServiceBase}.
+ * <p>
+ * The service and its peripheral share a process through the local binder, so samples are
+ * handed over by reference rather than serialized into a broadcast intent. Callbacks are made
+ * on the thread that raised the GATT event, and a published map is never modified by the
+ * service afterwards.
+ *
+ * @author Jason Waring
+ */
+public interface BLEServiceListener {
+
+    void onConnecting();
+
+    void onConnected();
+
+    void onDisconnected();
+
+    void onServicesDiscovered();
+
+    void onData(String dataType, HashMap<String, Object> data);
+
+    /**
+     * The link parameters changed, after negotiation.
+     *
+     * @param mtu                The ATT MTU.
+     * @param connectionPriority The connection priority.
+     */
+    void onLinkChanged(int mtu, int connectionPriority);
+
+    /**
+     * The link was lost, and the session is trying to reconnect.
+     *
+     * @param attempt The attempt number, from 1.
+     */
+    void onReconnecting(int attempt);
+
+    /**
+     * The session reconnected after its link was lost, and restored its notifications.
+     *
+     * @param reconnectMs The time from losing the link to restoring the session, in milliseconds.
+     * @param attempts    The attempts it took.
+     */
+    void onReconnected(long reconnectMs, int attempts);
+}
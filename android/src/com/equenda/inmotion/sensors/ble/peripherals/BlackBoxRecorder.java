@@ -0,0 +1,399 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A black-box recorder of raw GATT events, appended to a fixed-size, memory-mapped circular file.
+ * <p>
+ * Writers reserve space with a single atomic add and then fill their record in place, so appending
+ * takes no lock and allocates nothing on the callback thread. The record marker is written last,
+ * so a record torn by process death is skipped when the file is read back. The head in the file
+ * header is only raised, to the end of the newest complete record, so a slow writer cannot hide
+ * the records of a faster one. The mapped pages belong to the kernel, so the log survives the
+ * process and is read on the next start.
+ * <p>
+ * File layout: a {@value #FILE_HEADER_SIZE} byte header (magic, version, capacity, head) and then
+ * the data ring. Each record is 8 byte aligned: marker, payload length, type, status, handle, timestamp,
+ * address and payload. Timestamps are {@link System#nanoTime()}, anchored to the wall clock by the
+ * {@link #TYPE_OPEN} record written each time the file is opened. A {@link #TYPE_CONNECTION}
+ * record keeps the GATT status, and has a one byte payload, {@link #CONNECTED} when connected.
+ *
+ * @author Jason Waring
+ */
+public class BlackBoxRecorder {
+
+    public static final int TYPE_OPEN = 0;
+    public static final int TYPE_CONNECTION = 1;
+    public static final int TYPE_READ = 2;
+    public static final int TYPE_WRITE = 3;
+    public static final int TYPE_NOTIFY = 4;
+    public static final int TYPE_DESCRIPTOR_WRITE = 5;
+
+    // The payload byte of a connection record.
+    public static final byte DISCONNECTED = 0;
+    public static final byte CONNECTED = 1;
+
+    public static final int DEFAULT_CAPACITY = 1024 * 1024;
+    public static final int MIN_CAPACITY = 4096;
+    public static final int MAX_PAYLOAD = 512;
+
+    public static final int FILE_HEADER_SIZE = 32;
+    private static final int FILE_MAGIC = 0x42424f58;   // "BBOX"
+    private static final int FILE_VERSION = 2;
+    private static final int HEAD_OFFSET = 16;
+
+    private static final int RECORD_MARKER = 0x7e5ab1e5;
+    private static final int RECORD_HEADER_SIZE = 32;
+
+    private static final String[] TYPE_NAMES = {
+        "open", "connection", "read", "write", "notify", "descriptorWrite"
+    };
+
+    private final File file;
+    private final int capacity;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final AtomicLong head;
+    // The head stored in the file header.
+    private final AtomicLong persisted;
+
+    private BlackBoxRecorder(File file, RandomAccessFile raf, MappedByteBuffer buffer, int capacity, long head) {
+        this.file = file;
+        this.raf = raf;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.head = new AtomicLong(head);
+        this.persisted = new AtomicLong(head);
+    }
+
+    /**
+     * Open a recorder, keeping the records of a previous run if the file has the same capacity.
+     *
+     * @param file     The log file.
+     * @param capacity The size of the data ring, in bytes. It is rounded down to a multiple of 8.
+     * @return The recorder.
+     * @throws IOException If the file cannot be mapped.
+     */
+    public static BlackBoxRecorder open(File file, int capacity) throws IOException {
+        capacity = Math.max(MIN_CAPACITY, capacity) & ~7;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean reuse = raf.length() == FILE_HEADER_SIZE + capacity;
+            raf.setLength(FILE_HEADER_SIZE + capacity);
+
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_SIZE + capacity);
+            long head = 0;
+            if (reuse && buffer.getInt(0) == FILE_MAGIC && buffer.getInt(4) == FILE_VERSION && buffer.getInt(8) == capacity) {
+                head = Math.max(0, buffer.getLong(HEAD_OFFSET)) & ~7L;
+            } else {
+                for (int i = 0; i < FILE_HEADER_SIZE + capacity; i += 8) {
+                    buffer.putLong(i, 0);
+                }
+                buffer.putInt(0, FILE_MAGIC);
+                buffer.putInt(4, FILE_VERSION);
+                buffer.putInt(8, capacity);
+            }
+
+            BlackBoxRecorder recorder = new BlackBoxRecorder(file, raf, buffer, capacity, head);
+            recorder.appendOpen();
+            return recorder;
+
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Convert a device address, e.g. "00:11:22:AA:BB:CC", to the form stored in records.
+     *
+     * @param address The device address.
+     * @return The address as a number, or 0 if it cannot be parsed.
+     */
+    public static long addressToLong(String address) {
+        try {
+            return Long.parseLong(address.replace(":", ""), 16);
+        } catch (Throwable ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Convert a stored address back to the form "00:11:22:AA:BB:CC".
+     *
+     * @param address The address as a number.
+     * @return The device address.
+     */
+    public static String addressToString(long address) {
+        StringBuilder sb = new StringBuilder(17);
+        for (int i = 5; i >= 0; i--) {
+            sb.append(String.format(Locale.US, "%02X", (address >>> (8 * i)) & 0xff));
+            if (i > 0) {
+                sb.append(':');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param payload The payload of an open record.
+     * @return The wall clock time the log was opened, in milliseconds.
+     */
+    public static long openTimeOf(byte[] payload) {
+        return toLong(payload);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Append a record. This may be called from any thread.
+     *
+     * @param type    The record type, one of the TYPE_ constants.
+     * @param address The device address, from {@link #addressToLong(String)}.
+     * @param handle  The characteristic handle, or {@link CharacteristicIndex#NO_HANDLE}.
+     * @param status  The GATT status.
+     * @param payload The payload, or null. Only the first {@value #MAX_PAYLOAD} bytes are kept.
+     */
+    public void append(int type, long address, int handle, int status, byte[] payload) {
+        int length = (payload != null) ? Math.min(payload.length, MAX_PAYLOAD) : 0;
+        int size = (RECORD_HEADER_SIZE + length + 7) & ~7;
+        long start = head.getAndAdd(size);
+
+        // Fields never straddle the end of the ring, as records and the capacity are 8 aligned.
+        // An old marker in the slot is cleared first, so the record is not read until complete.
+        putInt(start, 0);
+        putInt(start + 4, length);
+        putInt(start + 8, (type << 16) | (status & 0xffff));
+        putInt(start + 12, handle);
+        putLong(start + 16, System.nanoTime());
+        putLong(start + 24, address);
+        for (int i = 0; i < length; i++) {
+            buffer.put(FILE_HEADER_SIZE + (int) ((start + RECORD_HEADER_SIZE + i) % capacity), payload[i]);
+        }
+        putInt(start, RECORD_MARKER);
+
+        persistHead(start + size);
+    }
+
+    /**
+     * Receives the records of a log, oldest first.
+     */
+    public interface Visitor {
+        /**
+         * @param type    The record type, one of the TYPE_ constants.
+         * @param nanos   The {@link System#nanoTime()} of the record, in the process that wrote it.
+         * @param address The device address, as from {@link #addressToLong(String)}.
+         * @param handle  The characteristic handle.
+         * @param status  The GATT status.
+         * @param payload The payload, which the visitor may keep.
+         */
+        void onRecord(int type, long nanos, long address, int handle, int status, byte[] payload);
+    }
+
+    /**
+     * Read back the records still in the ring, oldest first. This copies the ring, and may be
+     * called while other threads append.
+     *
+     * @return The records, each with type, nanos, address, handle, status and payload (hex), and
+     * the wall clock time in milliseconds unless the open record before it has been overwritten.
+     */
+    public List<HashMap<String, Object>> read() {
+        final List<HashMap<String, Object>> records = new ArrayList<HashMap<String, Object>>();
+        scan(new Visitor() {
+            private boolean anchored = false;
+            private long anchorNanos;
+            private long anchorMs;
+
+            @Override
+            public void onRecord(int type, long nanos, long address, int handle, int status, byte[] payload) {
+                if (type == TYPE_OPEN) {
+                    anchored = true;
+                    anchorNanos = nanos;
+                    anchorMs = toLong(payload);
+                    return;
+                }
+
+                HashMap<String, Object> record = new HashMap<String, Object>();
+                record.put("type", TYPE_NAMES[type]);
+                record.put("nanos", nanos);
+                if (anchored) {
+                    record.put("time", anchorMs + (nanos - anchorNanos) / 1000000L);
+                }
+                record.put("address", addressToString(address));
+                record.put("handle", handle);
+                record.put("status", status);
+                record.put("payload", toHex(payload));
+                records.add(record);
+            }
+        });
+
+        return records;
+    }
+
+    /**
+     * Visit the records still in the ring, oldest first. This copies the ring, and may be called
+     * while other threads append.
+     *
+     * @param visitor The visitor.
+     */
+    public void scan(Visitor visitor) {
+        long end = head.get();
+        byte[] ring = new byte[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = buffer.get(FILE_HEADER_SIZE + i);
+        }
+
+        scan(ring, end, visitor);
+    }
+
+    /**
+     * Visit the records of a log file, oldest first, without opening it for recording. This is
+     * how a capture is read back on a desktop JVM.
+     *
+     * @param file    The log file.
+     * @param visitor The visitor.
+     * @throws IOException If the file cannot be read, or is not a log.
+     */
+    public static void scan(File file, Visitor visitor) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] header = new byte[FILE_HEADER_SIZE];
+            raf.readFully(header);
+            int capacity = getInt(header, 8);
+            if (getInt(header, 0) != FILE_MAGIC || getInt(header, 4) != FILE_VERSION ||
+                capacity < MIN_CAPACITY || raf.length() != FILE_HEADER_SIZE + capacity) {
+                throw new IOException("Not a black box log: " + file);
+            }
+
+            byte[] ring = new byte[capacity];
+            raf.readFully(ring);
+            scan(ring, getLong(header, HEAD_OFFSET) & ~7L, visitor);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Resynchronise on the next marker whenever a record is torn or overwritten.
+    private static void scan(byte[] ring, long end, Visitor visitor) {
+        long pos = Math.max(0, end - ring.length);
+        while (pos + RECORD_HEADER_SIZE <= end) {
+            int length = getInt(ring, pos + 4);
+            int size = (RECORD_HEADER_SIZE + length + 7) & ~7;
+            if (getInt(ring, pos) != RECORD_MARKER || length < 0 || length > MAX_PAYLOAD || pos + size > end) {
+                pos += 8;
+                continue;
+            }
+
+            int typeStatus = getInt(ring, pos + 8);
+            int type = typeStatus >>> 16;
+            if (type >= TYPE_NAMES.length) {
+                pos += 8;
+                continue;
+            }
+
+            byte[] payload = new byte[length];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = ring[(int) ((pos + RECORD_HEADER_SIZE + i) % ring.length)];
+            }
+
+            visitor.onRecord(type, getLong(ring, pos + 16), getLong(ring, pos + 24), getInt(ring, pos + 12),
+                             (short) typeStatus, payload);
+            pos += size;
+        }
+    }
+
+    /**
+     * Flush the log to the file and unmap it. The recorder may not be used afterwards.
+     */
+    public void close() {
+        buffer.force();
+        try {
+            raf.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    // The open record carries the wall clock, to anchor the timestamps after it.
+    private void appendOpen() {
+        long now = System.currentTimeMillis();
+        byte[] payload = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            payload[i] = (byte) (now >>> (56 - 8 * i));
+        }
+        append(TYPE_OPEN, 0, CharacteristicIndex.NO_HANDLE, 0, payload);
+    }
+
+    // Raise the stored head to the end of a record, unless a later record has already raised it
+    // further. The stored value is rewritten until it matches the latest, as a writer that raised
+    // it since may have stored its value before this one.
+    private void persistHead(long end) {
+        long stored;
+        do {
+            stored = persisted.get();
+            if (stored >= end) {
+                return;
+            }
+        } while (!persisted.compareAndSet(stored, end));
+
+        stored = end;
+        for (;;) {
+            buffer.putLong(HEAD_OFFSET, stored);
+            long latest = persisted.get();
+            if (latest == stored) {
+                return;
+            }
+            stored = latest;
+        }
+    }
+
+    private void putInt(long pos, int value) {
+        buffer.putInt(FILE_HEADER_SIZE + (int) (pos % capacity), value);
+    }
+
+    private void putLong(long pos, long value) {
+        buffer.putLong(FILE_HEADER_SIZE + (int) (pos % capacity), value);
+    }
+
+    // Ring and header copies are read big endian, as the mapped buffer is written.
+    private static int getInt(byte[] ring, long pos) {
+        int offset = (int) (pos % ring.length);
+        return ((ring[offset] & 0xff) << 24) | ((ring[offset + 1] & 0xff) << 16) |
+               ((ring[offset + 2] & 0xff) << 8) | (ring[offset + 3] & 0xff);
+    }
+
+    private static long getLong(byte[] ring, long pos) {
+        return ((long) getInt(ring, pos) << 32) | (getInt(ring, pos + 4) & 0xffffffffL);
+    }
+
+    private static long toLong(byte[] data) {
+        long value = 0;
+        for (int i = 0; i < 8 && i < data.length; i++) {
+            value = (value << 8) | (data[i] & 0xff);
+        }
+        return value;
+    }
+
+    private static String toHex(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            sb.append(String.format(Locale.US, "%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+}
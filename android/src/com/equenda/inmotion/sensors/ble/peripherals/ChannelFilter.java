@@ -0,0 +1,96 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.Map;
+
+/**
+ * Decides whether a sample of a channel is worth publishing, so that repeated or insignificant
+ * values are dropped in the decode path, before any event is built.
+ * <p>
+ * Samples are first decimated N:1. A kept sample is then dropped if it arrives within the minimum
+ * interval of the last published sample, or if it is within the absolute or relative deadband of
+ * it. Each test is off unless configured. A filter is only used from the decoding thread.
+ *
+ * @author Jason Waring
+ */
+public class ChannelFilter {
+
+    public static final String DEADBAND_TAG = "deadband";
+    public static final String RELATIVE_DEADBAND_TAG = "relativeDeadband";
+    public static final String MIN_INTERVAL_TAG = "minInterval";
+    public static final String DECIMATION_TAG = "decimation";
+
+    private final int deadband;
+    private final double relativeDeadband;
+    private final long minIntervalMs;
+    private final int decimation;
+
+    private int count;
+    private boolean published;
+    private int lastValue;
+    private long lastTime;
+
+    /**
+     * @param deadband         The largest absolute change to drop, or negative for none.
+     * @param relativeDeadband The largest change to drop, as a fraction of the last value, or 0 for none.
+     * @param minIntervalMs    The least time between published samples, in milliseconds.
+     * @param decimation       Keep one sample in this many, or 1 for all.
+     */
+    public ChannelFilter(int deadband, double relativeDeadband, long minIntervalMs, int decimation) {
+        this.deadband = deadband;
+        this.relativeDeadband = relativeDeadband;
+        this.minIntervalMs = minIntervalMs;
+        this.decimation = Math.max(1, decimation);
+    }
+
+    /**
+     * Build a filter from the app configuration, e.g. {deadband: 2, minInterval: 100}.
+     *
+     * @param config The configuration.
+     * @return The filter.
+     */
+    public static ChannelFilter fromMap(Map config) {
+        return new ChannelFilter((int) asDouble(config.get(DEADBAND_TAG), -1),
+                                 asDouble(config.get(RELATIVE_DEADBAND_TAG), 0),
+                                 (long) asDouble(config.get(MIN_INTERVAL_TAG), 0),
+                                 (int) asDouble(config.get(DECIMATION_TAG), 1));
+    }
+
+    /**
+     * @param now   The time of the sample, in milliseconds.
+     * @param value The value.
+     * @return True if the sample should be published.
+     */
+    public boolean accept(long now, int value) {
+        if (decimation > 1 && (count++ % decimation) != 0) {
+            return false;
+        }
+
+        if (published) {
+            if (now - lastTime < minIntervalMs) {
+                return false;
+            }
+
+            int delta = Math.abs(value - lastValue);
+            if (delta <= deadband || (relativeDeadband > 0 && delta <= relativeDeadband * Math.abs(lastValue))) {
+                return false;
+            }
+        }
+
+        published = true;
+        lastValue = value;
+        lastTime = now;
+        return true;
+    }
+
+    private static double asDouble(Object value, double defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Double.parseDouble(value.toString());
+        } catch (Throwable ex) {
+            return defaultValue;
+        }
+    }
+}
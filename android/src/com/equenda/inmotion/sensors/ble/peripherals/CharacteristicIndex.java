@@ -0,0 +1,104 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.UUID;
+
+/**
+ * An index of the characteristics of a connected GATT server.
+ * <p>
+ * Each characteristic a service cares about is registered once, against a small integer handle.
+ * The index is bound after service discovery, so that lookups by handle or UUID are O(1) rather
+ * than a scan over every service, and so that decoders can switch on the handle of an incoming
+ * characteristic rather than comparing UUID strings. The binding is cleared on disconnection.
+ *
+ * @author Jason Waring
+ */
+public class CharacteristicIndex {
+
+    public static final int NO_HANDLE = 0;
+    public static final int MAX_HANDLES = 32;
+
+    private final HashMap<UUID, Integer> handles = new HashMap<UUID, Integer>();
+    private final UUID[] uuids = new UUID[MAX_HANDLES];
+    private final boolean[] bound = new boolean[MAX_HANDLES];
+    private final HashSet<UUID> discovered = new HashSet<UUID>();
+
+    /**
+     * Register a characteristic against a handle.
+     *
+     * @param handle  The handle, between 1 and {@link #MAX_HANDLES} - 1.
+     * @param strUuid The characteristic UUID, as a string.
+     */
+    public void register(int handle, String strUuid) {
+        if (handle <= NO_HANDLE || handle >= MAX_HANDLES) {
+            throw new IllegalArgumentException("Invalid characteristic handle " + handle);
+        }
+
+        UUID uuid = UUID.fromString(strUuid);
+        uuids[handle] = uuid;
+        handles.put(uuid, handle);
+    }
+
+    /**
+     * Bind the registered handles to the discovered characteristics.
+     *
+     * @param characteristics The UUIDs of the discovered characteristics.
+     */
+    public void bind(Collection<UUID> characteristics) {
+        clear();
+
+        for (UUID uuid : characteristics) {
+            discovered.add(uuid);
+
+            Integer handle = handles.get(uuid);
+            if (handle != null) {
+                bound[handle] = true;
+            }
+        }
+    }
+
+    /**
+     * Forget the discovered characteristics, e.g. on disconnection or a change of services.
+     */
+    public void clear() {
+        discovered.clear();
+        for (int i = 0; i < bound.length; ++i) {
+            bound[i] = false;
+        }
+    }
+
+    /**
+     * @param handle The handle.
+     * @return The UUID of the discovered characteristic, or null if it was not discovered.
+     */
+    public UUID get(int handle) {
+        return (handle > NO_HANDLE && handle < MAX_HANDLES && bound[handle]) ? uuids[handle] : null;
+    }
+
+    /**
+     * @param uuid The characteristic UUID.
+     * @return True if the characteristic was discovered.
+     */
+    public boolean isDiscovered(UUID uuid) {
+        return discovered.contains(uuid);
+    }
+
+    /**
+     * @param uuid The characteristic UUID.
+     * @return The registered handle, or {@link #NO_HANDLE}.
+     */
+    public int handleOf(UUID uuid) {
+        Integer handle = handles.get(uuid);
+        return (handle != null) ? handle : NO_HANDLE;
+    }
+
+    /**
+     * @param handle The handle.
+     * @return The registered UUID, or null.
+     */
+    public UUID uuidOf(int handle) {
+        return (handle > NO_HANDLE && handle < MAX_HANDLES) ? uuids[handle] : null;
+    }
+}
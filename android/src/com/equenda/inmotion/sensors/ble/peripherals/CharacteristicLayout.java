@@ -0,0 +1,330 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.HashMap;
+
+/**
+ * A declarative description of the fields of a characteristic value, compiled into a flat table.
+ * <p>
+ * Each field has a name, a byte offset and width (1 to 4 bytes), signedness, endianness, an
+ * optional bit range within the bytes read, and a scale. A layout is described once with a
+ * {@link Builder}, and compiled into a single int table of a few slots per field: the offset, the
+ * end offset, a read opcode for the width and byte order, and the shifts that extract the bit
+ * range and extend the sign. Decoding is then a straight-line read per field, selected by the
+ * opcode, with no interpretation of the description.
+ * <p>
+ * A field is present if all of its bytes arrived, so trailing optional fields are handled by the
+ * same table. A layout is immutable and may be shared between threads.
+ *
+ * @author Jason Waring
+ */
+public final class CharacteristicLayout {
+
+    public static final int MAX_FIELDS = 32;
+
+    // The table slots of a field.
+    private static final int SLOT_OFFSET = 0;
+    private static final int SLOT_END = 1;
+    private static final int SLOT_OP = 2;
+    private static final int SLOT_SHIFTS = 3;
+    private static final int STRIDE = 4;
+
+    // Read opcodes, (width - 1) plus OP_LITTLE_ENDIAN, and OP_SIGNED for sign extension.
+    private static final int OP_BE8 = 0;
+    private static final int OP_BE16 = 1;
+    private static final int OP_BE24 = 2;
+    private static final int OP_BE32 = 3;
+    private static final int OP_LE8 = 4;
+    private static final int OP_LE16 = 5;
+    private static final int OP_LE24 = 6;
+    private static final int OP_LITTLE_ENDIAN = 4;
+    private static final int OP_READ_MASK = 7;
+    private static final int OP_SIGNED = 8;
+
+    private final String[] names;
+    private final int[] table;
+    private final double[] scales;
+
+    private CharacteristicLayout(Builder builder) {
+        int n = builder.count;
+        names = new String[n];
+        table = new int[n * STRIDE];
+        scales = new double[n];
+
+        for (int i = 0; i < n; i++) {
+            int width = builder.widths[i];
+            int bitCount = builder.bitCounts[i];
+            int t = i * STRIDE;
+
+            names[i] = builder.names[i];
+            table[t + SLOT_OFFSET] = builder.offsets[i];
+            table[t + SLOT_END] = builder.offsets[i] + width;
+            table[t + SLOT_OP] = (width - 1)
+                                 | (builder.littleEndian[i] ? OP_LITTLE_ENDIAN : 0)
+                                 | (builder.signed[i] ? OP_SIGNED : 0);
+            // The bits to discard above the field, and then below it, packed together.
+            table[t + SLOT_SHIFTS] = ((32 - builder.bitShifts[i] - bitCount) << 8) | (32 - bitCount);
+            scales[i] = builder.scales[i];
+        }
+    }
+
+    /**
+     * @return The number of fields.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @param field The field index.
+     * @return The field name.
+     */
+    public String getName(int field) {
+        return names[field];
+    }
+
+    /**
+     * @param name The field name.
+     * @return The field index, or -1 if the layout has no such field.
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param field The field index.
+     * @return The scale applied by {@link #decodeValue(int, byte[])}.
+     */
+    public double getScale(int field) {
+        return scales[field];
+    }
+
+    /**
+     * @param field The field index.
+     * @param data  The characteristic value.
+     * @param base  The offset of the record within the value.
+     * @return True if all of the bytes of the field arrived.
+     */
+    public boolean isPresent(int field, byte[] data, int base) {
+        return base + table[field * STRIDE + SLOT_END] <= data.length;
+    }
+
+    /**
+     * Decode the raw value of a field. A 32-bit unsigned field is returned as its int bits.
+     *
+     * @param field The field index.
+     * @param data  The characteristic value, in which the field must be present.
+     * @return The unscaled value.
+     */
+    public int decodeInt(int field, byte[] data) {
+        return decodeInt(field, data, 0);
+    }
+
+    /**
+     * Decode the raw value of a field of a record, for values made of repeated records.
+     *
+     * @param field The field index.
+     * @param data  The characteristic value, in which the field must be present.
+     * @param base  The offset of the record within the value.
+     * @return The unscaled value.
+     */
+    public int decodeInt(int field, byte[] data, int base) {
+        int t = field * STRIDE;
+        int p = base + table[t + SLOT_OFFSET];
+        int op = table[t + SLOT_OP];
+        int raw;
+
+        switch (op & OP_READ_MASK) {
+            case OP_BE8:
+            case OP_LE8:
+                raw = data[p] & 0xFF;
+                break;
+
+            case OP_BE16:
+                raw = ((data[p] & 0xFF) << 8) | (data[p + 1] & 0xFF);
+                break;
+
+            case OP_LE16:
+                raw = (data[p] & 0xFF) | ((data[p + 1] & 0xFF) << 8);
+                break;
+
+            default:
+                raw = readWide(op, data, p);
+                break;
+        }
+
+        int shifts = table[t + SLOT_SHIFTS];
+        raw <<= shifts >>> 8;
+        return ((op & OP_SIGNED) != 0) ? raw >> (shifts & 0xFF) : raw >>> (shifts & 0xFF);
+    }
+
+    // Read a 24 or 32-bit field. This is kept out of decodeInt, so that the common 8 and 16-bit
+    // reads stay small enough to be inlined by the JIT.
+    private static int readWide(int op, byte[] data, int p) {
+        switch (op & OP_READ_MASK) {
+            case OP_BE24:
+                return ((data[p] & 0xFF) << 16) | ((data[p + 1] & 0xFF) << 8) | (data[p + 2] & 0xFF);
+
+            case OP_LE24:
+                return (data[p] & 0xFF) | ((data[p + 1] & 0xFF) << 8) | ((data[p + 2] & 0xFF) << 16);
+
+            case OP_BE32:
+                return ((data[p] & 0xFF) << 24) | ((data[p + 1] & 0xFF) << 16)
+                       | ((data[p + 2] & 0xFF) << 8) | (data[p + 3] & 0xFF);
+
+            default:
+                return (data[p] & 0xFF) | ((data[p + 1] & 0xFF) << 8)
+                       | ((data[p + 2] & 0xFF) << 16) | ((data[p + 3] & 0xFF) << 24);
+        }
+    }
+
+    /**
+     * @param field The field index.
+     * @param data  The characteristic value, in which the field must be present.
+     * @return The scaled value.
+     */
+    public double decodeValue(int field, byte[] data) {
+        return decodeInt(field, data, 0) * scales[field];
+    }
+
+    /**
+     * Decode all present fields into a map. Fields with a scale of 1 are put as integers, and
+     * scaled fields as doubles.
+     *
+     * @param data   The characteristic value.
+     * @param values Receives the values, by field name.
+     * @return The map.
+     */
+    public HashMap<String, Object> decode(byte[] data, HashMap<String, Object> values) {
+        for (int i = 0; i < names.length; i++) {
+            if (isPresent(i, data, 0)) {
+                int raw = decodeInt(i, data, 0);
+                if (scales[i] == 1.0) {
+                    values.put(names[i], raw);
+                } else {
+                    values.put(names[i], raw * scales[i]);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Describes a layout, field by field. The description is checked as it is built, so a
+     * layout that builds will always decode.
+     */
+    public static final class Builder {
+        private final String[] names = new String[MAX_FIELDS];
+        private final int[] offsets = new int[MAX_FIELDS];
+        private final int[] widths = new int[MAX_FIELDS];
+        private final int[] bitShifts = new int[MAX_FIELDS];
+        private final int[] bitCounts = new int[MAX_FIELDS];
+        private final boolean[] signed = new boolean[MAX_FIELDS];
+        private final boolean[] littleEndian = new boolean[MAX_FIELDS];
+        private final double[] scales = new double[MAX_FIELDS];
+        private int count;
+
+        /**
+         * Add a whole field.
+         *
+         * @param name         The field name.
+         * @param offset       The byte offset.
+         * @param width        The width in bytes, 1 to 4.
+         * @param signed       True if the field is two's complement.
+         * @param littleEndian True if the least significant byte is first.
+         * @return This builder.
+         */
+        public Builder field(String name, int offset, int width, boolean signed, boolean littleEndian) {
+            return bits(name, offset, width, littleEndian, 0, width * 8, signed);
+        }
+
+        /**
+         * Add an unsigned 8-bit field.
+         */
+        public Builder uint8(String name, int offset) {
+            return field(name, offset, 1, false, false);
+        }
+
+        /**
+         * Add an unsigned 16-bit field.
+         */
+        public Builder uint16(String name, int offset, boolean littleEndian) {
+            return field(name, offset, 2, false, littleEndian);
+        }
+
+        /**
+         * Add a single bit flag, decoded as 0 or 1.
+         *
+         * @param name         The flag name.
+         * @param offset       The byte offset of the bytes holding the flag.
+         * @param width        The width of those bytes, 1 to 4.
+         * @param littleEndian True if the least significant byte is first.
+         * @param bit          The bit number, from the least significant bit.
+         * @return This builder.
+         */
+        public Builder flag(String name, int offset, int width, boolean littleEndian, int bit) {
+            return bits(name, offset, width, littleEndian, bit, 1, false);
+        }
+
+        /**
+         * Add a bit field.
+         *
+         * @param name         The field name.
+         * @param offset       The byte offset of the bytes holding the field.
+         * @param width        The width of those bytes, 1 to 4.
+         * @param littleEndian True if the least significant byte is first.
+         * @param shift        The lowest bit of the field, from the least significant bit.
+         * @param bitCount     The number of bits.
+         * @param signed       True if the bits are two's complement.
+         * @return This builder.
+         */
+        public Builder bits(String name, int offset, int width, boolean littleEndian,
+                            int shift, int bitCount, boolean signed) {
+            if (count == MAX_FIELDS) {
+                throw new IllegalStateException("A layout has at most " + MAX_FIELDS + " fields");
+            }
+            if (width < 1 || width > 4 || offset < 0) {
+                throw new IllegalArgumentException("Bad field " + name + ": offset " + offset + ", width " + width);
+            }
+            if (shift < 0 || bitCount < 1 || shift + bitCount > width * 8) {
+                throw new IllegalArgumentException("Bad bit range for " + name + ": " + shift + "+" + bitCount);
+            }
+
+            names[count] = name;
+            offsets[count] = offset;
+            widths[count] = width;
+            bitShifts[count] = shift;
+            bitCounts[count] = bitCount;
+            this.signed[count] = signed;
+            this.littleEndian[count] = littleEndian;
+            scales[count] = 1.0;
+            count++;
+            return this;
+        }
+
+        /**
+         * Scale the last field added.
+         *
+         * @param scale The factor applied to the raw value.
+         * @return This builder.
+         */
+        public Builder scale(double scale) {
+            if (count == 0) {
+                throw new IllegalStateException("No field to scale");
+            }
+            scales[count - 1] = scale;
+            return this;
+        }
+
+        /**
+         * @return The compiled layout.
+         */
+        public CharacteristicLayout build() {
+            return new CharacteristicLayout(this);
+        }
+    }
+}
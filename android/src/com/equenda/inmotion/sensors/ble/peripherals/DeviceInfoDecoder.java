@@ -0,0 +1,150 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes the standard device information characteristics.
+ * <p>
+ * This works on the raw characteristic value only, and has no Android dependencies, so that it
+ * can be exercised and benchmarked on a plain JVM.
+ *
+ * @author Jason Waring
+ */
+public final class DeviceInfoDecoder {
+
+    public static final String FIRMWARE_REV_TAG = "firmwareRev";
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private DeviceInfoDecoder() {
+    }
+
+    /**
+     * @param handle The characteristic handle.
+     * @return True if the handle is a device information characteristic.
+     */
+    public static boolean isDeviceInfo(int handle) {
+        return handle >= BLEConstants.HANDLE_DEV_INFO_SYSTEM_ID && handle <= BLEConstants.HANDLE_DEV_INFO_11073_CERT_DATA;
+    }
+
+    /**
+     * Decode a device information characteristic into the device information map.
+     *
+     * @param handle     The characteristic handle.
+     * @param data       The characteristic value.
+     * @param deviceInfo The map to update.
+     */
+    public static void decode(int handle, byte[] data, Map<String, Object> deviceInfo) {
+        switch (handle) {
+            case BLEConstants.HANDLE_DEV_INFO_SYSTEM_ID:
+                deviceInfo.put("systemId", toHex(data));
+                break;
+
+            case BLEConstants.HANDLE_DEV_INFO_MODEL_NUMBER:
+                deviceInfo.put("modelNumber", toText(data));
+                break;
+
+            case BLEConstants.HANDLE_DEV_INFO_SERIAL_NUMBER:
+                deviceInfo.put("serialNumber", toText(data));
+                break;
+
+            case BLEConstants.HANDLE_DEV_INFO_FIRMWARE_REV:
+                deviceInfo.put(FIRMWARE_REV_TAG, toText(data));
+                break;
+
+            case BLEConstants.HANDLE_DEV_INFO_HARDWARE_REV:
+                deviceInfo.put("hardwareRev", toText(data));
+                break;
+
+            case BLEConstants.HANDLE_DEV_INFO_SOFTWARE_REV:
+                deviceInfo.put("softwareRev", toText(data));
+                break;
+
+            case BLEConstants.HANDLE_DEV_INFO_MANUFACTURER_NAME:
+                deviceInfo.put("manufacturerName", toText(data));
+                break;
+
+            case BLEConstants.HANDLE_DEV_INFO_11073_CERT_DATA:
+                deviceInfo.put("certData", toText(data));
+                break;
+        }
+    }
+
+    public static String toText(byte[] data) {
+        return new String(data);
+    }
+
+    public static String toHex(byte[] data) {
+        final char[] chars = new char[data.length << 1];
+        for (int i = 0; i < data.length; ++i) {
+            chars[i << 1] = HEX_DIGITS[(data[i] >> 4) & 0x0F];
+            chars[(i << 1) + 1] = HEX_DIGITS[data[i] & 0x0F];
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Encode device information for a {@link DeviceInfoStore}, as one {@code name=value} line
+     * per entry, with the backslashes and line breaks of the values escaped.
+     *
+     * @param deviceInfo The device information.
+     * @return The encoded device information.
+     */
+    public static String encode(Map<String, Object> deviceInfo) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Object> entry : deviceInfo.entrySet()) {
+            sb.append(entry.getKey()).append('=');
+
+            String value = String.valueOf(entry.getValue());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\') {
+                    sb.append("\\\\");
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else if (c == '\r') {
+                    sb.append("\\r");
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decode device information encoded by {@link #encode(Map)}.
+     *
+     * @param encoded The encoded device information, or null.
+     * @return The device information, or null if there was none.
+     */
+    public static HashMap<String, Object> parse(String encoded) {
+        if (encoded == null || encoded.length() == 0) {
+            return null;
+        }
+
+        HashMap<String, Object> deviceInfo = new HashMap<String, Object>();
+        for (String line : encoded.split("\n")) {
+            int split = line.indexOf('=');
+            if (split <= 0) {
+                continue;
+            }
+
+            StringBuilder value = new StringBuilder(line.length() - split);
+            for (int i = split + 1; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == '\\' && i + 1 < line.length()) {
+                    char next = line.charAt(++i);
+                    value.append((next == 'n') ? '\n' : (next == 'r') ? '\r' : next);
+                } else {
+                    value.append(c);
+                }
+            }
+            deviceInfo.put(line.substring(0, split), value.toString());
+        }
+        return deviceInfo;
+    }
+}
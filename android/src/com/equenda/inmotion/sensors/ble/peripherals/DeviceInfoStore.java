@@ -0,0 +1,26 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+/**
+ * Persists the encoded device information of each device, by device address, so that it can be
+ * published as soon as the device reconnects, rather than after eight reads.
+ * <p>
+ * The store keeps the session free of Android dependencies. Saves are made from the GATT
+ * callback thread, so they should not block on the disk.
+ *
+ * @author Jason Waring
+ * @see DeviceInfoDecoder#encode(java.util.Map)
+ */
+public interface DeviceInfoStore {
+
+    /**
+     * @param address The device address.
+     * @return The encoded device information, or null if none was saved.
+     */
+    String load(String address);
+
+    /**
+     * @param address    The device address.
+     * @param deviceInfo The encoded device information.
+     */
+    void save(String address, String deviceInfo);
+}
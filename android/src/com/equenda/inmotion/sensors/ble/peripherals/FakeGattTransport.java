@@ -0,0 +1,373 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory {@link GattTransport} that emulates a peripheral, for load testing a
+ * {@link GattSession} on a plain JVM.
+ * <p>
+ * The fake holds a table of characteristics and their values. Connection, discovery, reads,
+ * writes and descriptor writes complete after a configurable latency on a single "radio" thread,
+ * standing in for the Bluetooth binder thread. As on Android, a write without response is
+ * acknowledged too, and the fake is busy from an operation until its callback, refusing any
+ * other meanwhile. The peripheral can be taken out of range, so that connection attempts fail,
+ * and a pending attempt is cancelled by disconnecting. Notifications can be streamed at a fixed
+ * rate, or injected one at a time with {@link #notifyNow(UUID, byte[])} on the caller's thread,
+ * and are only delivered while notification is enabled for the characteristic, as on a real
+ * device.
+ *
+ * @author Jason Waring
+ */
+public class FakeGattTransport implements GattTransport {
+
+    public static final long DEFAULT_CONNECT_LATENCY_MS = 50;
+    public static final long DEFAULT_OPERATION_LATENCY_MS = 10;
+    public static final int DEFAULT_MAX_MTU = 247;
+
+    // The status of a connection attempt that failed, as BluetoothGatt.GATT_ERROR.
+    private static final int STATUS_CONNECT_FAILED = 133;
+
+    private final ScheduledExecutorService radio;
+    private final LinkedHashMap<UUID, byte[]> values = new LinkedHashMap<UUID, byte[]>();
+    private final Set<UUID> notifying = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+    private final ArrayList<ScheduledFuture<?>> streams = new ArrayList<ScheduledFuture<?>>();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicBoolean busy = new AtomicBoolean();
+    private final AtomicInteger connectAttempt = new AtomicInteger();
+    private volatile long connectLatencyMs = DEFAULT_CONNECT_LATENCY_MS;
+    private volatile long operationLatencyMs = DEFAULT_OPERATION_LATENCY_MS;
+    private volatile int maxMtu = DEFAULT_MAX_MTU;
+    private volatile int mtu = DEFAULT_MTU;
+    private volatile Callback callback;
+    private volatile boolean connected;
+    private volatile boolean reachable = true;
+
+    public FakeGattTransport() {
+        this(Executors.newSingleThreadScheduledExecutor());
+    }
+
+    /**
+     * @param radio The executor that delivers callbacks, which should be single threaded.
+     */
+    public FakeGattTransport(ScheduledExecutorService radio) {
+        this.radio = radio;
+    }
+
+    /**
+     * Add a characteristic to the emulated peripheral. Call before connecting.
+     *
+     * @param strUuid The characteristic UUID, as a string.
+     * @param value   The initial value, returned by reads.
+     * @return This transport.
+     */
+    public synchronized FakeGattTransport addCharacteristic(String strUuid, byte[] value) {
+        values.put(UUID.fromString(strUuid), value);
+        return this;
+    }
+
+    /**
+     * Set the emulated latencies.
+     *
+     * @param connectMs   The latency of connection and service discovery, in milliseconds.
+     * @param operationMs The latency of a read, write or descriptor write, in milliseconds.
+     */
+    public void setLatency(long connectMs, long operationMs) {
+        this.connectLatencyMs = connectMs;
+        this.operationLatencyMs = operationMs;
+    }
+
+    /**
+     * Emulate the peripheral going out of range, or coming back. While it is out of range, a
+     * connection attempt fails after the connection latency.
+     *
+     * @param reachable False to fail connection attempts.
+     */
+    public void setReachable(boolean reachable) {
+        this.reachable = reachable;
+    }
+
+    /**
+     * Set the largest MTU the emulated peripheral accepts.
+     *
+     * @param maxMtu The MTU.
+     */
+    public void setMaxMtu(int maxMtu) {
+        this.maxMtu = maxMtu;
+    }
+
+    /**
+     * @return The negotiated MTU.
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Stream notifications for a characteristic at a fixed rate, cycling through the payloads.
+     *
+     * @param strUuid    The characteristic UUID, as a string.
+     * @param ratePerSec The notification rate, per second.
+     * @param payloads   The payloads to send in turn.
+     */
+    public synchronized void startNotifications(String strUuid, double ratePerSec, final byte[]... payloads) {
+        final UUID uuid = UUID.fromString(strUuid);
+        long periodNs = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSec);
+
+        streams.add(radio.scheduleAtFixedRate(new Runnable() {
+            private int next = 0;
+
+            @Override
+            public void run() {
+                notifyNow(uuid, payloads[next]);
+                next = (next + 1) % payloads.length;
+            }
+        }, periodNs, periodNs, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Stop all notification streams.
+     */
+    public synchronized void stopNotifications() {
+        for (ScheduledFuture<?> stream : streams) {
+            stream.cancel(false);
+        }
+        streams.clear();
+    }
+
+    /**
+     * Deliver a notification immediately, on the caller's thread. It is dropped if the link is
+     * down or notification is not enabled for the characteristic.
+     *
+     * @param uuid  The characteristic UUID.
+     * @param value The notified value, which is passed by reference.
+     */
+    public void notifyNow(UUID uuid, byte[] value) {
+        Callback cb = callback;
+        if (connected && cb != null && notifying.contains(uuid)) {
+            notifications.incrementAndGet();
+            cb.onCharacteristicChanged(uuid, value, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Emulate the peripheral dropping the link.
+     */
+    public void dropConnection() {
+        radio.execute(new Runnable() {
+            @Override
+            public void run() {
+                Callback cb = callback;
+                if (connected && cb != null) {
+                    connected = false;
+                    notifying.clear();
+                    cb.onConnectionStateChange(false, STATUS_SUCCESS);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param strUuid The characteristic UUID, as a string.
+     * @return The current value, including the last write.
+     */
+    public synchronized byte[] getValue(String strUuid) {
+        return values.get(UUID.fromString(strUuid));
+    }
+
+    /**
+     * @return The number of notifications delivered.
+     */
+    public long getNotificationCount() {
+        return notifications.get();
+    }
+
+    /**
+     * @return The number of writes received, with or without response.
+     */
+    public long getWriteCount() {
+        return writes.get();
+    }
+
+    /**
+     * Stop the radio thread.
+     */
+    public void shutdown() {
+        stopNotifications();
+        radio.shutdownNow();
+    }
+
+    @Override
+    public boolean connect(String address, Callback callback) {
+        this.callback = callback;
+        final int attempt = connectAttempt.incrementAndGet();
+
+        radio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // A later attempt, or a disconnection, cancels this one.
+                Callback cb = FakeGattTransport.this.callback;
+                if (cb == null || attempt != connectAttempt.get()) {
+                    return;
+                }
+
+                if (!reachable) {
+                    cb.onConnectionStateChange(false, STATUS_CONNECT_FAILED);
+                } else {
+                    connected = true;
+                    busy.set(false);
+                    mtu = DEFAULT_MTU;
+                    cb.onConnectionStateChange(true, STATUS_SUCCESS);
+                }
+            }
+        }, connectLatencyMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        connectAttempt.incrementAndGet();
+        connected = false;
+        notifying.clear();
+    }
+
+    @Override
+    public void close() {
+        disconnect();
+        callback = null;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (!connected) {
+            return false;
+        }
+
+        radio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Callback cb = callback;
+                if (connected && cb != null) {
+                    cb.onServicesDiscovered(STATUS_SUCCESS);
+                }
+            }
+        }, connectLatencyMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public synchronized Collection<UUID> getCharacteristics() {
+        return new ArrayList<UUID>(values.keySet());
+    }
+
+    @Override
+    public int readCharacteristic(final UUID uuid) {
+        final byte[] value = valueOf(uuid);
+        if (!connected || value == null || !busy.compareAndSet(false, true)) {
+            return GattOperation.RESULT_REFUSED;
+        }
+
+        radio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                busy.set(false);
+                Callback cb = callback;
+                if (connected && cb != null) {
+                    cb.onCharacteristicRead(uuid, value, STATUS_SUCCESS, System.currentTimeMillis());
+                }
+            }
+        }, operationLatencyMs, TimeUnit.MILLISECONDS);
+        return GattOperation.RESULT_PENDING;
+    }
+
+    @Override
+    public int writeCharacteristic(final UUID uuid, final byte[] value, boolean withResponse) {
+        if (!connected || valueOf(uuid) == null || !busy.compareAndSet(false, true)) {
+            return GattOperation.RESULT_REFUSED;
+        }
+
+        synchronized (this) {
+            values.put(uuid, value);
+        }
+        writes.incrementAndGet();
+
+        radio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                busy.set(false);
+                Callback cb = callback;
+                if (connected && cb != null) {
+                    cb.onCharacteristicWrite(uuid, value, STATUS_SUCCESS, System.currentTimeMillis());
+                }
+            }
+        }, operationLatencyMs, TimeUnit.MILLISECONDS);
+        return GattOperation.RESULT_PENDING;
+    }
+
+    @Override
+    public int setNotification(final UUID uuid, boolean enabled) {
+        if (!connected || valueOf(uuid) == null || !busy.compareAndSet(false, true)) {
+            return GattOperation.RESULT_REFUSED;
+        }
+
+        if (enabled) {
+            notifying.add(uuid);
+        } else {
+            notifying.remove(uuid);
+        }
+
+        radio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                busy.set(false);
+                Callback cb = callback;
+                if (connected && cb != null) {
+                    cb.onNotificationWrite(uuid, STATUS_SUCCESS);
+                }
+            }
+        }, operationLatencyMs, TimeUnit.MILLISECONDS);
+        return GattOperation.RESULT_PENDING;
+    }
+
+    @Override
+    public int requestMtu(final int requested) {
+        if (!connected || !busy.compareAndSet(false, true)) {
+            return GattOperation.RESULT_REFUSED;
+        }
+
+        radio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                busy.set(false);
+                Callback cb = callback;
+                if (connected && cb != null) {
+                    mtu = Math.max(DEFAULT_MTU, Math.min(requested, maxMtu));
+                    cb.onMtuChanged(mtu, STATUS_SUCCESS);
+                }
+            }
+        }, operationLatencyMs, TimeUnit.MILLISECONDS);
+        return GattOperation.RESULT_PENDING;
+    }
+
+    @Override
+    public int requestConnectionPriority(int priority) {
+        return (connected) ? GattOperation.RESULT_COMPLETED : GattOperation.RESULT_REFUSED;
+    }
+
+    private synchronized byte[] valueOf(UUID uuid) {
+        return values.get(uuid);
+    }
+}
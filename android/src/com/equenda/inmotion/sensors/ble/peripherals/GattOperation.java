@@ -0,0 +1,167 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.UUID;
+
+/**
+ * A single GATT operation, queued and issued by the {@link GattOperationScheduler}.
+ * <p>
+ * The value to write is held by the operation, and only applied to the characteristic when the
+ * operation is issued, so queued writes to the same characteristic never overwrite each other.
+ * The exception is a coalesced write, such as a setpoint, where only the latest value matters: a
+ * newer coalesced write replaces the value of one still queued, rather than queueing behind it.
+ *
+ * @author Jason Waring
+ */
+public class GattOperation {
+
+    public static final int TYPE_READ = 1;
+    public static final int TYPE_WRITE = 2;
+    public static final int TYPE_WRITE_NO_RESPONSE = 3;
+    public static final int TYPE_SET_NOTIFICATION = 4;
+    public static final int TYPE_REQUEST_MTU = 5;
+    public static final int TYPE_CONNECTION_PRIORITY = 6;
+
+    // Priority classes, highest first.
+    public static final int PRIORITY_SETUP = 0;
+    public static final int PRIORITY_COMMAND = 1;
+    public static final int PRIORITY_BULK = 2;
+    static final int PRIORITY_COUNT = 3;
+
+    // The result of issuing an operation.
+    public static final int RESULT_REFUSED = 0;
+    public static final int RESULT_PENDING = 1;
+    public static final int RESULT_COMPLETED = 2;
+
+    private final int type;
+    private final int priority;
+    private final UUID uuid;
+    private byte[] value;
+    private final boolean coalesced;
+    private final boolean enabled;
+    private final int argument;
+    int attempts;
+    int refusals;
+    long issuedNanos;
+
+    private GattOperation(int type, int priority, UUID uuid, byte[] value, boolean coalesced, boolean enabled, int argument) {
+        this.type = type;
+        this.priority = priority;
+        this.uuid = uuid;
+        this.value = value;
+        this.coalesced = coalesced;
+        this.enabled = enabled;
+        this.argument = argument;
+        this.attempts = 0;
+        this.refusals = 0;
+    }
+
+    public static GattOperation read(UUID uuid, int priority) {
+        return new GattOperation(TYPE_READ, priority, uuid, null, false, false, 0);
+    }
+
+    public static GattOperation write(UUID uuid, byte[] value, int priority) {
+        return new GattOperation(TYPE_WRITE, priority, uuid, value, false, false, 0);
+    }
+
+    public static GattOperation writeNoResponse(UUID uuid, byte[] value, int priority) {
+        return new GattOperation(TYPE_WRITE_NO_RESPONSE, priority, uuid, value, false, false, 0);
+    }
+
+    /**
+     * A write where only the latest value matters, which replaces the value of a queued write of
+     * the same type to the same characteristic.
+     */
+    public static GattOperation coalescedWrite(UUID uuid, byte[] value, boolean withResponse, int priority) {
+        return new GattOperation(withResponse ? TYPE_WRITE : TYPE_WRITE_NO_RESPONSE, priority, uuid, value, true, false, 0);
+    }
+
+    public static GattOperation setNotification(UUID uuid, boolean enabled, int priority) {
+        return new GattOperation(TYPE_SET_NOTIFICATION, priority, uuid, null, false, enabled, 0);
+    }
+
+    public static GattOperation requestMtu(int mtu, int priority) {
+        return new GattOperation(TYPE_REQUEST_MTU, priority, null, null, false, false, mtu);
+    }
+
+    public static GattOperation connectionPriority(int connectionPriority, int priority) {
+        return new GattOperation(TYPE_CONNECTION_PRIORITY, priority, null, null, false, false, connectionPriority);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    /**
+     * @return True if a newer write replaces the value of this one while it is queued.
+     */
+    public boolean isCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Take the value of a newer coalesced write, while this one is still queued.
+     */
+    void coalesce(GattOperation newer) {
+        value = newer.value;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return The requested MTU or connection priority, for those operations.
+     */
+    public int getArgument() {
+        return argument;
+    }
+
+    /**
+     * @return The times the operation was issued, not counting those the stack refused.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return The times the stack refused the operation, e.g. as it was still busy.
+     */
+    public int getRefusals() {
+        return refusals;
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} the operation was last issued.
+     */
+    public long getIssuedNanos() {
+        return issuedNanos;
+    }
+
+    /**
+     * Check whether a GATT callback completes this operation.
+     *
+     * @param callbackType The operation type implied by the callback.
+     * @param uuid         The characteristic UUID from the callback.
+     * @return True if it matches.
+     */
+    boolean matches(int callbackType, UUID uuid) {
+        return type == callbackType && ((this.uuid != null) ? this.uuid.equals(uuid) : uuid == null);
+    }
+
+    @Override
+    public String toString() {
+        return "GattOperation{type=" + type + ", priority=" + priority + ", uuid=" + uuid + ", argument=" + argument + ", attempts=" + attempts + "}";
+    }
+}
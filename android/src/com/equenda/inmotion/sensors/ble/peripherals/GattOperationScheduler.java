@@ -0,0 +1,293 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules GATT operations so that exactly one acknowledged operation is in flight at a time.
+ * <p>
+ * Operations are queued by priority class (set-up, then commands, then bulk reads) and issued in
+ * FIFO order within a class. An operation that is not acknowledged within the timeout is
+ * retried, and dropped once its retries are spent, so a lost callback can never stall the link.
+ * An operation the stack refuses, as it is still busy, is re-issued shortly after, out of a
+ * budget of its own, as a refusal says nothing about the link.
+ * <p>
+ * Writes are never retried, as the device may have acted on one whose acknowledgement was lost,
+ * and commands such as tare or engage must not run twice. A write with response that times out
+ * is dropped at once. A write without response is also held in flight until the stack
+ * acknowledges it, as the stack refuses any other operation until it has sent the write, but if
+ * no acknowledgement comes within the pacing interval it is taken as sent. Either way, a late
+ * acknowledgement is then consumed, rather than completing a later write to the same
+ * characteristic.
+ * <p>
+ * A coalesced write that finds a queued coalesced write of the same type to the same
+ * characteristic replaces its value, and keeps its place in the queue, so a burst of setpoints
+ * costs one write, of the latest value, however fast they arrive.
+ * <p>
+ * A scheduler is confined to the worker of its session: it is only called on the worker, and
+ * its timer must be the worker, so retries and timeouts run on the same thread, without locks.
+ *
+ * @author Jason Waring
+ */
+public class GattOperationScheduler {
+
+    public static final long DEFAULT_TIMEOUT_MS = 2000;
+    public static final int DEFAULT_MAX_RETRIES = 2;
+
+    // Back off before re-issuing an operation the stack refused (e.g. still busy), up to a number
+    // of times.
+    private static final long REFUSED_RETRY_DELAY_MS = 20;
+    private static final int MAX_REFUSALS = 10;
+
+    // The longest wait for the acknowledgement of a write without response.
+    private static final long WRITE_PACING_MS = 100;
+
+    /**
+     * Issues operations on behalf of the scheduler.
+     */
+    public interface Dispatcher {
+
+        /**
+         * Issue the operation to the GATT stack.
+         *
+         * @param op The operation.
+         * @return {@link GattOperation#RESULT_PENDING} if a callback will complete it,
+         * {@link GattOperation#RESULT_COMPLETED} if it needs no acknowledgement, or
+         * {@link GattOperation#RESULT_REFUSED}.
+         */
+        int execute(GattOperation op);
+
+        /**
+         * An operation was dropped after exhausting its retries, either refused or timed out, or
+         * a write with response timed out.
+         *
+         * @param op The operation.
+         */
+        void onOperationFailed(GattOperation op);
+    }
+
+    private final Dispatcher dispatcher;
+    private final ScheduledExecutorService timer;
+    private final ArrayDeque<GattOperation>[] queues;
+    private final HashMap<UUID, GattOperation> coalescable = new HashMap<UUID, GattOperation>();
+    private GattOperation inFlight;
+    // A write that timed out, or was taken as sent, before it was acknowledged.
+    private GattOperation unacknowledged;
+    private ScheduledFuture<?> pendingTimeout;
+    private ScheduledFuture<?> pendingRetry;
+    private long timeoutMs = DEFAULT_TIMEOUT_MS;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+
+    @SuppressWarnings("unchecked")
+    public GattOperationScheduler(Dispatcher dispatcher, ScheduledExecutorService timer) {
+        this.dispatcher = dispatcher;
+        this.timer = timer;
+        this.queues = new ArrayDeque[GattOperation.PRIORITY_COUNT];
+        for (int i = 0; i < queues.length; ++i) {
+            queues[i] = new ArrayDeque<GattOperation>();
+        }
+    }
+
+    /**
+     * Set the acknowledgement timeout and retry budget for subsequent operations.
+     *
+     * @param timeoutMs  The timeout, in milliseconds.
+     * @param maxRetries The number of retries after the first attempt, other than for writes.
+     */
+    public void setTimeout(long timeoutMs, int maxRetries) {
+        this.timeoutMs = timeoutMs;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Queue an operation, and issue it if the link is idle.
+     *
+     * @param op The operation.
+     * @return False if the operation was coalesced into a queued write, rather than queued.
+     */
+    public boolean enqueue(GattOperation op) {
+        if (op.isCoalesced()) {
+            GattOperation queued = coalescable.get(op.getUuid());
+            if (queued != null && queued.getType() == op.getType()) {
+                queued.coalesce(op);
+                return false;
+            }
+            coalescable.put(op.getUuid(), op);
+        }
+
+        queues[op.getPriority()].add(op);
+        dispatchNext();
+        return true;
+    }
+
+    /**
+     * Complete the in-flight operation in response to a GATT callback. Callbacks that do not
+     * match the in-flight operation (e.g. after a timeout) are ignored. A write callback, of
+     * {@link GattOperation#TYPE_WRITE}, acknowledges either kind of write.
+     *
+     * @param type The operation type implied by the callback.
+     * @param uuid The characteristic UUID from the callback.
+     * @return The completed operation, or null.
+     */
+    public GattOperation complete(int type, UUID uuid) {
+        boolean write = type == GattOperation.TYPE_WRITE;
+
+        // Callbacks arrive in order, so a late acknowledgement comes before any other.
+        if (write && unacknowledged != null && unacknowledged.matches(unacknowledged.getType(), uuid)) {
+            unacknowledged = null;
+            return null;
+        }
+
+        GattOperation op = inFlight;
+        if (op == null || !(op.matches(type, uuid) || write && op.matches(GattOperation.TYPE_WRITE_NO_RESPONSE, uuid))) {
+            return null;
+        }
+
+        inFlight = null;
+        unacknowledged = null;
+        cancelTimeout();
+        dispatchNext();
+        return op;
+    }
+
+    /**
+     * Drop all queued and in-flight operations, e.g. on disconnection.
+     */
+    public void cancelAll() {
+        for (ArrayDeque<GattOperation> queue : queues) {
+            queue.clear();
+        }
+        coalescable.clear();
+
+        inFlight = null;
+        unacknowledged = null;
+        cancelTimeout();
+        if (pendingRetry != null) {
+            pendingRetry.cancel(false);
+            pendingRetry = null;
+        }
+    }
+
+    /**
+     * @return The number of queued operations, including the one in flight.
+     */
+    public int size() {
+        int size = (inFlight != null) ? 1 : 0;
+        for (ArrayDeque<GattOperation> queue : queues) {
+            size += queue.size();
+        }
+
+        return size;
+    }
+
+    // Issue queued operations until one is awaiting acknowledgement.
+    private void dispatchNext() {
+        while (inFlight == null && pendingRetry == null) {
+            GattOperation op = poll();
+            if (op == null) {
+                return;
+            }
+
+            op.issuedNanos = System.nanoTime();
+            int result = dispatcher.execute(op);
+            if (result == GattOperation.RESULT_REFUSED) {
+                if (++op.refusals > MAX_REFUSALS) {
+                    dispatcher.onOperationFailed(op);
+                } else {
+                    // Put it back at the head and try again shortly.
+                    requeue(op);
+                    pendingRetry = timer.schedule(retryTask, REFUSED_RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+                }
+
+                continue;
+            }
+
+            op.attempts++;
+            if (result == GattOperation.RESULT_PENDING) {
+                long waitMs = (op.getType() == GattOperation.TYPE_WRITE_NO_RESPONSE) ? WRITE_PACING_MS : timeoutMs;
+                inFlight = op;
+                pendingTimeout = timer.schedule(new TimeoutTask(op), waitMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private GattOperation poll() {
+        for (ArrayDeque<GattOperation> queue : queues) {
+            GattOperation op = queue.poll();
+            if (op != null) {
+                // Once issued, a write can no longer take a newer value.
+                if (op.isCoalesced() && coalescable.get(op.getUuid()) == op) {
+                    coalescable.remove(op.getUuid());
+                }
+                return op;
+            }
+        }
+
+        return null;
+    }
+
+    // Put an operation back at the head of its queue, to be retried. A coalesced write can take a
+    // newer value again, unless a newer write has been queued since it was issued.
+    private void requeue(GattOperation op) {
+        queues[op.getPriority()].addFirst(op);
+        if (op.isCoalesced() && !coalescable.containsKey(op.getUuid())) {
+            coalescable.put(op.getUuid(), op);
+        }
+    }
+
+    private void cancelTimeout() {
+        if (pendingTimeout != null) {
+            pendingTimeout.cancel(false);
+            pendingTimeout = null;
+        }
+    }
+
+    private void onTimeout(GattOperation op) {
+        if (inFlight != op) {
+            return;
+        }
+
+        inFlight = null;
+        pendingTimeout = null;
+
+        if (op.getType() == GattOperation.TYPE_WRITE_NO_RESPONSE) {
+            // Taken as sent, as retrying could send it twice.
+            unacknowledged = op;
+        } else if (op.getType() == GattOperation.TYPE_WRITE) {
+            // The device may have acted on it, so it is not sent again.
+            unacknowledged = op;
+            dispatcher.onOperationFailed(op);
+        } else if (op.attempts > maxRetries) {
+            dispatcher.onOperationFailed(op);
+        } else {
+            requeue(op);
+        }
+
+        dispatchNext();
+    }
+
+    private final Runnable retryTask = new Runnable() {
+        @Override
+        public void run() {
+            pendingRetry = null;
+            dispatchNext();
+        }
+    };
+
+    private class TimeoutTask implements Runnable {
+        private final GattOperation op;
+
+        TimeoutTask(GattOperation op) {
+            this.op = op;
+        }
+
+        @Override
+        public void run() {
+            onTimeout(op);
+        }
+    }
+}
@@ -0,0 +1,952 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The connection to a single GATT server: its transport, operation scheduler, characteristic
+ * index and profile.
+ * <p>
+ * A session has no Android dependencies. The service hosts it over an
+ * {@link AndroidGattTransport}, while a {@link FakeGattTransport} lets the same session,
+ * scheduling and decoding be load tested on a plain JVM.
+ * <p>
+ * A session is confined to its worker, a single-threaded executor. GATT events are handed over
+ * from the transport thread, and commands from the caller's thread, and the operation queue,
+ * decoding, filtering and dispatch to the listener all run on the worker, in order, without
+ * locks. Operation timeouts and reconnection attempts are scheduled on the same executor.
+ * <p>
+ * If the link is lost while the app still wants the device, and reconnection is enabled, a
+ * {@link ReconnectSupervisor} reconnects over the same transport and the session restores itself:
+ * the link parameters are negotiated again and the notifications the profile had enabled are
+ * enabled again, without the listener setting the device up a second time.
+ *
+ * @author Jason Waring
+ */
+public class GattSession {
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+
+    // The payloads of connection records, which the recorder copies.
+    private static final byte[] LINK_UP = {BlackBoxRecorder.CONNECTED};
+    private static final byte[] LINK_DOWN = {BlackBoxRecorder.DISCONNECTED};
+
+    private final String address;
+    private final long addressBits;
+    private final GattTransport transport;
+    private final BLEProfileBase profile;
+    private final CharacteristicIndex index = new CharacteristicIndex();
+    private final GattOperationScheduler scheduler;
+    private final ScheduledExecutorService worker;
+    private volatile Thread workerThread;
+    private final HashMap<String, Object> deviceInfo = new HashMap<String, Object>();
+    private volatile DeviceInfoStore deviceInfoStore;
+
+    // The device information reads still to arrive, whether they revalidate a cached copy, and
+    // whether a refresh was asked for meanwhile.
+    private int deviceInfoReads;
+    private boolean revalidating;
+    private boolean refreshPending;
+    private volatile BLEServiceListener listener;
+    private volatile BlackBoxRecorder recorder;
+    private final SessionStats stats = new SessionStats();
+    private volatile int connectionState = STATE_DISCONNECTED;
+    private volatile int requestedMtu = GattTransport.DEFAULT_MTU;
+    private volatile int requestedPriority = GattTransport.CONNECTION_PRIORITY_BALANCED;
+    private volatile int mtu = GattTransport.DEFAULT_MTU;
+    private volatile int connectionPriority = GattTransport.CONNECTION_PRIORITY_BALANCED;
+    private final ReconnectSupervisor supervisor;
+    private final LinkedHashSet<UUID> subscriptions = new LinkedHashSet<UUID>();
+
+    // True from connect() until disconnect(), so a lost link can be told from a requested one.
+    private boolean wanted;
+
+    // Timing of the callback being handled, on the worker.
+    private boolean inCallback;
+    private long callbackStartNanos;
+    private long decodeStartNanos;
+    private long dispatchNanos;
+
+    /**
+     * @param address   The device address.
+     * @param transport The transport to the device.
+     * @param profile   The device profile, which must not be attached to another session.
+     * @param worker    The single-threaded executor the session runs on, which also schedules
+     *                  operation timeouts. Sessions may share a worker.
+     */
+    public GattSession(String address, GattTransport transport, BLEProfileBase profile, ScheduledExecutorService worker) {
+        this.address = address;
+        this.addressBits = BlackBoxRecorder.addressToLong(address);
+        this.transport = transport;
+        this.profile = profile;
+        this.worker = worker;
+        this.scheduler = new GattOperationScheduler(dispatcher, worker);
+        this.supervisor = new ReconnectSupervisor(worker, reconnector);
+
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                workerThread = Thread.currentThread();
+            }
+        });
+
+        index.register(BLEConstants.HANDLE_DEV_INFO_SYSTEM_ID, BLEConstants.DEV_INFO_SYSTEM_ID);
+        index.register(BLEConstants.HANDLE_DEV_INFO_MODEL_NUMBER, BLEConstants.DEV_INFO_MODEL_NUMBER);
+        index.register(BLEConstants.HANDLE_DEV_INFO_SERIAL_NUMBER, BLEConstants.DEV_INFO_SERIAL_NUMBER);
+        index.register(BLEConstants.HANDLE_DEV_INFO_FIRMWARE_REV, BLEConstants.DEV_INFO_FIRMWARE_REV);
+        index.register(BLEConstants.HANDLE_DEV_INFO_HARDWARE_REV, BLEConstants.DEV_INFO_HARDWARE_REV);
+        index.register(BLEConstants.HANDLE_DEV_INFO_SOFTWARE_REV, BLEConstants.DEV_INFO_SOFTWARE_REV);
+        index.register(BLEConstants.HANDLE_DEV_INFO_MANUFACTURER_NAME, BLEConstants.DEV_INFO_MANUFACTURER_NAME);
+        index.register(BLEConstants.HANDLE_DEV_INFO_11073_CERT_DATA, BLEConstants.DEV_INFO_11073_CERT_DATA);
+
+        profile.attach(this);
+        profile.registerCharacteristics(index);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public BLEProfileBase getProfile() {
+        return profile;
+    }
+
+    ScheduledExecutorService getWorker() {
+        return worker;
+    }
+
+    public int getConnectionState() {
+        return connectionState;
+    }
+
+    /**
+     * @return The negotiated ATT MTU.
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * @return The connection priority, one of the {@link GattTransport} CONNECTION_PRIORITY_ constants.
+     */
+    public int getConnectionPriority() {
+        return connectionPriority;
+    }
+
+    /**
+     * Set the link parameters to negotiate once services are discovered, for subsequent
+     * connections. The MTU request is queued ahead of the profile's notification set-up, so
+     * notifications are only enabled once the MTU is settled. The outcome is reported to
+     * {@link BLEServiceListener#onLinkChanged(int, int)}.
+     *
+     * @param mtu                The ATT MTU to request, or {@link GattTransport#DEFAULT_MTU} to
+     *                           keep the default.
+     * @param connectionPriority The connection priority, or
+     *                           {@link GattTransport#CONNECTION_PRIORITY_BALANCED} for the default.
+     */
+    public void setLinkParameters(int mtu, int connectionPriority) {
+        this.requestedMtu = Math.max(GattTransport.DEFAULT_MTU, Math.min(mtu, GattTransport.MAX_MTU));
+        this.requestedPriority = connectionPriority;
+    }
+
+    /**
+     * Reconnect when the link is lost, rather than disconnect. The reconnection is reported to
+     * {@link BLEServiceListener#onReconnecting(int)} and then
+     * {@link BLEServiceListener#onReconnected(long, int)}, or to
+     * {@link BLEServiceListener#onDisconnected()} if the attempts run out.
+     *
+     * @param enabled     True to reconnect.
+     * @param maxAttempts The attempts before giving up, or
+     *                    {@link ReconnectSupervisor#UNLIMITED_ATTEMPTS}.
+     * @param baseDelayMs The delay before the first attempt, in milliseconds.
+     * @param maxDelayMs  The longest delay between attempts, in milliseconds.
+     * @see ReconnectSupervisor
+     */
+    public void setReconnectPolicy(final boolean enabled, final int maxAttempts, final long baseDelayMs, final long maxDelayMs) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                supervisor.configure(enabled, maxAttempts, baseDelayMs, maxDelayMs);
+                if (!enabled) {
+                    supervisor.cancel();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param handle The characteristic handle.
+     * @return The UUID registered against the handle, discovered or not, or null.
+     */
+    public UUID uuidOf(int handle) {
+        return index.uuidOf(handle);
+    }
+
+    /**
+     * Set the listener that receives connection events and decoded data.
+     *
+     * @param listener The listener, or null.
+     */
+    public void setListener(BLEServiceListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param periodic True for the periodic stats report, which measures notification rates over
+     *                 a window of its own, so that other callers do not reset it.
+     * @return A snapshot of the session metrics.
+     * @see SessionStats
+     */
+    public HashMap<String, Object> getStats(boolean periodic) {
+        return stats.toMap(index, periodic);
+    }
+
+    /**
+     * Set the recorder that raw transport events are appended to.
+     *
+     * @param recorder The recorder, or null to stop recording.
+     */
+    public void setRecorder(BlackBoxRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Set the store that device information is cached in, between connections.
+     *
+     * @param store The store, or null to read the device information on every connection.
+     * @see #requestDeviceInfo(boolean)
+     */
+    public void setDeviceInfoStore(DeviceInfoStore store) {
+        this.deviceInfoStore = store;
+    }
+
+    /**
+     * Set the acknowledgement timeout and retry budget for GATT operations.
+     *
+     * @param timeoutMs  The timeout, in milliseconds.
+     * @param maxRetries The number of retries after the first attempt.
+     */
+    public void setOperationTimeout(final long timeoutMs, final int maxRetries) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.setTimeout(timeoutMs, maxRetries);
+            }
+        });
+    }
+
+    /**
+     * Connect, or reconnect, to the device. The result is reported to the listener, and a
+     * connection that cannot be initiated is reported as disconnected.
+     */
+    public void connect() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                supervisor.cancel();
+                if (!transport.connect(address, transportCallback)) {
+                    setConnectionState(STATE_DISCONNECTED);
+                    return;
+                }
+
+                wanted = true;
+                setConnectionState(STATE_CONNECTING);
+            }
+        });
+    }
+
+    public void disconnect() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                wanted = false;
+                supervisor.cancel();
+                transport.disconnect();
+                setConnectionState(STATE_DISCONNECTED);
+            }
+        });
+    }
+
+    /**
+     * Release the transport. The session may not be reused.
+     */
+    public void close() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                wanted = false;
+                supervisor.cancel();
+                scheduler.cancelAll();
+                index.clear();
+                transport.close();
+            }
+        });
+    }
+
+    /**
+     * Request a read on a characteristic.
+     *
+     * @param uuid The characteristic UUID.
+     */
+    public void readCharacteristic(final UUID uuid) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (index.isDiscovered(uuid)) {
+                    enqueue(GattOperation.read(uuid, GattOperation.PRIORITY_BULK));
+                }
+            }
+        });
+    }
+
+    /**
+     * Request a read on a registered characteristic.
+     *
+     * @param handle The characteristic handle
+     */
+    public void readCharacteristic(final int handle) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                UUID uuid = index.get(handle);
+                if (uuid != null) {
+                    enqueue(GattOperation.read(uuid, GattOperation.PRIORITY_BULK));
+                }
+            }
+        });
+    }
+
+    /**
+     * Request a write to a characteristic. A write without response completes once the stack has
+     * sent it, without waiting for the peripheral to answer.
+     *
+     * @param uuid         The characteristic UUID.
+     * @param data         The data to write.
+     * @param withResponse If false, write without response.
+     */
+    public void writeCharacteristic(final UUID uuid, final byte[] data, final boolean withResponse) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (index.isDiscovered(uuid)) {
+                    enqueueWrite(uuid, data, withResponse);
+                }
+            }
+        });
+    }
+
+    /**
+     * Request a write to a registered characteristic.
+     *
+     * @param handle       The characteristic handle
+     * @param data         The data to write.
+     * @param withResponse If false, write without response.
+     */
+    public void writeCharacteristic(final int handle, final byte[] data, final boolean withResponse) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                UUID uuid = index.get(handle);
+                if (uuid != null) {
+                    enqueueWrite(uuid, data, withResponse);
+                }
+            }
+        });
+    }
+
+    /**
+     * Request a write of a setpoint to a registered characteristic. Only the latest value
+     * matters, so a newer setpoint replaces one that is still queued, rather than queueing behind
+     * it. Writing without response keeps the latency of each setpoint independent of the rate at
+     * which they arrive.
+     *
+     * @param handle       The characteristic handle
+     * @param data         The data to write.
+     * @param withResponse If false, write without response.
+     */
+    public void writeSetpoint(final int handle, final byte[] data, final boolean withResponse) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                UUID uuid = index.get(handle);
+                if (uuid != null && !scheduler.enqueue(GattOperation.coalescedWrite(uuid, data, withResponse, GattOperation.PRIORITY_COMMAND))) {
+                    stats.recordCoalesced();
+                }
+                stats.recordQueueDepth(scheduler.size());
+            }
+        });
+    }
+
+    /**
+     * Enables or disables notification on a characteristic.
+     *
+     * @param uuid    The characteristic UUID.
+     * @param enabled If true, enable notification.  False otherwise.
+     */
+    public void setCharacteristicNotification(final UUID uuid, final boolean enabled) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (index.isDiscovered(uuid)) {
+                    subscribe(uuid, enabled);
+                    enqueue(GattOperation.setNotification(uuid, enabled, GattOperation.PRIORITY_SETUP));
+                }
+            }
+        });
+    }
+
+    /**
+     * Enables or disables notification on a registered characteristic.
+     *
+     * @param handle  The characteristic handle
+     * @param enabled If true, enable notification.  False otherwise.
+     */
+    public void setCharacteristicNotification(final int handle, final boolean enabled) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                UUID uuid = index.get(handle);
+                if (uuid != null) {
+                    subscribe(uuid, enabled);
+                    enqueue(GattOperation.setNotification(uuid, enabled, GattOperation.PRIORITY_SETUP));
+                }
+            }
+        });
+    }
+
+    /**
+     * Publish the device information, as "deviceInfo" data. A cached copy is published straight
+     * away, and revalidated by reading only the firmware revision: the rest is read again only if
+     * the firmware changed. Without a cached copy, every device information characteristic the
+     * device has is read, and the result is cached once the last read arrives.
+     * <p>
+     * A request made while the reads of an earlier one are outstanding is not issued again,
+     * except that a refresh during a revalidation reads everything once the revalidation is done.
+     *
+     * @param refresh True to read everything again, rather than use the cache.
+     */
+    public void requestDeviceInfo(final boolean refresh) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (deviceInfoReads > 0) {
+                    refreshPending |= refresh && revalidating;
+                    return;
+                }
+
+                DeviceInfoStore store = deviceInfoStore;
+                HashMap<String, Object> cached = (store != null && !refresh) ? DeviceInfoDecoder.parse(store.load(address)) : null;
+                UUID firmware = index.get(BLEConstants.HANDLE_DEV_INFO_FIRMWARE_REV);
+                boolean revalidate = cached != null && firmware != null && cached.containsKey(DeviceInfoDecoder.FIRMWARE_REV_TAG);
+
+                deviceInfo.clear();
+                revalidating = revalidate;
+                if (revalidate) {
+                    deviceInfo.putAll(cached);
+                    deviceInfoReads = 1;
+                    enqueue(GattOperation.read(firmware, GattOperation.PRIORITY_BULK));
+
+                    BLEServiceListener l = listener;
+                    if (l != null) {
+                        l.onData("deviceInfo", new HashMap<String, Object>(deviceInfo));
+                    }
+                } else {
+                    readDeviceInfo();
+                }
+            }
+        });
+    }
+
+    /**
+     * A set of commands to update, for the device.
+     *
+     * @param commands The commands
+     */
+    public void updateDevice(final Map commands) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                profile.updateDevice(commands);
+            }
+        });
+    }
+
+    /**
+     * Replace the channel filters of the profile.
+     *
+     * @param config The filter configuration per channel, or null to remove all filters.
+     * @see BLEProfileBase#setFilters(Map)
+     */
+    public void setFilters(final Map config) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                profile.setFilters(config);
+            }
+        });
+    }
+
+    // Run a task on the worker, in order with the GATT events. A task posted from the worker,
+    // such as a write the profile makes as it decodes, is run at once.
+    private void post(Runnable task) {
+        if (Thread.currentThread() == workerThread) {
+            task.run();
+            return;
+        }
+
+        try {
+            worker.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // The worker has been shut down, along with the session.
+        }
+    }
+
+    void publishData(String dataType, HashMap<String, Object> data) {
+        BLEServiceListener l = listener;
+        if (l != null) {
+            long start = System.nanoTime();
+            l.onData(dataType, data);
+
+            long end = System.nanoTime();
+            // Data published outside a GATT callback, e.g. cached, has no arrival to measure from.
+            if (inCallback) {
+                dispatchNanos += end - start;
+                stats.recordDispatch(end - callbackStartNanos);
+            }
+        }
+    }
+
+    private void enqueueWrite(UUID uuid, byte[] data, boolean withResponse) {
+        enqueue((withResponse) ?
+                    GattOperation.write(uuid, data, GattOperation.PRIORITY_COMMAND) :
+                    GattOperation.writeNoResponse(uuid, data, GattOperation.PRIORITY_COMMAND));
+    }
+
+    // Read every device information characteristic the device has, counting the reads.
+    private void readDeviceInfo() {
+        deviceInfoReads = 0;
+        for (int handle = BLEConstants.HANDLE_DEV_INFO_SYSTEM_ID; handle <= BLEConstants.HANDLE_DEV_INFO_11073_CERT_DATA; handle++) {
+            UUID uuid = index.get(handle);
+            if (uuid != null) {
+                deviceInfoReads++;
+                enqueue(GattOperation.read(uuid, GattOperation.PRIORITY_BULK));
+            }
+        }
+    }
+
+    // A device information read arrived, or failed with a null value.
+    private void deviceInfoRead(int handle, byte[] value) {
+        if (revalidating) {
+            boolean reread = refreshPending;
+            revalidating = false;
+            refreshPending = false;
+            deviceInfoReads = 0;
+            if (value != null && handle == BLEConstants.HANDLE_DEV_INFO_FIRMWARE_REV) {
+                Object cached = deviceInfo.get(DeviceInfoDecoder.FIRMWARE_REV_TAG);
+                DeviceInfoDecoder.decode(handle, value, deviceInfo);
+                reread |= !deviceInfo.get(DeviceInfoDecoder.FIRMWARE_REV_TAG).equals(cached);
+            }
+
+            // The cached copy has been published; a new firmware may change all of it.
+            if (reread) {
+                deviceInfo.clear();
+                readDeviceInfo();
+            }
+            return;
+        }
+
+        if (value != null) {
+            DeviceInfoDecoder.decode(handle, value, deviceInfo);
+            publishData("deviceInfo", new HashMap<String, Object>(deviceInfo));
+        }
+
+        DeviceInfoStore store = deviceInfoStore;
+        if (deviceInfoReads > 0 && --deviceInfoReads == 0 && store != null && !deviceInfo.isEmpty()) {
+            store.save(address, DeviceInfoDecoder.encode(deviceInfo));
+        }
+    }
+
+    // Keep the set of notifications the profile enabled, to restore them after a reconnection.
+    private void subscribe(UUID uuid, boolean enabled) {
+        if (enabled) {
+            subscriptions.add(uuid);
+        } else {
+            subscriptions.remove(uuid);
+        }
+    }
+
+    private void enqueue(GattOperation op) {
+        scheduler.enqueue(op);
+        stats.recordQueueDepth(scheduler.size());
+    }
+
+    private void complete(int type, UUID uuid) {
+        GattOperation op = scheduler.complete(type, uuid);
+        if (op != null) {
+            stats.recordRoundTrip(System.nanoTime() - op.getIssuedNanos());
+        }
+        stats.recordQueueDepth(scheduler.size());
+    }
+
+    // Time the decoding of a callback, less the time its listeners took to dispatch events.
+    // Dispatch latency is measured from the arrival of the callback, before its hand-over.
+    private void beginCallback(long arrivalNanos) {
+        inCallback = true;
+        callbackStartNanos = arrivalNanos;
+        decodeStartNanos = System.nanoTime();
+        dispatchNanos = 0;
+    }
+
+    private void endCallback() {
+        inCallback = false;
+        stats.recordDecode(System.nanoTime() - decodeStartNanos - dispatchNanos);
+    }
+
+    private void connectionChanged(boolean connected) {
+        if (connected) {
+            setConnectionState(STATE_CONNECTED);
+            transport.discoverServices();
+
+        } else if (!wanted || connectionState == STATE_DISCONNECTED) {
+            setConnectionState(STATE_DISCONNECTED);
+
+        } else if (supervisor.isReconnecting()) {
+            // An attempt failed, or its link was lost before the session was restored. The
+            // supervisor schedules the next attempt.
+            connectionState = STATE_CONNECTING;
+            resetLink();
+            supervisor.attemptFailed();
+
+        } else if (connectionState == STATE_CONNECTED) {
+            linkLost();
+
+        } else {
+            // A failed first connection is reported as before; only a lost link is retried.
+            setConnectionState(STATE_DISCONNECTED);
+        }
+    }
+
+    private void servicesDiscovered(int status) {
+        if (status != GattTransport.STATUS_SUCCESS) {
+            return;
+        }
+
+        index.bind(transport.getCharacteristics());
+
+        // Negotiate the link ahead of any notification set-up the listener queues.
+        if (requestedMtu > GattTransport.DEFAULT_MTU) {
+            enqueue(GattOperation.requestMtu(requestedMtu, GattOperation.PRIORITY_SETUP));
+        }
+        if (requestedPriority != GattTransport.CONNECTION_PRIORITY_BALANCED) {
+            enqueue(GattOperation.connectionPriority(requestedPriority, GattOperation.PRIORITY_SETUP));
+        }
+
+        if (supervisor.isReconnecting()) {
+            restore();
+        } else {
+            BLEServiceListener l = listener;
+            if (l != null) {
+                l.onServicesDiscovered();
+            }
+        }
+    }
+
+    private void setConnectionState(int cs) {
+        connectionState = cs;
+        if (cs == STATE_DISCONNECTED) {
+            resetLink();
+            subscriptions.clear();
+        }
+
+        BLEServiceListener l = listener;
+        if (l == null) {
+            return;
+        }
+
+        switch (cs) {
+            case STATE_DISCONNECTED:
+                l.onDisconnected();
+                break;
+
+            case STATE_CONNECTED:
+                l.onConnected();
+                break;
+
+            case STATE_CONNECTING:
+                l.onConnecting();
+                break;
+        }
+    }
+
+    // Drop the operations and handles of a link that has gone.
+    private void resetLink() {
+        scheduler.cancelAll();
+
+        // The device information reads were dropped with the rest of the queue.
+        deviceInfoReads = 0;
+        revalidating = false;
+        refreshPending = false;
+
+        index.clear();
+        mtu = GattTransport.DEFAULT_MTU;
+        connectionPriority = GattTransport.CONNECTION_PRIORITY_BALANCED;
+    }
+
+    // The link was lost without being asked to disconnect. The operations of the old link are
+    // dropped, but the subscriptions are kept for the new one.
+    private void linkLost() {
+        connectionState = STATE_CONNECTING;
+        resetLink();
+        if (!supervisor.linkLost(System.nanoTime())) {
+            setConnectionState(STATE_DISCONNECTED);
+        }
+    }
+
+    // Restore the session on the new link, in place of the listener's set-up.
+    private void restore() {
+        for (UUID uuid : subscriptions) {
+            if (index.isDiscovered(uuid)) {
+                enqueue(GattOperation.setNotification(uuid, true, GattOperation.PRIORITY_SETUP));
+            }
+        }
+
+        int attempts = supervisor.getAttempts();
+        long reconnectMs = supervisor.reconnected(System.nanoTime());
+        stats.recordReconnect(reconnectMs);
+
+        BLEServiceListener l = listener;
+        if (l != null) {
+            l.onReconnected(reconnectMs, attempts);
+        }
+    }
+
+    private void linkChanged() {
+        BLEServiceListener l = listener;
+        if (l != null) {
+            l.onLinkChanged(mtu, connectionPriority);
+        }
+    }
+
+    private void record(int type, UUID uuid, int status, byte[] value) {
+        BlackBoxRecorder r = recorder;
+        if (r != null) {
+            r.append(type, addressBits, (uuid != null) ? index.handleOf(uuid) : CharacteristicIndex.NO_HANDLE, status, value);
+        }
+    }
+
+    private void decode(UUID uuid, byte[] value, long timestamp) {
+        int handle = index.handleOf(uuid);
+        if (DeviceInfoDecoder.isDeviceInfo(handle)) {
+            deviceInfoRead(handle, value);
+        } else {
+            profile.decodeData(handle, value, timestamp);
+        }
+    }
+
+    // Issue operations to the transport, on behalf of the scheduler.
+    private final GattOperationScheduler.Dispatcher dispatcher = new GattOperationScheduler.Dispatcher() {
+        @Override
+        public int execute(GattOperation op) {
+            switch (op.getType()) {
+                case GattOperation.TYPE_READ:
+                    return transport.readCharacteristic(op.getUuid());
+
+                case GattOperation.TYPE_WRITE:
+                    return transport.writeCharacteristic(op.getUuid(), op.getValue(), true);
+
+                case GattOperation.TYPE_WRITE_NO_RESPONSE:
+                    return transport.writeCharacteristic(op.getUuid(), op.getValue(), false);
+
+                case GattOperation.TYPE_SET_NOTIFICATION:
+                    return transport.setNotification(op.getUuid(), op.isEnabled());
+
+                case GattOperation.TYPE_REQUEST_MTU:
+                    return transport.requestMtu(op.getArgument());
+
+                case GattOperation.TYPE_CONNECTION_PRIORITY:
+                    int result = transport.requestConnectionPriority(op.getArgument());
+                    if (result == GattOperation.RESULT_COMPLETED) {
+                        connectionPriority = op.getArgument();
+                        linkChanged();
+                    }
+                    return result;
+            }
+
+            return GattOperation.RESULT_REFUSED;
+        }
+
+        @Override
+        public void onOperationFailed(GattOperation op) {
+            // Dropped; the scheduler has already moved on to the next operation.
+            stats.recordFailure();
+
+            if (op.getType() == GattOperation.TYPE_READ) {
+                int handle = index.handleOf(op.getUuid());
+                if (DeviceInfoDecoder.isDeviceInfo(handle)) {
+                    deviceInfoRead(handle, null);
+                }
+            }
+        }
+    };
+
+    // Makes the reconnection attempts, on the worker.
+    private final ReconnectSupervisor.Callback reconnector = new ReconnectSupervisor.Callback() {
+        @Override
+        public void onAttempt(int attempt) {
+            if (!wanted || connectionState != STATE_CONNECTING) {
+                return;
+            }
+
+            BLEServiceListener l = listener;
+            if (l != null) {
+                l.onReconnecting(attempt);
+            }
+            if (!transport.connect(address, transportCallback)) {
+                supervisor.attemptFailed();
+            }
+        }
+
+        @Override
+        public void onAttemptTimedOut() {
+            // Cancel the pending connection, or a link that was not restored in time.
+            if (wanted) {
+                connectionState = STATE_CONNECTING;
+                resetLink();
+                transport.disconnect();
+            }
+        }
+
+        @Override
+        public void onGaveUp() {
+            if (wanted && connectionState == STATE_CONNECTING) {
+                wanted = false;
+                transport.disconnect();
+                setConnectionState(STATE_DISCONNECTED);
+            }
+        }
+    };
+
+    // Records raw events as they arrive, on the transport thread, and hands them to the worker.
+    private final GattTransport.Callback transportCallback = new GattTransport.Callback() {
+        @Override
+        public void onConnectionStateChange(final boolean connected, int status) {
+            record(BlackBoxRecorder.TYPE_CONNECTION, null, status, (connected) ? LINK_UP : LINK_DOWN);
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    connectionChanged(connected);
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(final int status) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    servicesDiscovered(status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(final UUID uuid, final byte[] value, final int status, final long timestamp) {
+            record(BlackBoxRecorder.TYPE_READ, uuid, status, value);
+            final long arrival = System.nanoTime();
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (status == GattTransport.STATUS_SUCCESS) {
+                            beginCallback(arrival);
+                            try {
+                                decode(uuid, value, timestamp);
+                            } finally {
+                                endCallback();
+                            }
+                        } else if (DeviceInfoDecoder.isDeviceInfo(index.handleOf(uuid))) {
+                            deviceInfoRead(index.handleOf(uuid), null);
+                        }
+                    } finally {
+                        complete(GattOperation.TYPE_READ, uuid);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(final UUID uuid, final byte[] value, final int status, final long timestamp) {
+            record(BlackBoxRecorder.TYPE_WRITE, uuid, status, value);
+            final long arrival = System.nanoTime();
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    // Decode before completing, as the next queued write may reuse the characteristic.
+                    try {
+                        if (status == GattTransport.STATUS_SUCCESS) {
+                            beginCallback(arrival);
+                            try {
+                                profile.decodeData(index.handleOf(uuid), value, timestamp);
+                            } finally {
+                                endCallback();
+                            }
+                        }
+                    } finally {
+                        complete(GattOperation.TYPE_WRITE, uuid);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicChanged(final UUID uuid, final byte[] value, final long timestamp) {
+            record(BlackBoxRecorder.TYPE_NOTIFY, uuid, GattTransport.STATUS_SUCCESS, value);
+            final long arrival = System.nanoTime();
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    beginCallback(arrival);
+                    try {
+                        int handle = index.handleOf(uuid);
+                        stats.recordNotification(handle);
+                        profile.decodeData(handle, value, timestamp);
+                    } finally {
+                        endCallback();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onNotificationWrite(final UUID uuid, int status) {
+            record(BlackBoxRecorder.TYPE_DESCRIPTOR_WRITE, uuid, status, null);
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    complete(GattOperation.TYPE_SET_NOTIFICATION, uuid);
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(final int negotiated, final int status) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (status == GattTransport.STATUS_SUCCESS) {
+                        mtu = negotiated;
+                    }
+
+                    linkChanged();
+                    complete(GattOperation.TYPE_REQUEST_MTU, null);
+                }
+            });
+        }
+    };
+}
@@ -0,0 +1,96 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * A narrow transport between a {@link GattSession} and a GATT server.
+ * <p>
+ * {@link AndroidGattTransport} is backed by the Android Bluetooth GATT API, while
+ * {@link FakeGattTransport} emulates a peripheral in memory, so the session, scheduling,
+ * decoding and dispatch can be exercised on a plain JVM. Characteristics are addressed by
+ * UUID, and values are passed as raw bytes.
+ * <p>
+ * Operations return one of the {@link GattOperation} results: refused, pending (a callback
+ * follows) or completed.
+ *
+ * @author Jason Waring
+ */
+public interface GattTransport {
+
+    public static final int STATUS_SUCCESS = 0;
+
+    // The default ATT MTU, and the largest that may be requested.
+    public static final int DEFAULT_MTU = 23;
+    public static final int MAX_MTU = 517;
+
+    // Connection priorities, as BluetoothGatt.CONNECTION_PRIORITY_*.
+    public static final int CONNECTION_PRIORITY_BALANCED = 0;
+    public static final int CONNECTION_PRIORITY_HIGH = 1;
+    public static final int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    /**
+     * Receives events from the transport. Callbacks may be made on any thread. A characteristic
+     * value comes with its timestamp, the wall clock time it arrived in milliseconds, or for a
+     * replay, the time it arrived when it was recorded.
+     */
+    public interface Callback {
+
+        void onConnectionStateChange(boolean connected, int status);
+
+        void onServicesDiscovered(int status);
+
+        void onCharacteristicRead(UUID uuid, byte[] value, int status, long timestamp);
+
+        void onCharacteristicWrite(UUID uuid, byte[] value, int status, long timestamp);
+
+        void onCharacteristicChanged(UUID uuid, byte[] value, long timestamp);
+
+        void onNotificationWrite(UUID uuid, int status);
+
+        void onMtuChanged(int mtu, int status);
+    }
+
+    /**
+     * Connect, or reconnect, to the peripheral.
+     *
+     * @param address  The device address.
+     * @param callback The callback for transport events.
+     * @return True if the connection was initiated.
+     */
+    boolean connect(String address, Callback callback);
+
+    void disconnect();
+
+    /**
+     * Release the connection. The transport may not be reused.
+     */
+    void close();
+
+    boolean discoverServices();
+
+    /**
+     * @return The UUIDs of the discovered characteristics.
+     */
+    Collection<UUID> getCharacteristics();
+
+    int readCharacteristic(UUID uuid);
+
+    int writeCharacteristic(UUID uuid, byte[] value, boolean withResponse);
+
+    /**
+     * Enable or disable notification, including the client configuration descriptor write.
+     */
+    int setNotification(UUID uuid, boolean enabled);
+
+    /**
+     * Request an ATT MTU. A pending request is completed by {@link Callback#onMtuChanged}.
+     */
+    int requestMtu(int mtu);
+
+    /**
+     * Request a connection priority, one of the CONNECTION_PRIORITY_ constants. This needs no
+     * acknowledgement.
+     */
+    int requestConnectionPriority(int priority);
+}
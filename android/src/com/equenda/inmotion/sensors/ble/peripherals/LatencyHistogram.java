@@ -0,0 +1,84 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-bucket latency histogram, cheap enough to record on the GATT callback thread.
+ * <p>
+ * Bucket i counts latencies below 2^i microseconds, and the last bucket counts everything
+ * longer. Recording is a few atomic adds, with no lock and no allocation. Percentiles are
+ * estimated as the upper bound of the bucket they fall in.
+ *
+ * @author Jason Waring
+ */
+public class LatencyHistogram {
+
+    public static final int BUCKET_COUNT = 20;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param nanos The latency, in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+
+        long micros = nanos / 1000;
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The count, mean, max and 50th, 90th and 99th percentiles in microseconds, and the
+     * bucket counts.
+     */
+    public HashMap<String, Object> toMap() {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("count", total);
+        map.put("meanUs", (total > 0) ? totalNanos.get() / 1000.0 / total : 0.0);
+        map.put("maxUs", maxNanos.get() / 1000);
+        map.put("p50Us", percentile(counts, total, 0.50));
+        map.put("p90Us", percentile(counts, total, 0.90));
+        map.put("p99Us", percentile(counts, total, 0.99));
+        map.put("buckets", counts);
+        return map;
+    }
+
+    private long percentile(long[] counts, long total, double fraction) {
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return 1L << i;
+            }
+        }
+
+        return maxNanos.get() / 1000;
+    }
+}
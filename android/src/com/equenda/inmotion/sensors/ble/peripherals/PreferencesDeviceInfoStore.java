@@ -0,0 +1,37 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Locale;
+
+/**
+ * A {@link DeviceInfoStore} over the shared preferences of the app, with one entry per device
+ * address. Saves are applied asynchronously.
+ *
+ * @author Jason Waring
+ */
+public class PreferencesDeviceInfoStore implements DeviceInfoStore {
+
+    private static final String PREFERENCES_NAME = "com.equenda.inmotion.sensors.ble.deviceinfo";
+
+    private final SharedPreferences preferences;
+
+    public PreferencesDeviceInfoStore(Context context) {
+        this.preferences = context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public String load(String address) {
+        return preferences.getString(keyOf(address), null);
+    }
+
+    @Override
+    public void save(String address, String deviceInfo) {
+        preferences.edit().putString(keyOf(address), deviceInfo).apply();
+    }
+
+    private static String keyOf(String address) {
+        return address.toUpperCase(Locale.US);
+    }
+}
@@ -0,0 +1,232 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the reconnection attempts of a session whose link was lost, with a jittered
+ * exponential backoff.
+ * <p>
+ * Only one attempt is pending at a time. The next is scheduled once the previous one has failed,
+ * or has been abandoned after the attempt timeout, as a reconnection over a reused GATT client
+ * may stay pending in the background rather than fail. Each delay doubles the one before, from
+ * the base delay up to the maximum, and a random half of each delay is dropped, so the sessions
+ * of several devices lost together do not retry in step. Attempts carry on until the session is
+ * restored, or they run out. Supervision is off until it is configured.
+ * <p>
+ * A supervisor is confined to the worker of its session, which also runs the attempts.
+ *
+ * @author Jason Waring
+ */
+public class ReconnectSupervisor {
+
+    public static final long DEFAULT_BASE_DELAY_MS = 500;
+    public static final long DEFAULT_MAX_DELAY_MS = 30000;
+    public static final int UNLIMITED_ATTEMPTS = 0;
+    public static final long DEFAULT_ATTEMPT_TIMEOUT_MS = 10000;
+
+    /**
+     * Makes the attempts, on the worker.
+     */
+    public interface Callback {
+
+        /**
+         * Start an attempt. Its failure is reported to {@link #attemptFailed()}.
+         *
+         * @param attempt The attempt number, from 1.
+         */
+        void onAttempt(int attempt);
+
+        /**
+         * The pending attempt was not answered within the attempt timeout, and should be
+         * cancelled before the next.
+         */
+        void onAttemptTimedOut();
+
+        /**
+         * The last attempt was not answered in time, so reconnection has stopped.
+         */
+        void onGaveUp();
+    }
+
+    private final ScheduledExecutorService timer;
+    private final Callback callback;
+    private final Random random = new Random();
+
+    private boolean enabled;
+    private int maxAttempts = UNLIMITED_ATTEMPTS;
+    private long baseDelayMs = DEFAULT_BASE_DELAY_MS;
+    private long maxDelayMs = DEFAULT_MAX_DELAY_MS;
+
+    // The attempts made since the link was lost, and when it was lost, or 0 when not reconnecting.
+    private int attempts;
+    private long lostNanos;
+    private boolean attemptPending;
+
+    // The next attempt, or the timeout of the pending one.
+    private ScheduledFuture<?> pending;
+
+    /**
+     * @param timer    The worker of the session, which the attempts are run on.
+     * @param callback Makes the attempts.
+     */
+    public ReconnectSupervisor(ScheduledExecutorService timer, Callback callback) {
+        this.timer = timer;
+        this.callback = callback;
+    }
+
+    /**
+     * Set the reconnection policy, which applies from the next lost link.
+     *
+     * @param enabled     True to reconnect when the link is lost.
+     * @param maxAttempts The attempts before giving up, or {@link #UNLIMITED_ATTEMPTS}.
+     * @param baseDelayMs The delay before the first attempt, in milliseconds.
+     * @param maxDelayMs  The longest delay between attempts, in milliseconds.
+     */
+    public void configure(boolean enabled, int maxAttempts, long baseDelayMs, long maxDelayMs) {
+        this.maxAttempts = Math.max(UNLIMITED_ATTEMPTS, maxAttempts);
+        this.baseDelayMs = Math.max(1, baseDelayMs);
+        this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return True between a lost link and the reconnection, or giving up.
+     */
+    public boolean isReconnecting() {
+        return lostNanos != 0;
+    }
+
+    /**
+     * @return The attempts made since the link was lost.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * The link was lost. If supervision is enabled, the first attempt is scheduled after the
+     * jittered base delay.
+     *
+     * @param now The time the link was lost, from {@link System#nanoTime()}.
+     * @return False if supervision is not enabled, so the session is disconnected.
+     */
+    public boolean linkLost(long now) {
+        if (!enabled) {
+            return false;
+        }
+
+        cancelPending();
+        attempts = 0;
+        attemptPending = false;
+        lostNanos = (now != 0) ? now : 1;
+        schedule(nextDelay(1));
+        return true;
+    }
+
+    /**
+     * The pending attempt failed, or its link was lost before the session was restored. The next
+     * attempt is scheduled after the backoff, or reconnection gives up.
+     */
+    public void attemptFailed() {
+        if (lostNanos == 0 || !attemptPending) {
+            return;
+        }
+
+        attemptPending = false;
+        cancelPending();
+        next();
+    }
+
+    /**
+     * The session is restored.
+     *
+     * @param now The time it was restored, from {@link System#nanoTime()}.
+     * @return The time since the link was lost, in milliseconds.
+     */
+    public long reconnected(long now) {
+        long elapsed = (lostNanos != 0) ? TimeUnit.NANOSECONDS.toMillis(now - lostNanos) : 0;
+        stop();
+        return elapsed;
+    }
+
+    /**
+     * Stop reconnecting, e.g. as the app disconnected.
+     */
+    public void cancel() {
+        stop();
+    }
+
+    /**
+     * @param made The attempts made, from 1.
+     * @return The delay before the next attempt, in milliseconds: half of the backoff, plus a
+     * random part of the other half.
+     */
+    long nextDelay(int made) {
+        long backoff = Math.min(maxDelayMs, baseDelayMs << Math.min(Math.max(0, made - 1), 30));
+        long half = backoff / 2;
+        return half + (long) (random.nextDouble() * (backoff - half));
+    }
+
+    // Schedule the next attempt after the backoff or, once the attempts have run out, give up.
+    private void next() {
+        if (maxAttempts != UNLIMITED_ATTEMPTS && attempts >= maxAttempts) {
+            stop();
+            callback.onGaveUp();
+        } else {
+            schedule(nextDelay(attempts + 1));
+        }
+    }
+
+    private void schedule(long delayMs) {
+        pending = timer.schedule(attemptTask, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void stop() {
+        cancelPending();
+        attemptPending = false;
+        lostNanos = 0;
+    }
+
+    // Make an attempt, and time it out unless it is answered first.
+    private final Runnable attemptTask = new Runnable() {
+        @Override
+        public void run() {
+            if (lostNanos == 0) {
+                return;
+            }
+
+            attempts++;
+            attemptPending = true;
+            pending = timer.schedule(timeoutTask, DEFAULT_ATTEMPT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            callback.onAttempt(attempts);
+        }
+    };
+
+    private final Runnable timeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            if (lostNanos == 0 || !attemptPending) {
+                return;
+            }
+
+            attemptPending = false;
+            pending = null;
+            callback.onAttemptTimedOut();
+            next();
+        }
+    };
+
+    private void cancelPending() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * A {@link GattTransport} driven by recorded events rather than a radio, for replaying a
+ * {@link BlackBoxRecorder} capture through a {@link GattSession} on a plain JVM.
+ * <p>
+ * Events are delivered with {@link #deliver(int, UUID, int, byte[])} on the caller's thread, so a
+ * replay is deterministic. Operations the session issues complete at once and go nowhere, as the
+ * capture already holds their results.
+ *
+ * @author Jason Waring
+ */
+public class ReplayTransport implements GattTransport {
+
+    private final ArrayList<UUID> characteristics = new ArrayList<UUID>();
+    private volatile Callback callback;
+
+    /**
+     * Add a characteristic, reported by service discovery.
+     *
+     * @param uuid The characteristic UUID.
+     * @return This transport.
+     */
+    public ReplayTransport addCharacteristic(UUID uuid) {
+        if (!characteristics.contains(uuid)) {
+            characteristics.add(uuid);
+        }
+        return this;
+    }
+
+    /**
+     * Deliver a recorded event to the session.
+     *
+     * @param type      The record type, one of the {@link BlackBoxRecorder} TYPE_ constants.
+     * @param uuid      The characteristic UUID, or null for a connection record.
+     * @param status    The recorded status.
+     * @param payload   The recorded payload.
+     * @param timestamp The wall clock time of the record, in milliseconds.
+     */
+    public void deliver(int type, UUID uuid, int status, byte[] payload, long timestamp) {
+        Callback cb = callback;
+        if (cb == null) {
+            return;
+        }
+
+        switch (type) {
+            case BlackBoxRecorder.TYPE_CONNECTION:
+                cb.onConnectionStateChange(payload != null && payload.length > 0 && payload[0] == BlackBoxRecorder.CONNECTED, status);
+                break;
+
+            case BlackBoxRecorder.TYPE_READ:
+                cb.onCharacteristicRead(uuid, payload, status, timestamp);
+                break;
+
+            case BlackBoxRecorder.TYPE_WRITE:
+                cb.onCharacteristicWrite(uuid, payload, status, timestamp);
+                break;
+
+            case BlackBoxRecorder.TYPE_NOTIFY:
+                cb.onCharacteristicChanged(uuid, payload, timestamp);
+                break;
+
+            case BlackBoxRecorder.TYPE_DESCRIPTOR_WRITE:
+                cb.onNotificationWrite(uuid, status);
+                break;
+        }
+    }
+
+    @Override
+    public boolean connect(String address, Callback callback) {
+        this.callback = callback;
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public void close() {
+        callback = null;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        Callback cb = callback;
+        if (cb != null) {
+            cb.onServicesDiscovered(STATUS_SUCCESS);
+        }
+        return true;
+    }
+
+    @Override
+    public Collection<UUID> getCharacteristics() {
+        return characteristics;
+    }
+
+    @Override
+    public int readCharacteristic(UUID uuid) {
+        return GattOperation.RESULT_COMPLETED;
+    }
+
+    @Override
+    public int writeCharacteristic(UUID uuid, byte[] value, boolean withResponse) {
+        return GattOperation.RESULT_COMPLETED;
+    }
+
+    @Override
+    public int setNotification(UUID uuid, boolean enabled) {
+        return GattOperation.RESULT_COMPLETED;
+    }
+
+    @Override
+    public int requestMtu(int mtu) {
+        return GattOperation.RESULT_COMPLETED;
+    }
+
+    @Override
+    public int requestConnectionPriority(int priority) {
+        return GattOperation.RESULT_COMPLETED;
+    }
+}
@@ -0,0 +1,69 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The recent samples of a device, as a {@link SampleRing} per named channel.
+ * <p>
+ * Profiles look their channels up once and record into the rings directly from the decode path.
+ * The app reads a range of a channel back through the module.
+ *
+ * @author Jason Waring
+ */
+public class SampleHistory {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final ConcurrentHashMap<String, SampleRing> channels = new ConcurrentHashMap<String, SampleRing>();
+
+    public SampleHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The number of samples held per channel.
+     */
+    public SampleHistory(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get or create a channel.
+     *
+     * @param name The channel name.
+     * @return The channel.
+     */
+    public SampleRing channel(String name) {
+        SampleRing ring = channels.get(name);
+        if (ring == null) {
+            SampleRing created = new SampleRing(capacity);
+            ring = channels.putIfAbsent(name, created);
+            if (ring == null) {
+                ring = created;
+            }
+        }
+
+        return ring;
+    }
+
+    /**
+     * @param name The channel name.
+     * @return The channel, or null if nothing has been recorded on it.
+     */
+    public SampleRing get(String name) {
+        return channels.get(name);
+    }
+
+    /**
+     * @return The channel names, sorted.
+     */
+    public List<String> getChannels() {
+        List<String> names = new ArrayList<String>(channels.keySet());
+        Collections.sort(names);
+        return names;
+    }
+}
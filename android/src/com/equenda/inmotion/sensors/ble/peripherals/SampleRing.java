@@ -0,0 +1,107 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+/**
+ * A fixed capacity ring of timestamped int samples, for one channel of a device.
+ * <p>
+ * Samples are held in primitive arrays, so recording never allocates, and the oldest sample is
+ * overwritten once the ring is full. Timestamps are expected to be non-decreasing, so a range
+ * query finds its start with a binary search, and only copies the samples in the range.
+ *
+ * @author Jason Waring
+ */
+public class SampleRing {
+
+    /**
+     * A copy of a range of samples.
+     */
+    public static final class Slice {
+        public final long[] timestamps;
+        public final int[] values;
+
+        Slice(long[] timestamps, int[] values) {
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+    }
+
+    private final long[] timestamps;
+    private final int[] values;
+    private int head;
+    private int size;
+
+    /**
+     * @param capacity The number of samples held.
+     */
+    public SampleRing(int capacity) {
+        this.timestamps = new long[capacity];
+        this.values = new int[capacity];
+    }
+
+    public int getCapacity() {
+        return values.length;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Record a sample, overwriting the oldest if the ring is full.
+     *
+     * @param timestamp The time of the sample, in milliseconds.
+     * @param value     The value.
+     */
+    public synchronized void add(long timestamp, int value) {
+        timestamps[head] = timestamp;
+        values[head] = value;
+
+        head = (head + 1) % values.length;
+        if (size < values.length) {
+            size++;
+        }
+    }
+
+    /**
+     * Copy the samples at or after a time, oldest first.
+     *
+     * @param fromTs The earliest timestamp, in milliseconds.
+     * @return The samples, which may be empty.
+     */
+    public synchronized Slice since(long fromTs) {
+        // Find the first logical index with a timestamp at or after fromTs.
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timestamps[physical(mid)] < fromTs) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        int n = size - lo;
+        long[] ts = new long[n];
+        int[] vs = new int[n];
+
+        // Copy in at most two runs, either side of the wrap.
+        int start = physical(lo);
+        int first = Math.min(n, values.length - start);
+        System.arraycopy(timestamps, start, ts, 0, first);
+        System.arraycopy(values, start, vs, 0, first);
+        System.arraycopy(timestamps, 0, ts, first, n - first);
+        System.arraycopy(values, 0, vs, first, n - first);
+
+        return new Slice(ts, vs);
+    }
+
+    // Map a logical index, 0 being the oldest sample, to an array index.
+    private int physical(int i) {
+        return (head - size + i + values.length) % values.length;
+    }
+}
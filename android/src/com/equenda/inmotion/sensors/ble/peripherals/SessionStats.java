@@ -0,0 +1,118 @@
+package com.equenda.inmotion.sensors.ble.peripherals;
+
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The hot-path metrics of a {@link GattSession}: notifications per characteristic, decode time,
+ * time from GATT callback to event dispatch, operation queue depth, round-trip time and failures.
+ * <p>
+ * Recording is allocation-free, with no lock. Maps are only built by {@link #toMap}, and
+ * notification rates are measured over the time since the previous call by the same consumer:
+ * the periodic report and other callers each keep a window of their own.
+ *
+ * @author Jason Waring
+ */
+public class SessionStats {
+
+    private final AtomicLongArray notifications = new AtomicLongArray(CharacteristicIndex.MAX_HANDLES);
+    private final LatencyHistogram decode = new LatencyHistogram();
+    private final LatencyHistogram dispatch = new LatencyHistogram();
+    private final LatencyHistogram roundTrip = new LatencyHistogram();
+    private final AtomicLong opsCompleted = new AtomicLong();
+    private final AtomicLong opsFailed = new AtomicLong();
+    private final AtomicLong writesCoalesced = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private volatile long lastReconnectMs;
+    private volatile int queueDepth;
+
+    // The notification counts and time of the last snapshot, by consumer.
+    private static final int ON_DEMAND = 0;
+    private static final int PERIODIC = 1;
+    private final long[][] lastNotifications = new long[2][CharacteristicIndex.MAX_HANDLES];
+    private final long[] lastSnapshotNanos = {System.nanoTime(), System.nanoTime()};
+
+    void recordNotification(int handle) {
+        if (handle > CharacteristicIndex.NO_HANDLE && handle < CharacteristicIndex.MAX_HANDLES) {
+            notifications.incrementAndGet(handle);
+        }
+    }
+
+    void recordDecode(long nanos) {
+        decode.record(nanos);
+    }
+
+    void recordDispatch(long nanos) {
+        dispatch.record(nanos);
+    }
+
+    void recordRoundTrip(long nanos) {
+        opsCompleted.incrementAndGet();
+        roundTrip.record(nanos);
+    }
+
+    void recordFailure() {
+        opsFailed.incrementAndGet();
+    }
+
+    void recordCoalesced() {
+        writesCoalesced.incrementAndGet();
+    }
+
+    void recordReconnect(long millis) {
+        reconnects.incrementAndGet();
+        lastReconnectMs = millis;
+    }
+
+    void recordQueueDepth(int depth) {
+        queueDepth = depth;
+
+        long max = maxQueueDepth.get();
+        while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+            max = maxQueueDepth.get();
+        }
+    }
+
+    /**
+     * @param index    The index, to name the characteristics by UUID.
+     * @param periodic True for the periodic report, false for any other caller.
+     * @return A snapshot of the metrics, with latencies in microseconds.
+     */
+    synchronized HashMap<String, Object> toMap(CharacteristicIndex index, boolean periodic) {
+        int consumer = (periodic) ? PERIODIC : ON_DEMAND;
+        long[] last = lastNotifications[consumer];
+        long now = System.nanoTime();
+        double elapsed = Math.max(1, now - lastSnapshotNanos[consumer]) / 1e9;
+        lastSnapshotNanos[consumer] = now;
+
+        HashMap<String, Object> rates = new HashMap<String, Object>();
+        HashMap<String, Object> counts = new HashMap<String, Object>();
+        for (int handle = CharacteristicIndex.NO_HANDLE + 1; handle < CharacteristicIndex.MAX_HANDLES; handle++) {
+            long count = notifications.get(handle);
+            UUID uuid = index.uuidOf(handle);
+            if (count > 0 && uuid != null) {
+                counts.put(uuid.toString(), count);
+                rates.put(uuid.toString(), (count - last[handle]) / elapsed);
+            }
+            last[handle] = count;
+        }
+
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("notifications", counts);
+        map.put("notifyRate", rates);
+        map.put("decode", decode.toMap());
+        map.put("dispatch", dispatch.toMap());
+        map.put("roundTrip", roundTrip.toMap());
+        map.put("queueDepth", queueDepth);
+        map.put("maxQueueDepth", maxQueueDepth.get());
+        map.put("opsCompleted", opsCompleted.get());
+        map.put("opsFailed", opsFailed.get());
+        map.put("writesCoalesced", writesCoalesced.get());
+        map.put("reconnects", reconnects.get());
+        map.put("lastReconnectMs", lastReconnectMs);
+        return map;
+    }
+}
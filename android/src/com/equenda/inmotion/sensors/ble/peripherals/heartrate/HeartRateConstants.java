@@ -16,6 +16,8 @@
 
 package com.equenda.inmotion.sensors.ble.peripherals.heartrate;
 
+import com.equenda.inmotion.sensors.ble.peripherals.BLEConstants;
+
 /**
  * Constants associated with heart rate sensor.
  */
@@ -25,4 +27,13 @@ public interface HeartRateConstants {
     public static final String SERVICE_UUID = "0000180d-0000-1000-8000-00805f9b34fb";
     public static final String HEART_RATE_BPM_CHAR_UUID = "00002a37-0000-1000-8000-00805f9b34fb";
     public static final String BODY_SENSOR_LOCATION_CHAR_UUID = "00002a38-0000-1000-8000-00805f9b34fb";
+
+    public static final int HANDLE_HEART_RATE_BPM = BLEConstants.HANDLE_FIRST_SERVICE;
+    public static final int HANDLE_BODY_SENSOR_LOCATION = BLEConstants.HANDLE_FIRST_SERVICE + 1;
+
+    // Heart rate variability, e.g. update({hrv: {window: 120, interval: 5000}}).
+    public static final String HRV_TAG = "hrv";
+    public static final String HRV_WINDOW_TAG = "window";
+    public static final String HRV_INTERVAL_TAG = "interval";
+    public static final long DEFAULT_HRV_INTERVAL_MS = 5000;
 }
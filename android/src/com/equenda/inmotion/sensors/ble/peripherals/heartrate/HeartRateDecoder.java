@@ -0,0 +1,74 @@
+package com.equenda.inmotion.sensors.ble.peripherals.heartrate;
+
+import com.equenda.inmotion.sensors.ble.peripherals.CharacteristicLayout;
+
+/**
+ * Decodes the heart rate characteristics.
+ * <p>
+ * This works on the raw characteristic value only, and has no Android dependencies, so that it
+ * can be exercised and benchmarked on a plain JVM. The byte layouts are in
+ * {@link HeartRateLayouts}.
+ *
+ * @author Jason Waring
+ */
+public final class HeartRateDecoder {
+
+    // The Heart Rate Measurement flags, in byte 0 of the value. The format flag is set when the
+    // heart rate is a 16-bit, rather than 8-bit, unsigned int.
+    public static final int FLAG_FORMAT_UINT16 = 0x01;
+    public static final int FLAG_CONTACT_DETECTED = 0x02;
+    public static final int FLAG_CONTACT_SUPPORTED = 0x04;
+    public static final int FLAG_ENERGY_EXPENDED = 0x08;
+    public static final int FLAG_RR_INTERVALS = 0x10;
+
+    private HeartRateDecoder() {
+    }
+
+    /**
+     * Decode only the heart rate from a heart rate measurement. The format is taken from the
+     * flags in byte 0. See {@link HeartRateMeasurement} for the rest of the measurement.
+     *
+     * @param data The characteristic value.
+     * @return The heart rate in beats per minute.
+     */
+    public static int decodeHeartRate(byte[] data) {
+        CharacteristicLayout layout = ((data[0] & FLAG_FORMAT_UINT16) != 0)
+                                      ? HeartRateLayouts.MEASUREMENT_UINT16
+                                      : HeartRateLayouts.MEASUREMENT_UINT8;
+        return layout.decodeInt(HeartRateLayouts.HEART_RATE_FIELD, data);
+    }
+
+    /**
+     * Decode the body sensor location.
+     *
+     * @param data The characteristic value.
+     * @return The sensor location name.
+     */
+    public static String decodeSensorLocation(byte[] data) {
+        switch (HeartRateLayouts.SENSOR_LOCATION.decodeInt(0, data)) {
+            case 0:
+                return "other";
+
+            case 1:
+                return "chest";
+
+            case 2:
+                return "wrist";
+
+            case 3:
+                return "finger";
+
+            case 4:
+                return "hand";
+
+            case 5:
+                return "ear lobe";
+
+            case 6:
+                return "foot";
+
+            default:
+                return "unknown";
+        }
+    }
+}
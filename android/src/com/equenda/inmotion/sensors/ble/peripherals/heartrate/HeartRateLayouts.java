@@ -0,0 +1,39 @@
+package com.equenda.inmotion.sensors.ble.peripherals.heartrate;
+
+import com.equenda.inmotion.sensors.ble.peripherals.CharacteristicLayout;
+
+/**
+ * The byte layouts of the heart rate characteristics, compiled once when the class is loaded.
+ * Values are little-endian, as for all Bluetooth SIG characteristics.
+ *
+ * @author Jason Waring
+ */
+public final class HeartRateLayouts {
+
+    // A heart rate measurement, with an 8-bit value.
+    public static final CharacteristicLayout MEASUREMENT_UINT8 = new CharacteristicLayout.Builder()
+        .uint8("flags", 0)
+        .uint8("heartRate", 1)
+        .build();
+
+    // A heart rate measurement, with a 16-bit value.
+    public static final CharacteristicLayout MEASUREMENT_UINT16 = new CharacteristicLayout.Builder()
+        .uint8("flags", 0)
+        .uint16("heartRate", 1, true)
+        .build();
+
+    // A little-endian 16-bit field, read at an offset: the energy expended, or an RR interval.
+    public static final CharacteristicLayout UINT16 = new CharacteristicLayout.Builder()
+        .uint16("value", 0, true)
+        .build();
+
+    public static final CharacteristicLayout SENSOR_LOCATION = new CharacteristicLayout.Builder()
+        .uint8("sensorLocation", 0)
+        .build();
+
+    // The index of the heart rate in the measurement layouts.
+    static final int HEART_RATE_FIELD = 1;
+
+    private HeartRateLayouts() {
+    }
+}
@@ -0,0 +1,202 @@
+package com.equenda.inmotion.sensors.ble.peripherals.heartrate;
+
+import com.equenda.inmotion.sensors.ble.peripherals.CharacteristicLayout;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A reusable, primitive backed Heart Rate Measurement (0x2A37), decoded as per the GATT
+ * specification: the flags in byte 0, the 8 or 16-bit heart rate, the sensor contact status, the
+ * optional energy expended and the optional list of RR intervals.
+ * <p>
+ * Decoding is done in place and never allocates. The RR intervals of the latest measurement are
+ * held in an int array, in milliseconds, with the time of each beat alongside. A strap sends the
+ * intervals of the beats since its last notification, so the beats are timed back from the
+ * arrival of the notification, and then carried on from the previous beat for as long as the two
+ * clocks agree, so that notification latency does not jitter the beat times. After a gap, such
+ * as a reconnection, the clocks disagree and the beats are timed from the notification again.
+ * Conversion to a map is only done by {@link #toMap(boolean)}, when a measurement is published.
+ *
+ * @author Jason Waring
+ */
+public class HeartRateMeasurement {
+
+    // An attribute value is at most 512 bytes, after the flags and an 8-bit heart rate.
+    public static final int MAX_RR_INTERVALS = (512 - 2) / 2;
+
+    // The sensor contact status.
+    public static final int CONTACT_UNSUPPORTED = 0;
+    public static final int CONTACT_NOT_DETECTED = 1;
+    public static final int CONTACT_DETECTED = 2;
+
+    // Marker for energy expended that was not sent.
+    public static final int ENERGY_ABSENT = -1;
+
+    // How far the beat clock may drift from the notification clock before it is resynchronised.
+    public static final long MAX_BEAT_DRIFT_US = 1000000L;
+
+    private int flags;
+    private int heartRate;
+    private int energyExpended = ENERGY_ABSENT;
+    private final int[] rrIntervals = new int[MAX_RR_INTERVALS];
+    private final long[] beatTimes = new long[MAX_RR_INTERVALS];
+    private int rrCount;
+
+    // The time of the last beat, in microseconds, or 0 before the first beat.
+    private long lastBeatUs;
+
+    /**
+     * Decode a measurement.
+     *
+     * @param data The characteristic value.
+     * @param now  The time the value arrived, in milliseconds.
+     * @return False if the value is too short to hold a heart rate.
+     */
+    public boolean decode(byte[] data, long now) {
+        rrCount = 0;
+        energyExpended = ENERGY_ABSENT;
+
+        if (data.length < 2) {
+            return false;
+        }
+
+        flags = data[0] & 0xFF;
+        CharacteristicLayout measurement = ((flags & HeartRateDecoder.FLAG_FORMAT_UINT16) != 0)
+                                           ? HeartRateLayouts.MEASUREMENT_UINT16
+                                           : HeartRateLayouts.MEASUREMENT_UINT8;
+        if (!measurement.isPresent(HeartRateLayouts.HEART_RATE_FIELD, data, 0)) {
+            return false;
+        }
+
+        heartRate = measurement.decodeInt(HeartRateLayouts.HEART_RATE_FIELD, data);
+        int offset = ((flags & HeartRateDecoder.FLAG_FORMAT_UINT16) != 0) ? 3 : 2;
+
+        CharacteristicLayout uint16 = HeartRateLayouts.UINT16;
+        if ((flags & HeartRateDecoder.FLAG_ENERGY_EXPENDED) != 0) {
+            if (!uint16.isPresent(0, data, offset)) {
+                return true;
+            }
+            energyExpended = uint16.decodeInt(0, data, offset);
+            offset += 2;
+        }
+
+        if ((flags & HeartRateDecoder.FLAG_RR_INTERVALS) != 0) {
+            int n = Math.min((data.length - offset) >> 1, MAX_RR_INTERVALS);
+            long totalUs = 0;
+
+            for (int i = 0; i < n; i++, offset += 2) {
+                // RR intervals are sent in 1/1024 seconds.
+                int rr = uint16.decodeInt(0, data, offset);
+                rrIntervals[i] = (rr * 1000 + 512) >> 10;
+                beatTimes[i] = rr * 15625L / 16;
+                totalUs += beatTimes[i];
+            }
+
+            rrCount = n;
+            timeBeats(now * 1000, totalUs);
+        }
+
+        return true;
+    }
+
+    // Turn the interval of each beat, in beatTimes, into the time of the beat.
+    private void timeBeats(long nowUs, long totalUs) {
+        long beatUs = lastBeatUs;
+        if (beatUs == 0 || Math.abs(beatUs + totalUs - nowUs) > MAX_BEAT_DRIFT_US) {
+            // Time back from the arrival of the notification, but never before the last beat.
+            beatUs = Math.max(nowUs - totalUs, lastBeatUs);
+        }
+
+        for (int i = 0; i < rrCount; i++) {
+            beatUs += beatTimes[i];
+            beatTimes[i] = beatUs / 1000;
+        }
+
+        lastBeatUs = beatUs;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return The heart rate in beats per minute.
+     */
+    public int getHeartRate() {
+        return heartRate;
+    }
+
+    /**
+     * @return One of the CONTACT_ constants.
+     */
+    public int getSensorContact() {
+        if ((flags & HeartRateDecoder.FLAG_CONTACT_SUPPORTED) == 0) {
+            return CONTACT_UNSUPPORTED;
+        }
+        return ((flags & HeartRateDecoder.FLAG_CONTACT_DETECTED) != 0) ? CONTACT_DETECTED : CONTACT_NOT_DETECTED;
+    }
+
+    /**
+     * @return The energy expended in kilojoules, or {@link #ENERGY_ABSENT}.
+     */
+    public int getEnergyExpended() {
+        return energyExpended;
+    }
+
+    /**
+     * @return The number of RR intervals in the latest measurement.
+     */
+    public int getRrCount() {
+        return rrCount;
+    }
+
+    /**
+     * @param i The index, between 0 and {@link #getRrCount()}.
+     * @return The RR interval, in milliseconds.
+     */
+    public int getRrInterval(int i) {
+        return rrIntervals[i];
+    }
+
+    /**
+     * @param i The index, between 0 and {@link #getRrCount()}.
+     * @return The time of the beat that ended the interval, in milliseconds.
+     */
+    public long getBeatTime(int i) {
+        return beatTimes[i];
+    }
+
+    /**
+     * Convert the measurement to the map published to the app. The RR intervals and beat times
+     * are copied into packed arrays, one of each per measurement.
+     *
+     * @param withBeats False to leave out the RR intervals, e.g. if they have been published.
+     * @return A new map of the measurement.
+     */
+    public HashMap<String, Object> toMap(boolean withBeats) {
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        values.put("heartRate", heartRate);
+
+        switch (getSensorContact()) {
+            case CONTACT_DETECTED:
+                values.put("sensorContact", "detected");
+                break;
+
+            case CONTACT_NOT_DETECTED:
+                values.put("sensorContact", "not-detected");
+                break;
+        }
+
+        if (energyExpended != ENERGY_ABSENT) {
+            values.put("energyExpended", energyExpended);
+        }
+
+        if (withBeats && rrCount > 0) {
+            values.put("rrIntervals", Arrays.copyOf(rrIntervals, rrCount));
+            values.put("beatTimes", Arrays.copyOf(beatTimes, rrCount));
+        }
+
+        return values;
+    }
+}
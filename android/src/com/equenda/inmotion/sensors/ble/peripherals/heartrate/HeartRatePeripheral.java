@@ -5,6 +5,9 @@ import android.bluetooth.BluetoothDevice;
 import android.os.IBinder;
 import com.equenda.inmotion.sensors.ble.peripherals.BLEPeripheralBase;
 import com.equenda.inmotion.sensors.ble.peripherals.BLEServiceBase;
+import com.equenda.inmotion.sensors.ble.peripherals.GattSession;
+
+import java.util.Map;
 
 /**
  * Bluetooth Low-Energy Heart Rate sensor peripheral device
@@ -29,14 +32,26 @@ public class HeartRatePeripheral extends BLEPeripheralBase {
         return "heartRate";
     }
 
+    @Override
+    public void update(Map values) {
+        super.update(values);
+
+        if (values.containsKey(HeartRateConstants.HRV_TAG)) {
+            GattSession session = getSession();
+            if (session != null) {
+                session.updateDevice(values);
+            }
+        }
+    }
+
     @Override
     protected BLEServiceBase buildBLEService(IBinder service) {
         return ((HeartRateService.LocalBinder) service).getService();
     }
 
     @Override
-    protected void handleServiceDiscovery(BLEServiceBase bleService) {
-        bleService.setCharacteristicNotification(HeartRateConstants.HEART_RATE_BPM_CHAR_UUID,true);
-        bleService.readCharacteristic(HeartRateConstants.BODY_SENSOR_LOCATION_CHAR_UUID);
+    protected void handleServiceDiscovery(GattSession session) {
+        session.setCharacteristicNotification(HeartRateConstants.HANDLE_HEART_RATE_BPM, true);
+        session.readCharacteristic(HeartRateConstants.HANDLE_BODY_SENSOR_LOCATION);
     }
 }
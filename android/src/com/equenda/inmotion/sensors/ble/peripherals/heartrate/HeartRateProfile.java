@@ -0,0 +1,122 @@
+
+package com.equenda.inmotion.sensors.ble.peripherals.heartrate;
+
+import com.equenda.inmotion.sensors.ble.peripherals.BLEProfileBase;
+import com.equenda.inmotion.sensors.ble.peripherals.CharacteristicIndex;
+import com.equenda.inmotion.sensors.ble.peripherals.SampleRing;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bluetooth heart rate sensor profile. This builds on the profile base, and is hosted by a
+ * session, which handles all of the connectivity.
+ * <p>
+ * The primary responsibility of this module is to decode the characteristics and publish the
+ * decoded values.
+ *
+ * @author Jason Waring
+ */
+public class HeartRateProfile extends BLEProfileBase {
+
+    private final HeartRateMeasurement measurement = new HeartRateMeasurement();
+    private boolean measured;
+    private String sensorLocation;
+    private final SampleRing heartRateHistory = getHistory().channel("heartRate");
+    private final SampleRing rrHistory = getHistory().channel("rrInterval");
+
+    // Replaced, rather than changed, when the app reconfigures it.
+    private HrvAnalyzer hrv = new HrvAnalyzer(HrvAnalyzer.DEFAULT_WINDOW);
+    private long hrvIntervalMs = HeartRateConstants.DEFAULT_HRV_INTERVAL_MS;
+    private long lastHrvTime;
+
+    @Override
+    public void registerCharacteristics(CharacteristicIndex index) {
+        index.register(HeartRateConstants.HANDLE_HEART_RATE_BPM, HeartRateConstants.HEART_RATE_BPM_CHAR_UUID);
+        index.register(HeartRateConstants.HANDLE_BODY_SENSOR_LOCATION, HeartRateConstants.BODY_SENSOR_LOCATION_CHAR_UUID);
+    }
+
+    /**
+     * Configure the heart rate variability: the window in beats, and the least interval between
+     * published metrics in milliseconds, or 0 to stop publishing them.
+     */
+    @Override
+    public void updateDevice(Map commands) {
+        Object config = commands.get(HeartRateConstants.HRV_TAG);
+        if (config instanceof Map) {
+            Map hrvConfig = (Map) config;
+            if (hrvConfig.containsKey(HeartRateConstants.HRV_INTERVAL_TAG)) {
+                hrvIntervalMs = asLong(hrvConfig.get(HeartRateConstants.HRV_INTERVAL_TAG), hrvIntervalMs);
+            }
+            if (hrvConfig.containsKey(HeartRateConstants.HRV_WINDOW_TAG)) {
+                hrv = new HrvAnalyzer((int) asLong(hrvConfig.get(HeartRateConstants.HRV_WINDOW_TAG), HrvAnalyzer.DEFAULT_WINDOW));
+            }
+        }
+    }
+
+    @Override
+    public void decodeData(final int handle, final byte[] data, final long now) {
+
+        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
+        // carried out as per profile specifications:
+        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
+        if (handle == HeartRateConstants.HANDLE_HEART_RATE_BPM) {
+            if (!measurement.decode(data, now)) {
+                return;
+            }
+
+            measured = true;
+            int heartRate = measurement.getHeartRate();
+            heartRateHistory.add(now, heartRate);
+
+            // Each beat is recorded at its own time.
+            HrvAnalyzer analyzer = hrv;
+            int rrCount = measurement.getRrCount();
+            for (int i = 0; i < rrCount; i++) {
+                rrHistory.add(measurement.getBeatTime(i), measurement.getRrInterval(i));
+                analyzer.add(measurement.getRrInterval(i));
+            }
+
+            // The heart rate filter gates the whole event. The beats of a filtered measurement
+            // are still kept in the history and the variability.
+            if (accept("heartRate", now, heartRate)) {
+                publishMeasurement(true);
+            }
+
+            // The variability is a derived, low rate data type of its own.
+            long interval = hrvIntervalMs;
+            if (interval > 0 && rrCount > 0 && analyzer.size() >= HrvAnalyzer.MIN_WINDOW
+                && now - lastHrvTime >= interval) {
+                lastHrvTime = now;
+                publishData(HeartRateConstants.HRV_TAG, analyzer.toMap());
+            }
+
+        } else if (handle == HeartRateConstants.HANDLE_BODY_SENSOR_LOCATION) {
+            sensorLocation = HeartRateDecoder.decodeSensorLocation(data);
+
+            publishMeasurement(false);
+        }
+    }
+
+    // Publish the latest measurement, with its beats only when it has just been decoded.
+    private void publishMeasurement(boolean withBeats) {
+        HashMap<String, Object> values = measured ? measurement.toMap(withBeats) : new HashMap<String, Object>();
+        if (sensorLocation != null) {
+            values.put("sensorLocation", sensorLocation);
+        }
+
+        publishData("sensors", values);
+    }
+
+    private static long asLong(Object value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return (long) Double.parseDouble(value.toString());
+        } catch (Throwable ex) {
+            return defaultValue;
+        }
+    }
+}
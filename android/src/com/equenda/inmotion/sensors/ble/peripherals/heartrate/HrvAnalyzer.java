@@ -0,0 +1,174 @@
+package com.equenda.inmotion.sensors.ble.peripherals.heartrate;
+
+import java.util.HashMap;
+
+/**
+ * Sliding window heart rate variability over a stream of RR intervals: RMSSD, SDNN, pNN50 and
+ * the mean heart rate.
+ * <p>
+ * The last N intervals are held in a primitive ring, alongside running sums of the intervals, of
+ * their squares, and of the squared successive differences, and a count of the differences over
+ * 50 ms. A beat adds its terms and takes away those of the beat that leaves the window, so each
+ * beat costs the same whatever the window length. The sums are exact integers, in milliseconds,
+ * so they never drift however long the stream runs.
+ * <p>
+ * Intervals outside a physiological range are dropped as artifacts, and the successive difference
+ * is taken across them. An analyzer is only used on the session worker.
+ *
+ * @author Jason Waring
+ */
+public class HrvAnalyzer {
+
+    public static final int DEFAULT_WINDOW = 120;
+    public static final int MIN_WINDOW = 2;
+    public static final int MAX_WINDOW = 4096;
+
+    // The range of plausible RR intervals, in milliseconds: 24 to 240 bpm.
+    public static final int MIN_RR_MS = 250;
+    public static final int MAX_RR_MS = 2500;
+
+    // The successive difference counted by pNN50, in milliseconds.
+    public static final int NN50_MS = 50;
+
+    private final int[] ring;
+    private int head;
+    private int size;
+
+    private long sumRr;
+    private long sumRrSquared;
+    private long sumDiffSquared;
+    private int nn50;
+
+    /**
+     * @param window The number of beats in the window.
+     */
+    public HrvAnalyzer(int window) {
+        ring = new int[Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, window))];
+    }
+
+    public int getWindow() {
+        return ring.length;
+    }
+
+    /**
+     * @return The number of beats in the window, up to the window length.
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+        sumRr = 0;
+        sumRrSquared = 0;
+        sumDiffSquared = 0;
+        nn50 = 0;
+    }
+
+    /**
+     * Add the RR interval of a beat.
+     *
+     * @param rrMs The RR interval, in milliseconds.
+     * @return False if the interval was dropped as an artifact.
+     */
+    public boolean add(int rrMs) {
+        if (rrMs < MIN_RR_MS || rrMs > MAX_RR_MS) {
+            return false;
+        }
+
+        int capacity = ring.length;
+        if (size == capacity) {
+            // The oldest beat, and its difference to the next, leave the window.
+            int oldest = ring[head];
+            int next = ring[(head + 1) % capacity];
+            sumRr -= oldest;
+            sumRrSquared -= (long) oldest * oldest;
+            removeDiff(next - oldest);
+            size--;
+        }
+
+        if (size > 0) {
+            int newest = ring[(head + capacity - 1) % capacity];
+            addDiff(rrMs - newest);
+        }
+
+        ring[head] = rrMs;
+        head = (head + 1) % capacity;
+        size++;
+        sumRr += rrMs;
+        sumRrSquared += (long) rrMs * rrMs;
+        return true;
+    }
+
+    private void addDiff(int diff) {
+        sumDiffSquared += (long) diff * diff;
+        if (Math.abs(diff) > NN50_MS) {
+            nn50++;
+        }
+    }
+
+    private void removeDiff(int diff) {
+        sumDiffSquared -= (long) diff * diff;
+        if (Math.abs(diff) > NN50_MS) {
+            nn50--;
+        }
+    }
+
+    /**
+     * @return The mean RR interval, in milliseconds, or 0 if the window is empty.
+     */
+    public double getMeanRr() {
+        return (size > 0) ? (double) sumRr / size : 0;
+    }
+
+    /**
+     * @return The mean heart rate, in beats per minute, or 0 if the window is empty.
+     */
+    public double getMeanHeartRate() {
+        return (sumRr > 0) ? 60000.0 * size / sumRr : 0;
+    }
+
+    /**
+     * @return The standard deviation of the RR intervals, in milliseconds.
+     */
+    public double getSdnn() {
+        if (size < 2) {
+            return 0;
+        }
+
+        // n.sum(x^2) - sum(x)^2 is exact in a long for any window.
+        long n = size;
+        double variance = (double) (n * sumRrSquared - sumRr * sumRr) / (n * (n - 1));
+        return Math.sqrt(Math.max(0, variance));
+    }
+
+    /**
+     * @return The root mean square of the successive differences, in milliseconds.
+     */
+    public double getRmssd() {
+        return (size > 1) ? Math.sqrt((double) sumDiffSquared / (size - 1)) : 0;
+    }
+
+    /**
+     * @return The percentage of successive differences over 50 ms.
+     */
+    public double getPnn50() {
+        return (size > 1) ? 100.0 * nn50 / (size - 1) : 0;
+    }
+
+    /**
+     * @return The metrics, as published to the app.
+     */
+    public HashMap<String, Object> toMap() {
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        values.put("beats", size);
+        values.put("window", ring.length);
+        values.put("meanHeartRate", getMeanHeartRate());
+        values.put("meanRr", getMeanRr());
+        values.put("sdnn", getSdnn());
+        values.put("rmssd", getRmssd());
+        values.put("pnn50", getPnn50());
+        return values;
+    }
+}
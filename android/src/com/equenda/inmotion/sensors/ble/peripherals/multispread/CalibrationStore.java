@@ -0,0 +1,25 @@
+package com.equenda.inmotion.sensors.ble.peripherals.multispread;
+
+/**
+ * Persists the encoded {@link LoadCellCalibration} of each device, by device address, so that a
+ * calibration survives reconnections and restarts of the app.
+ * <p>
+ * The store keeps the profile free of Android dependencies. Saves are made from the decoding
+ * thread, so they should not block on the disk.
+ *
+ * @author Jason Waring
+ */
+public interface CalibrationStore {
+
+    /**
+     * @param address The device address.
+     * @return The encoded calibration, or null if none was saved.
+     */
+    String load(String address);
+
+    /**
+     * @param address     The device address.
+     * @param calibration The encoded calibration.
+     */
+    void save(String address, String calibration);
+}
@@ -0,0 +1,202 @@
+package com.equenda.inmotion.sensors.ble.peripherals.multispread;
+
+import java.util.HashMap;
+
+/**
+ * Gathers the updates of the characteristics of a device into one coherent snapshot per device
+ * tick, and decides when the snapshot is published. The arrival time of each field is recorded,
+ * so a snapshot says how fresh each of its values is.
+ * <p>
+ * The policy is one of:
+ * <ul>
+ * <li>{@link #POLICY_ALL}: publish once every field the device sends has arrived. The tick is
+ * closed early, before the update that opens the next one, if a field arrives a second time or
+ * the window has passed since the first field of the tick, so a field that is only sent on change
+ * never holds up the others.</li>
+ * <li>{@link #POLICY_ANY}: publish after every update.</li>
+ * <li>{@link #POLICY_PERIOD}: publish at most once per period, with the latest value of each
+ * field. The period is checked as updates arrive, so a quiet device publishes nothing.</li>
+ * </ul>
+ * A synchronizer is only used on the worker of its session, so it needs no locks.
+ *
+ * @author Jason Waring
+ */
+public class FrameSynchronizer {
+
+    public static final int POLICY_ALL = 0;
+    public static final int POLICY_ANY = 1;
+    public static final int POLICY_PERIOD = 2;
+
+    public static final String ALL_POLICY_TAG = "all";
+    public static final String ANY_POLICY_TAG = "any";
+    public static final String PERIOD_POLICY_TAG = "period";
+
+    public static final long DEFAULT_WINDOW_MS = 250;
+    public static final long DEFAULT_PERIOD_MS = 100;
+
+    private final String[] names;
+    private final long[] arrivals;
+
+    // The fields updated since the last snapshot, and all fields the device has sent, as bits.
+    private int pending;
+    private int seen;
+    private long tickStart;
+    private long lastArrival;
+    private long lastPublish;
+
+    private int policy = POLICY_ALL;
+    private long windowMs = DEFAULT_WINDOW_MS;
+    private long periodMs = DEFAULT_PERIOD_MS;
+
+    /**
+     * @param names The field names, as published in the timestamps, by field index.
+     */
+    public FrameSynchronizer(String... names) {
+        if (names.length > 32) {
+            throw new IllegalArgumentException("At most 32 fields can be synchronized");
+        }
+        this.names = names.clone();
+        this.arrivals = new long[names.length];
+    }
+
+    /**
+     * Change the policy. This may be called from any thread, and applies from the next update.
+     *
+     * @param policy   One of the POLICY_ constants.
+     * @param windowMs The longest tick of {@link #POLICY_ALL}, in milliseconds.
+     * @param periodMs The period of {@link #POLICY_PERIOD}, in milliseconds.
+     */
+    public void configure(int policy, long windowMs, long periodMs) {
+        this.windowMs = Math.max(0, windowMs);
+        this.periodMs = Math.max(0, periodMs);
+        this.policy = policy;
+    }
+
+    public int getPolicy() {
+        return policy;
+    }
+
+    public long getWindow() {
+        return windowMs;
+    }
+
+    public long getPeriod() {
+        return periodMs;
+    }
+
+    /**
+     * @param name A policy name, e.g. "all".
+     * @return The policy, or -1 if the name is not known.
+     */
+    public static int policyOf(String name) {
+        if (ALL_POLICY_TAG.equalsIgnoreCase(name)) {
+            return POLICY_ALL;
+        } else if (ANY_POLICY_TAG.equalsIgnoreCase(name)) {
+            return POLICY_ANY;
+        } else if (PERIOD_POLICY_TAG.equalsIgnoreCase(name)) {
+            return POLICY_PERIOD;
+        }
+        return -1;
+    }
+
+    /**
+     * Check a field before it is applied to the snapshot.
+     *
+     * @param field The field index.
+     * @param now   The arrival time, in milliseconds.
+     * @return True if the pending snapshot must be published first, as its tick has closed.
+     */
+    public boolean beforeUpdate(int field, long now) {
+        if (pending == 0 || policy != POLICY_ALL) {
+            return false;
+        }
+        return (pending & (1 << field)) != 0 || now - tickStart > windowMs;
+    }
+
+    /**
+     * Record the arrival of a field, once it has been applied to the snapshot.
+     *
+     * @param field The field index.
+     * @param now   The arrival time, in milliseconds.
+     * @return True if the snapshot should be published now.
+     */
+    public boolean update(int field, long now) {
+        int bit = 1 << field;
+        if (pending == 0) {
+            tickStart = now;
+        }
+
+        pending |= bit;
+        seen |= bit;
+        arrivals[field] = now;
+        lastArrival = now;
+
+        switch (policy) {
+            case POLICY_ALL:
+                return (pending & seen) == seen;
+
+            case POLICY_PERIOD:
+                return now - lastPublish >= periodMs;
+
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Start a new tick, once the snapshot has been published, or dropped.
+     */
+    public void published() {
+        pending = 0;
+        lastPublish = lastArrival;
+    }
+
+    /**
+     * @return The fields updated since the last snapshot, as bits by field index.
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * @return The time of the snapshot: the arrival of its latest field, in milliseconds.
+     */
+    public long getSnapshotTime() {
+        return lastArrival;
+    }
+
+    /**
+     * @param field The field index.
+     * @return The time the field last arrived, in milliseconds, or 0 if it never has.
+     */
+    public long getArrival(int field) {
+        return arrivals[field];
+    }
+
+    /**
+     * Forget all arrivals, and the fields the device sends.
+     */
+    public void clear() {
+        pending = 0;
+        seen = 0;
+        tickStart = 0;
+        lastArrival = 0;
+        lastPublish = 0;
+        for (int i = 0; i < arrivals.length; i++) {
+            arrivals[i] = 0;
+        }
+    }
+
+    /**
+     * @return The arrival time of each field that has arrived, by name.
+     */
+    public HashMap<String, Object> timestampsToMap() {
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < names.length; i++) {
+            if ((seen & (1 << i)) != 0) {
+                values.put(names[i], arrivals[i]);
+            }
+        }
+        return values;
+    }
+}
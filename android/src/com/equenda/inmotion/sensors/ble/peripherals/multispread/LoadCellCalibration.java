@@ -0,0 +1,263 @@
+package com.equenda.inmotion.sensors.ble.peripherals.multispread;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * An immutable per-port load cell calibration table: an offset, a gain and an enabled flag per
+ * port, and a tare subtracted from the calibrated total.
+ * <p>
+ * A calibrated reading is {@code (raw - offset) * gain}, in fixed-point integer math: the gain of
+ * each port is held as an int mantissa and a right shift, normalised so that any gain keeps about
+ * 30 significant bits, and the product is taken in a long and rounded back, so the decode loop
+ * never touches a float. A port that is not enabled passes its raw reading through, so the empty
+ * table changes nothing.
+ * <p>
+ * A table is never modified. Changes build a new table, which is swapped in whole, so the decoding
+ * thread can read it without locking. Tables are encoded to a short string for persistence.
+ *
+ * @author Jason Waring
+ */
+public final class LoadCellCalibration {
+
+    // A gain mantissa is kept below 2^30, so that its product with any 24-bit reading less an int
+    // offset fits a long.
+    private static final int MANTISSA_BITS = 29;
+    private static final int MAX_SHIFT = 62;
+    private static final int UNITY_MANTISSA = 1 << MANTISSA_BITS;
+
+    public static final String TARE_TAG = "tare";
+    public static final String OFFSET_TAG = "offset";
+    public static final String GAIN_TAG = "gain";
+    public static final String ENABLED_TAG = "enabled";
+    public static final String PORTS_TAG = "ports";
+
+    public static final LoadCellCalibration NONE = new LoadCellCalibration(new int[MultispreadFrame.MAX_PORTS],
+                                                                           unityMantissas(),
+                                                                           unityShifts(),
+                                                                           new boolean[MultispreadFrame.MAX_PORTS],
+                                                                           0);
+
+    private final int[] offsets;
+    private final int[] mantissas;
+    private final int[] shifts;
+    private final boolean[] enabled;
+    private final int tare;
+    private final boolean active;
+
+    private LoadCellCalibration(int[] offsets, int[] mantissas, int[] shifts, boolean[] enabled, int tare) {
+        this.offsets = offsets;
+        this.mantissas = mantissas;
+        this.shifts = shifts;
+        this.enabled = enabled;
+        this.tare = tare;
+
+        boolean any = tare != 0;
+        for (int i = 0; i < enabled.length && !any; i++) {
+            any = enabled[i];
+        }
+        this.active = any;
+    }
+
+    /**
+     * @return False if the table has no enabled port and no tare, so readings pass unchanged.
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    public boolean isEnabled(int port) {
+        return enabled[port];
+    }
+
+    public int getOffset(int port) {
+        return offsets[port];
+    }
+
+    /**
+     * @param port The port number.
+     * @return The gain, as held in fixed point.
+     */
+    public double getGain(int port) {
+        return Math.scalb((double) mantissas[port], -shifts[port]);
+    }
+
+    /**
+     * @return The tare, in calibrated units.
+     */
+    public int getTare() {
+        return tare;
+    }
+
+    /**
+     * Calibrate a reading.
+     *
+     * @param port The port number.
+     * @param raw  The raw reading, which must not be {@link MultispreadFrame#LOAD_CELL_ABSENT}.
+     * @return The calibrated reading, or the raw reading if the port is not enabled.
+     */
+    public int apply(int port, int raw) {
+        if (!enabled[port]) {
+            return raw;
+        }
+
+        int shift = shifts[port];
+        long product = ((long) raw - offsets[port]) * mantissas[port];
+        return (int) ((product + ((1L << shift) >> 1)) >> shift);
+    }
+
+    /**
+     * @param port    The port number.
+     * @param offset  The raw reading at zero load.
+     * @param gain    The gain, e.g. 0.0125 kg per count.
+     * @param enabled True to calibrate the port.
+     * @return A table with the port replaced.
+     */
+    public LoadCellCalibration withPort(int port, int offset, double gain, boolean enabled) {
+        int[] newOffsets = offsets.clone();
+        int[] newMantissas = mantissas.clone();
+        int[] newShifts = shifts.clone();
+        boolean[] newEnabled = this.enabled.clone();
+
+        // Normalise the gain, so that its mantissa has MANTISSA_BITS significant bits.
+        int shift = (gain != 0 && !Double.isNaN(gain) && !Double.isInfinite(gain))
+                    ? Math.max(0, Math.min(MAX_SHIFT, MANTISSA_BITS - Math.getExponent(gain)))
+                    : 0;
+        double mantissa = Math.rint(Math.scalb(gain, shift));
+
+        newOffsets[port] = offset;
+        newMantissas[port] = (int) Math.max(-UNITY_MANTISSA * 2.0 + 1, Math.min(UNITY_MANTISSA * 2.0 - 1, mantissa));
+        newShifts[port] = shift;
+        newEnabled[port] = enabled;
+        return new LoadCellCalibration(newOffsets, newMantissas, newShifts, newEnabled, tare);
+    }
+
+    /**
+     * @param tare The tare, in calibrated units.
+     * @return A table with the tare replaced.
+     */
+    public LoadCellCalibration withTare(int tare) {
+        return new LoadCellCalibration(offsets, mantissas, shifts, enabled, tare);
+    }
+
+    /**
+     * Zero every fitted port of the latest load cell packet: its current raw reading becomes its
+     * offset, and it is enabled, keeping its gain. The tare is cleared.
+     *
+     * @param frame The frame holding the latest raw readings.
+     * @return The zeroed table.
+     */
+    public LoadCellCalibration zeroed(MultispreadFrame frame) {
+        int[] newOffsets = offsets.clone();
+        boolean[] newEnabled = enabled.clone();
+
+        for (int i = 0; i < frame.getPortCount(); ++i) {
+            int port = frame.getPort(i);
+            int raw = frame.getCell(port);
+            if (raw != MultispreadFrame.LOAD_CELL_ABSENT) {
+                newOffsets[port] = raw;
+                newEnabled[port] = true;
+            }
+        }
+
+        return new LoadCellCalibration(newOffsets, mantissas, shifts, newEnabled, 0);
+    }
+
+    /**
+     * Encode the table as a string of the form {@code tare;port:offset:mantissa:shift:enabled;...},
+     * with only the ports that differ from the empty table.
+     *
+     * @return The encoded table.
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(tare);
+
+        for (int port = 0; port < offsets.length; port++) {
+            if (isSet(port)) {
+                sb.append(';').append(port)
+                  .append(':').append(offsets[port])
+                  .append(':').append(mantissas[port])
+                  .append(':').append(shifts[port])
+                  .append(':').append(enabled[port] ? 1 : 0);
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Decode a table encoded by {@link #encode()}.
+     *
+     * @param encoded The encoded table, or null.
+     * @return The table, or {@link #NONE} if there was none or it could not be read.
+     */
+    public static LoadCellCalibration decode(String encoded) {
+        if (encoded == null || encoded.length() == 0) {
+            return NONE;
+        }
+
+        try {
+            String[] entries = encoded.split(";");
+            int[] offsets = new int[MultispreadFrame.MAX_PORTS];
+            int[] mantissas = unityMantissas();
+            int[] shifts = unityShifts();
+            boolean[] enabled = new boolean[MultispreadFrame.MAX_PORTS];
+
+            for (int i = 1; i < entries.length; i++) {
+                String[] parts = entries[i].split(":");
+                int port = Integer.parseInt(parts[0]);
+                offsets[port] = Integer.parseInt(parts[1]);
+                mantissas[port] = Integer.parseInt(parts[2]);
+                shifts[port] = Math.max(0, Math.min(MAX_SHIFT, Integer.parseInt(parts[3])));
+                enabled[port] = "1".equals(parts[4]);
+            }
+
+            return new LoadCellCalibration(offsets, mantissas, shifts, enabled, Integer.parseInt(entries[0]));
+
+        } catch (RuntimeException ex) {
+            return NONE;
+        }
+    }
+
+    /**
+     * @return The table, as published to the app: the tare, and the offset, gain and enabled
+     * flag of each port that differs from the empty table.
+     */
+    public HashMap<String, Object> toMap() {
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        HashMap<String, Object> ports = new HashMap<String, Object>();
+
+        for (int port = 0; port < offsets.length; port++) {
+            if (isSet(port)) {
+                HashMap<String, Object> cell = new HashMap<String, Object>();
+                cell.put(OFFSET_TAG, offsets[port]);
+                cell.put(GAIN_TAG, getGain(port));
+                cell.put(ENABLED_TAG, enabled[port]);
+                ports.put("port" + port, cell);
+            }
+        }
+
+        values.put(TARE_TAG, tare);
+        values.put(PORTS_TAG, ports);
+        return values;
+    }
+
+    // True if the port differs from the empty table.
+    private boolean isSet(int port) {
+        return enabled[port] || offsets[port] != 0
+               || mantissas[port] != UNITY_MANTISSA || shifts[port] != MANTISSA_BITS;
+    }
+
+    private static int[] unityMantissas() {
+        int[] mantissas = new int[MultispreadFrame.MAX_PORTS];
+        Arrays.fill(mantissas, UNITY_MANTISSA);
+        return mantissas;
+    }
+
+    private static int[] unityShifts() {
+        int[] shifts = new int[MultispreadFrame.MAX_PORTS];
+        Arrays.fill(shifts, MANTISSA_BITS);
+        return shifts;
+    }
+}
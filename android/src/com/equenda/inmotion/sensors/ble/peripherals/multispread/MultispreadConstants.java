@@ -1,5 +1,7 @@
 package com.equenda.inmotion.sensors.ble.peripherals.multispread;
 
+import com.equenda.inmotion.sensors.ble.peripherals.BLEConstants;
+
 /**
  * Constants for Multispread sensor
  */
@@ -15,12 +17,30 @@ public interface MultispreadConstants {
     public static final String COMMAND_REQUEST_CHAR_UUID = "e29e238a-c4c1-4160-8dbd-c22437081105";
     public static final String COMMAND_RESPONSE_CHAR_UUID = "aeb1c336-63d8-45e4-89dc-d17172c89036";
 
+    public static final int HANDLE_SPEED = BLEConstants.HANDLE_FIRST_SERVICE;
+    public static final int HANDLE_DOOR_OPENING = BLEConstants.HANDLE_FIRST_SERVICE + 1;
+    public static final int HANDLE_LOAD_CELL = BLEConstants.HANDLE_FIRST_SERVICE + 2;
+    public static final int HANDLE_DOOR_OPENING_TARGET = BLEConstants.HANDLE_FIRST_SERVICE + 3;
+    public static final int HANDLE_COMMAND_REQUEST = BLEConstants.HANDLE_FIRST_SERVICE + 4;
+    public static final int HANDLE_COMMAND_RESPONSE = BLEConstants.HANDLE_FIRST_SERVICE + 5;
+
     public static final String SENSORS_TAG = "sensors";
     public static final String SPINNER_SPEED_TAG = "spinnerSpeed";
     public static final String BELT_SPEED_TAG = "beltSpeed";
     public static final String DOOR_OPENING_TAG = "doorOpening";
+    public static final String SETPOINT_WITHOUT_RESPONSE_TAG = "setpointWithoutResponse";
     public static final String LOAD_CELL_TAG = "loadCell";
     public static final String RAW_LOAD_CELLS_TAG = "rawLoadCells";
+    public static final String RAW_LOAD_CELL_TAG = "rawLoadCell";
+    public static final String CALIBRATED_LOAD_CELLS_TAG = "loadCells";
+    public static final String TIMESTAMP_TAG = "timestamp";
+    public static final String FIELD_TIMESTAMPS_TAG = "fieldTimestamps";
+
+    // Sensor snapshot policy, e.g. {frameSync: {policy: "all", window: 250}}
+    public static final String FRAME_SYNC_TAG = "frameSync";
+    public static final String FRAME_SYNC_POLICY_TAG = "policy";
+    public static final String FRAME_SYNC_WINDOW_TAG = "window";
+    public static final String FRAME_SYNC_PERIOD_TAG = "period";
 
 
     public static final String COMMAND_REQUEST_TAG = "commandRequest";
@@ -42,6 +62,13 @@ public interface MultispreadConstants {
     public static final String DOOR_CAL_START_ACTION_TAG = "start";
     public static final String DOOR_CAL_CANCEL_ACTION_TAG = "cancel";
 
+    // Load cell calibration, applied natively and persisted per device
+    public static final String LOAD_CELL_CALIBRATION_TAG = "loadCellCalibration";
+    public static final String LOAD_CELL_CALIBRATION_TABLE_TAG = "loadCellCalibrationTable";
+    public static final String LC_TARE_ACTION_TAG = "tare";
+    public static final String LC_ZERO_ACTION_TAG = "zero";
+    public static final String LC_RESET_ACTION_TAG = "reset";
+
     // Control drive wheel
     public static final byte CMD_CONTEXT_DRIVE_WHEEL = 0x02;
 
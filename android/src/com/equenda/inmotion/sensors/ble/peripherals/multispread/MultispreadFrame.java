@@ -0,0 +1,322 @@
+package com.equenda.inmotion.sensors.ble.peripherals.multispread;
+
+import com.equenda.inmotion.sensors.ble.peripherals.CharacteristicLayout;
+
+import java.util.HashMap;
+
+/**
+ * A reusable, primitive backed frame of Multispread sensor readings.
+ * <p>
+ * The speed, door and load cell characteristics are decoded in place into fixed int slots, so a
+ * notification never allocates. The per-port load cell readings are held in an int array indexed
+ * by port number, with the ports reported by the latest packet listed in arrival order. Conversion
+ * to a map is only done by {@link #toMap()}, at the edge that needs it.
+ * <p>
+ * Load cell readings are calibrated in the same loop, with the {@link LoadCellCalibration} handed
+ * to {@link #decodeLoadCells(byte[], LoadCellCalibration)}. The raw readings are kept alongside,
+ * and the total is the sum of the calibrated fitted cells, less the tare.
+ * <p>
+ * The byte layouts are taken from {@link MultispreadLayouts} by default, and the fields a frame
+ * needs are looked up by name once, when it is created.
+ *
+ * @author Jason Waring
+ */
+public class MultispreadFrame {
+
+    // A port number is a single byte, so every port has a slot.
+    public static final int MAX_PORTS = 256;
+
+    // Marker for a load cell that is not fitted (a 3 byte -0 on the wire).
+    public static final int LOAD_CELL_ABSENT = 0x80000000;
+
+    public static final int HAS_SPINNER_SPEED = 0x01;
+    public static final int HAS_BELT_SPEED = 0x02;
+    public static final int HAS_DOOR_OPENING = 0x04;
+    public static final int HAS_LOAD_CELL = 0x08;
+
+    private int present;
+    private int spinnerSpeed;
+    private int beltSpeed;
+    private int doorOpening;
+    private int loadTotal;
+    private int rawLoadTotal;
+    private final int[] cells = new int[MAX_PORTS];
+    private final int[] calibrated = new int[MAX_PORTS];
+    private final int[] ports = new int[MAX_PORTS];
+    private int portCount;
+    private LoadCellCalibration calibration = LoadCellCalibration.NONE;
+
+    private final CharacteristicLayout speedLayout;
+    private final CharacteristicLayout doorLayout;
+    private final CharacteristicLayout totalLayout;
+    private final CharacteristicLayout cellLayout;
+    private final int spinnerField;
+    private final int beltField;
+    private final int doorField;
+    private final int totalField;
+    private final int portField;
+    private final int valueField;
+
+    public MultispreadFrame() {
+        this(MultispreadLayouts.SPEED, MultispreadLayouts.DOOR_OPENING,
+             MultispreadLayouts.LOAD_CELL_TOTAL, MultispreadLayouts.LOAD_CELL_RECORD);
+    }
+
+    /**
+     * @param speed The speed layout, with the spinner speed and optional belt speed.
+     * @param door  The door opening layout.
+     * @param total The single load cell total layout, of older firmware.
+     * @param cell  The load cell record layout, with a port and a 3 byte value.
+     */
+    public MultispreadFrame(CharacteristicLayout speed, CharacteristicLayout door,
+                            CharacteristicLayout total, CharacteristicLayout cell) {
+        this.speedLayout = speed;
+        this.doorLayout = door;
+        this.totalLayout = total;
+        this.cellLayout = cell;
+        this.spinnerField = fieldOf(speed, MultispreadConstants.SPINNER_SPEED_TAG);
+        this.beltField = speed.indexOf(MultispreadConstants.BELT_SPEED_TAG);
+        this.doorField = fieldOf(door, MultispreadConstants.DOOR_OPENING_TAG);
+        this.totalField = fieldOf(total, MultispreadConstants.LOAD_CELL_TAG);
+        this.portField = fieldOf(cell, "port");
+        this.valueField = fieldOf(cell, "value");
+    }
+
+    public int getPresent() {
+        return present;
+    }
+
+    public boolean has(int field) {
+        return (present & field) != 0;
+    }
+
+    public int getSpinnerSpeed() {
+        return spinnerSpeed;
+    }
+
+    public int getBeltSpeed() {
+        return beltSpeed;
+    }
+
+    public int getDoorOpening() {
+        return doorOpening;
+    }
+
+    /**
+     * @return The calibrated load cell total, less the tare.
+     */
+    public int getLoadTotal() {
+        return loadTotal;
+    }
+
+    /**
+     * @return The sum of the raw readings of the fitted load cells.
+     */
+    public int getRawLoadTotal() {
+        return rawLoadTotal;
+    }
+
+    /**
+     * @return The number of ports reported by the latest load cell packet.
+     */
+    public int getPortCount() {
+        return portCount;
+    }
+
+    /**
+     * @param i The index, in arrival order, between 0 and {@link #getPortCount()}.
+     * @return The port number.
+     */
+    public int getPort(int i) {
+        return ports[i];
+    }
+
+    /**
+     * @param port The port number.
+     * @return The raw load cell reading for the port, or {@link #LOAD_CELL_ABSENT}.
+     */
+    public int getCell(int port) {
+        return cells[port];
+    }
+
+    /**
+     * @param port The port number.
+     * @return The calibrated load cell reading for the port, or {@link #LOAD_CELL_ABSENT}.
+     */
+    public int getCalibratedCell(int port) {
+        return calibrated[port];
+    }
+
+    /**
+     * Forget all readings.
+     */
+    public void clear() {
+        present = 0;
+        spinnerSpeed = 0;
+        beltSpeed = 0;
+        doorOpening = 0;
+        loadTotal = 0;
+        rawLoadTotal = 0;
+        portCount = 0;
+    }
+
+    /**
+     * Decode the speed characteristic. The belt speed is optional.
+     *
+     * @param data The characteristic value.
+     */
+    public void decodeSpeed(byte[] data) {
+        if (speedLayout.isPresent(spinnerField, data, 0)) {
+            spinnerSpeed = speedLayout.decodeInt(spinnerField, data);
+            present |= HAS_SPINNER_SPEED;
+        }
+
+        if (beltField >= 0 && speedLayout.isPresent(beltField, data, 0)) {
+            beltSpeed = speedLayout.decodeInt(beltField, data);
+            present |= HAS_BELT_SPEED;
+        }
+    }
+
+    /**
+     * Decode the door opening characteristic.
+     *
+     * @param data The characteristic value.
+     */
+    public void decodeDoorOpening(byte[] data) {
+        if (doorLayout.isPresent(doorField, data, 0)) {
+            doorOpening = doorLayout.decodeInt(doorField, data);
+            present |= HAS_DOOR_OPENING;
+        }
+    }
+
+    /**
+     * Decode the load cell characteristic, uncalibrated.
+     *
+     * @param data The characteristic value.
+     */
+    public void decodeLoadCells(byte[] data) {
+        decodeLoadCells(data, LoadCellCalibration.NONE);
+    }
+
+    /**
+     * Decode the load cell characteristic. Older firmware reports a single 4 byte total, which
+     * can only be tared, while newer firmware reports a count followed by 4 byte (port, 3 byte
+     * value) cells, which are calibrated per port.
+     *
+     * @param data The characteristic value.
+     * @param cal  The calibration table.
+     */
+    public void decodeLoadCells(byte[] data, LoadCellCalibration cal) {
+        portCount = 0;
+        calibration = cal;
+
+        if (data.length < MultispreadLayouts.LOAD_CELL_RECORDS_OFFSET + MultispreadLayouts.LOAD_CELL_RECORD_SIZE) {
+            if (!totalLayout.isPresent(totalField, data, 0)) {
+                return;
+            }
+            rawLoadTotal = totalLayout.decodeInt(totalField, data);
+            loadTotal = rawLoadTotal - cal.getTare();
+
+        } else {
+            // Never trust the count beyond the bytes that actually arrived.
+            int n = Math.min(data[0] & 0xFF,
+                             (data.length - MultispreadLayouts.LOAD_CELL_RECORDS_OFFSET) / MultispreadLayouts.LOAD_CELL_RECORD_SIZE);
+            int rawTotal = 0;
+            int total = 0;
+
+            for (int i = 0; i < n; ++i) {
+                int base = MultispreadLayouts.LOAD_CELL_RECORDS_OFFSET + i * MultispreadLayouts.LOAD_CELL_RECORD_SIZE;
+                int port = cellLayout.decodeInt(portField, data, base) & 0xFF;
+                int value = unpack3ByteInt(cellLayout.decodeInt(valueField, data, base));
+
+                cells[port] = value;
+                ports[portCount++] = port;
+
+                // Only add fitted cells to the total.
+                if (value != LOAD_CELL_ABSENT) {
+                    int calibratedValue = cal.apply(port, value);
+                    calibrated[port] = calibratedValue;
+                    rawTotal += value;
+                    total += calibratedValue;
+                } else {
+                    calibrated[port] = LOAD_CELL_ABSENT;
+                }
+            }
+
+            rawLoadTotal = rawTotal;
+            loadTotal = total - cal.getTare();
+        }
+
+        present |= HAS_LOAD_CELL;
+    }
+
+    /**
+     * Convert the frame to the map published to the app. This allocates and should only be
+     * called when a frame is actually dispatched.
+     *
+     * @return A new map of the present readings.
+     */
+    public HashMap<String, Object> toMap() {
+        HashMap<String, Object> values = new HashMap<String, Object>();
+
+        if (has(HAS_SPINNER_SPEED)) {
+            values.put(MultispreadConstants.SPINNER_SPEED_TAG, spinnerSpeed);
+        }
+
+        if (has(HAS_BELT_SPEED)) {
+            values.put(MultispreadConstants.BELT_SPEED_TAG, beltSpeed);
+        }
+
+        if (has(HAS_DOOR_OPENING)) {
+            values.put(MultispreadConstants.DOOR_OPENING_TAG, doorOpening);
+        }
+
+        if (has(HAS_LOAD_CELL)) {
+            HashMap<String, Object> raw = new HashMap<String, Object>();
+            for (int i = 0; i < portCount; ++i) {
+                raw.put("port" + ports[i], cells[ports[i]]);
+            }
+
+            values.put(MultispreadConstants.LOAD_CELL_TAG, loadTotal);
+            values.put(MultispreadConstants.RAW_LOAD_CELLS_TAG, raw);
+
+            // Only a calibrated frame carries both, so an uncalibrated one is unchanged.
+            if (calibration.isActive()) {
+                HashMap<String, Object> cal = new HashMap<String, Object>();
+                for (int i = 0; i < portCount; ++i) {
+                    cal.put("port" + ports[i], calibrated[ports[i]]);
+                }
+
+                values.put(MultispreadConstants.RAW_LOAD_CELL_TAG, rawLoadTotal);
+                values.put(MultispreadConstants.CALIBRATED_LOAD_CELLS_TAG, cal);
+            }
+        }
+
+        return values;
+    }
+
+    // Unpack a 3 byte integer into a four byte. If we receive a 3 byte
+    // -0 (0x0080000), then transform to a four byte -0.
+    public static int unpack3ByteInt(int packed) {
+        int value = packed & 0x00FFFFFF;
+
+        if ((value & 0x00800000) != 0) {
+            if (value != 0x00800000) {
+                return value | 0xFF800000;
+            } else {
+                return LOAD_CELL_ABSENT;
+            }
+        }
+
+        return value;
+    }
+
+    // Look up a field the frame cannot do without.
+    private static int fieldOf(CharacteristicLayout layout, String name) {
+        int field = layout.indexOf(name);
+        if (field < 0) {
+            throw new IllegalArgumentException("Layout has no " + name + " field");
+        }
+        return field;
+    }
+}
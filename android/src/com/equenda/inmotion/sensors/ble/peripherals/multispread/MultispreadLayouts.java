@@ -0,0 +1,66 @@
+package com.equenda.inmotion.sensors.ble.peripherals.multispread;
+
+import com.equenda.inmotion.sensors.ble.peripherals.CharacteristicLayout;
+
+/**
+ * The byte layouts of the Multispread characteristics, compiled once when the class is loaded.
+ * <p>
+ * Sensor values are big-endian. A firmware revision that moves or adds a field only needs a new
+ * layout here, handed to {@link MultispreadFrame}, rather than a new decoder.
+ *
+ * @author Jason Waring
+ */
+public final class MultispreadLayouts {
+
+    // Spinner speed, and the belt speed, which older firmware does not send.
+    public static final CharacteristicLayout SPEED = new CharacteristicLayout.Builder()
+        .uint16(MultispreadConstants.SPINNER_SPEED_TAG, 0, false)
+        .uint16(MultispreadConstants.BELT_SPEED_TAG, 2, false)
+        .build();
+
+    public static final CharacteristicLayout DOOR_OPENING = new CharacteristicLayout.Builder()
+        .uint16(MultispreadConstants.DOOR_OPENING_TAG, 0, false)
+        .build();
+
+    // Older firmware reports a single load cell total.
+    public static final CharacteristicLayout LOAD_CELL_TOTAL = new CharacteristicLayout.Builder()
+        .field(MultispreadConstants.LOAD_CELL_TAG, 0, 4, true, false)
+        .build();
+
+    // Newer firmware reports a cell count byte, followed by that many cell records.
+    public static final int LOAD_CELL_RECORDS_OFFSET = 1;
+    public static final int LOAD_CELL_RECORD_SIZE = 4;
+
+    // A cell record. The value is a 3 byte int, see MultispreadFrame.unpack3ByteInt.
+    public static final CharacteristicLayout LOAD_CELL_RECORD = new CharacteristicLayout.Builder()
+        .uint8("port", 0)
+        .field("value", 1, 3, false, false)
+        .build();
+
+    // The status of a calibration or drive wheel command response.
+    public static final CharacteristicLayout COMMAND_STATUS = new CharacteristicLayout.Builder()
+        .uint8("status", 1)
+        .build();
+
+    public static final CharacteristicLayout DOOR_DIAGNOSTICS = new CharacteristicLayout.Builder()
+        .uint16("current", 1, false)
+        .build();
+
+    public static final CharacteristicLayout DRIVE_WHEEL_DIAGNOSTICS = new CharacteristicLayout.Builder()
+        .uint16("battery", 1, false)
+        .build();
+
+    // The status bits shared by both diagnostics responses.
+    public static final CharacteristicLayout DIAGNOSTICS_STATUS = new CharacteristicLayout.Builder()
+        .flag("lowBattery", 3, 4, false, MultispreadConstants.CMD_DIAG_STATUS_LOW_BATTERY)
+        .flag("offTarget", 3, 4, false, MultispreadConstants.CMD_DIAG_STATUS_OFF_TARGET)
+        .flag("timeout", 3, 4, false, MultispreadConstants.CMD_DIAG_STATUS_TIMEOUT)
+        .flag("extending", 3, 4, false, MultispreadConstants.CMD_DIAG_STATUS_EXTENDING)
+        .flag("retracting", 3, 4, false, MultispreadConstants.CMD_DIAG_STATUS_RETRACTING)
+        .flag("extended", 3, 4, false, MultispreadConstants.CMD_DIAG_STATUS_EXTENDED)
+        .flag("retracted", 3, 4, false, MultispreadConstants.CMD_DIAG_STATUS_RETRACTED)
+        .build();
+
+    private MultispreadLayouts() {
+    }
+}
@@ -5,6 +5,7 @@ import android.bluetooth.BluetoothDevice;
 import android.os.IBinder;
 import com.equenda.inmotion.sensors.ble.peripherals.BLEPeripheralBase;
 import com.equenda.inmotion.sensors.ble.peripherals.BLEServiceBase;
+import com.equenda.inmotion.sensors.ble.peripherals.GattSession;
 
 import java.util.Map;
 
@@ -34,11 +35,15 @@ public class MultispreadPeripheral extends BLEPeripheralBase {
 
     @Override
     public void update(Map values) {
-        if (values.containsKey("service")) {
-            String service = values.get("service").toString();
-            if ("spreader".equalsIgnoreCase(service)) {
-                BLEServiceBase bleService = getBLEService();
-                bleService.updateDevice(values);
+        super.update(values);
+
+        if (values.containsKey("service") || values.containsKey(MultispreadConstants.FRAME_SYNC_TAG)) {
+            Object service = values.get("service");
+            if (service == null || "spreader".equalsIgnoreCase(service.toString())) {
+                GattSession session = getSession();
+                if (session != null) {
+                    session.updateDevice(values);
+                }
             }
         }
     }
@@ -49,10 +54,10 @@ public class MultispreadPeripheral extends BLEPeripheralBase {
     }
 
     @Override
-    protected void handleServiceDiscovery(BLEServiceBase bleService) {
-        bleService.setCharacteristicNotification(MultispreadConstants.SPEED_CHAR_UUID,true);
-        bleService.setCharacteristicNotification(MultispreadConstants.DOOR_OPENING_CHAR_UUID,true);
-        bleService.setCharacteristicNotification(MultispreadConstants.LOAD_CELL_CHAR_UUID,true);
-        bleService.setCharacteristicNotification(MultispreadConstants.COMMAND_RESPONSE_CHAR_UUID,true);
+    protected void handleServiceDiscovery(GattSession session) {
+        session.setCharacteristicNotification(MultispreadConstants.HANDLE_SPEED, true);
+        session.setCharacteristicNotification(MultispreadConstants.HANDLE_DOOR_OPENING, true);
+        session.setCharacteristicNotification(MultispreadConstants.HANDLE_LOAD_CELL, true);
+        session.setCharacteristicNotification(MultispreadConstants.HANDLE_COMMAND_RESPONSE, true);
     }
 }
@@ -0,0 +1,424 @@
+package com.equenda.inmotion.sensors.ble.peripherals.multispread;
+
+import com.equenda.inmotion.sensors.ble.peripherals.BLEProfileBase;
+import com.equenda.inmotion.sensors.ble.peripherals.CharacteristicIndex;
+import com.equenda.inmotion.sensors.ble.peripherals.SampleRing;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bluetooth multispread controller profile. This builds on the profile base, and is hosted by a
+ * session, which handles all of the connectivity.
+ * <p>
+ * The primary responsibility of this module is to decode the characteristics and publish the
+ * decoded values.
+ * <p>
+ * The speed, door and load cell notifications are gathered into one snapshot per device tick by
+ * a {@link FrameSynchronizer}, and published as a single "sensors" event, with the arrival time of
+ * each field. The policy is set with {frameSync: {policy: "all", window: 250, period: 100}}.
+ * <p>
+ * Load cells are calibrated as they are decoded, with a {@link LoadCellCalibration} table that is
+ * loaded from, and saved to, a {@link CalibrationStore} by device address. Tare and zero need the
+ * current readings, so they are applied to the next load cell packet.
+ * Each change of the table is published with the next packet as a "loadCellCalibration" event.
+ *
+ * @author Jason Waring
+ */
+public class MultispreadProfile extends BLEProfileBase {
+
+    // The synchronized fields, one per sensor characteristic.
+    private static final int FIELD_SPEED = 0;
+    private static final int FIELD_DOOR = 1;
+    private static final int FIELD_LC = 2;
+    private static final int FIELD_NONE = -1;
+
+    // The pending load cell calibration actions.
+    private static final int CAL_NONE = 0;
+    private static final int CAL_TARE = 1;
+    private static final int CAL_ZERO = 2;
+
+    private final MultispreadFrame frame = new MultispreadFrame();
+    private final FrameSynchronizer sync = new FrameSynchronizer(MultispreadConstants.SPINNER_SPEED_TAG,
+                                                                 MultispreadConstants.DOOR_OPENING_TAG,
+                                                                 MultispreadConstants.LOAD_CELL_TAG);
+    private boolean significant = false;
+
+    private final String address;
+    private final CalibrationStore store;
+    private LoadCellCalibration calibration = LoadCellCalibration.NONE;
+    private int pendingCalibration = CAL_NONE;
+    private boolean calibrationChanged = false;
+    private boolean setpointWithResponse = true;
+
+    // History channels, looked up once.
+    private final SampleRing spinnerHistory = getHistory().channel(MultispreadConstants.SPINNER_SPEED_TAG);
+    private final SampleRing beltHistory = getHistory().channel(MultispreadConstants.BELT_SPEED_TAG);
+    private final SampleRing doorHistory = getHistory().channel(MultispreadConstants.DOOR_OPENING_TAG);
+    private final SampleRing loadHistory = getHistory().channel(MultispreadConstants.LOAD_CELL_TAG);
+    private final SampleRing[] cellHistory = new SampleRing[MultispreadFrame.MAX_PORTS];
+
+    /**
+     * A profile without calibration persistence, e.g. for replays and benchmarks.
+     */
+    public MultispreadProfile() {
+        this(null, null);
+    }
+
+    /**
+     * @param address The device address, which keys the calibration.
+     * @param store   The calibration store, or null to not persist the calibration.
+     */
+    public MultispreadProfile(String address, CalibrationStore store) {
+        this.address = address;
+        this.store = store;
+        if (store != null && address != null) {
+            calibration = LoadCellCalibration.decode(store.load(address));
+        }
+    }
+
+    /**
+     * @return The load cell calibration table.
+     */
+    public LoadCellCalibration getCalibration() {
+        return calibration;
+    }
+
+    @Override
+    public void registerCharacteristics(CharacteristicIndex index) {
+        index.register(MultispreadConstants.HANDLE_SPEED, MultispreadConstants.SPEED_CHAR_UUID);
+        index.register(MultispreadConstants.HANDLE_DOOR_OPENING, MultispreadConstants.DOOR_OPENING_CHAR_UUID);
+        index.register(MultispreadConstants.HANDLE_LOAD_CELL, MultispreadConstants.LOAD_CELL_CHAR_UUID);
+        index.register(MultispreadConstants.HANDLE_DOOR_OPENING_TARGET, MultispreadConstants.DOOR_OPENING_TARGET_CHAR_UUID);
+        index.register(MultispreadConstants.HANDLE_COMMAND_REQUEST, MultispreadConstants.COMMAND_REQUEST_CHAR_UUID);
+        index.register(MultispreadConstants.HANDLE_COMMAND_RESPONSE, MultispreadConstants.COMMAND_RESPONSE_CHAR_UUID);
+    }
+
+    /**
+     * @return The synchronizer of the sensor snapshots.
+     */
+    public FrameSynchronizer getSynchronizer() {
+        return sync;
+    }
+
+    @Override
+    public void updateDevice(Map commands) {
+
+        // Snapshot policy, e.g. {policy: "period", period: 200}
+        if (commands.get(MultispreadConstants.FRAME_SYNC_TAG) instanceof Map) {
+            Map config = (Map) commands.get(MultispreadConstants.FRAME_SYNC_TAG);
+            Object policy = config.get(MultispreadConstants.FRAME_SYNC_POLICY_TAG);
+            Object window = config.get(MultispreadConstants.FRAME_SYNC_WINDOW_TAG);
+            Object period = config.get(MultispreadConstants.FRAME_SYNC_PERIOD_TAG);
+
+            int newPolicy = (policy != null) ? FrameSynchronizer.policyOf(policy.toString()) : sync.getPolicy();
+            sync.configure((newPolicy >= 0) ? newPolicy : sync.getPolicy(),
+                           (window != null) ? asInt(window.toString()) : sync.getWindow(),
+                           (period != null) ? asInt(period.toString()) : sync.getPeriod());
+        }
+
+        // Setpoints are written with response, unless set otherwise
+        if (commands.containsKey(MultispreadConstants.SETPOINT_WITHOUT_RESPONSE_TAG)) {
+            setpointWithResponse = !Boolean.parseBoolean(commands.get(MultispreadConstants.SETPOINT_WITHOUT_RESPONSE_TAG).toString());
+        }
+
+        // Set door opening. A slider sends many of these, and only the latest matters.
+        if (commands.containsKey(MultispreadConstants.DOOR_OPENING_TAG)) {
+            int doorOpening = asInt(commands.get(MultispreadConstants.DOOR_OPENING_TAG).toString());
+            writeSetpoint(MultispreadConstants.HANDLE_DOOR_OPENING_TARGET, unsignedBytesFromInt(doorOpening), setpointWithResponse);
+        }
+
+        // Door calibration
+        if (commands.containsKey(MultispreadConstants.DOOR_CALIBRATE_COMMAND_TAG)) {
+            String action = commands.get(MultispreadConstants.DOOR_CALIBRATE_COMMAND_TAG).toString();
+
+            if (MultispreadConstants.DOOR_CAL_START_ACTION_TAG.equalsIgnoreCase(action)) {
+                writeCharacteristic(MultispreadConstants.HANDLE_COMMAND_REQUEST, unsignedBytesFromBytePair(MultispreadConstants.CMD_CONTEXT_CALIBRATE, MultispreadConstants.CMD_CALIBRATE_START), true);
+
+            } else if (MultispreadConstants.DOOR_CAL_CANCEL_ACTION_TAG.equals(action)) {
+                writeCharacteristic(MultispreadConstants.HANDLE_COMMAND_REQUEST, unsignedBytesFromBytePair(MultispreadConstants.CMD_CONTEXT_CALIBRATE, MultispreadConstants.CMD_CALIBRATE_CANCEL), true);
+            }
+        }
+
+        // Load cell tare, zero and reset
+        if (commands.containsKey(MultispreadConstants.LOAD_CELL_CALIBRATION_TAG)) {
+            String action = commands.get(MultispreadConstants.LOAD_CELL_CALIBRATION_TAG).toString();
+
+            if (MultispreadConstants.LC_TARE_ACTION_TAG.equalsIgnoreCase(action)) {
+                pendingCalibration = CAL_TARE;
+
+            } else if (MultispreadConstants.LC_ZERO_ACTION_TAG.equalsIgnoreCase(action)) {
+                pendingCalibration = CAL_ZERO;
+
+            } else if (MultispreadConstants.LC_RESET_ACTION_TAG.equalsIgnoreCase(action)) {
+                pendingCalibration = CAL_NONE;
+                setCalibration(LoadCellCalibration.NONE);
+            }
+        }
+
+        // Load cell calibration table, e.g. {tare: 0, port2: {offset: 1200, gain: 0.0125, enabled: true}}
+        if (commands.containsKey(MultispreadConstants.LOAD_CELL_CALIBRATION_TABLE_TAG)) {
+            Object table = commands.get(MultispreadConstants.LOAD_CELL_CALIBRATION_TABLE_TAG);
+            if (table instanceof Map) {
+                updateCalibrationTable((Map) table);
+            }
+        }
+
+        // Drive wheel control
+        if (commands.containsKey(MultispreadConstants.DRIVE_WHEEL_COMMAND_TAG)) {
+            String action = commands.get(MultispreadConstants.DRIVE_WHEEL_COMMAND_TAG).toString();
+
+            if (MultispreadConstants.DW_ENGAGE_ACTION_TAG.equalsIgnoreCase(action)) {
+                writeCharacteristic(MultispreadConstants.HANDLE_COMMAND_REQUEST, unsignedBytesFromBytePair(MultispreadConstants.CMD_CONTEXT_DRIVE_WHEEL, MultispreadConstants.CMD_DW_REQUEST_ENGAGE), true);
+
+            } else if (MultispreadConstants.DW_DISENGAGE_ACTION_TAG.equals(action)) {
+                writeCharacteristic(MultispreadConstants.HANDLE_COMMAND_REQUEST, unsignedBytesFromBytePair(MultispreadConstants.CMD_CONTEXT_DRIVE_WHEEL, MultispreadConstants.CMD_DW_REQUEST_DISENGAGE), true);
+
+            } else if (MultispreadConstants.DW_STATUS_ACTION_TAG.equals(action)) {
+                writeCharacteristic(MultispreadConstants.HANDLE_COMMAND_REQUEST, unsignedBytesFromBytePair(MultispreadConstants.CMD_CONTEXT_DRIVE_WHEEL, MultispreadConstants.CMD_DW_REQUEST_STATUS), true);
+            }
+        }
+
+        // Diagnostics
+        if (commands.containsKey(MultispreadConstants.DIAGNOSTICS_COMMAND_TAG)) {
+            String action = commands.get(MultispreadConstants.DIAGNOSTICS_COMMAND_TAG).toString();
+
+            if (MultispreadConstants.ENABLE_DW_DIAG_ACTION_TAG.equalsIgnoreCase(action)) {
+                writeCharacteristic(MultispreadConstants.HANDLE_COMMAND_REQUEST, unsignedBytesFromBytePair(MultispreadConstants.CMD_CONTEXT_DW_DIAG, MultispreadConstants.CMD_DIAG_REQUEST_ENABLE), true);
+
+            } else if (MultispreadConstants.DISABLE_DW_DIAG_ACTION_TAG.equals(action)) {
+                writeCharacteristic(MultispreadConstants.HANDLE_COMMAND_REQUEST, unsignedBytesFromBytePair(MultispreadConstants.CMD_CONTEXT_DW_DIAG, MultispreadConstants.CMD_DIAG_REQUEST_DISABLE), true);
+
+            } else if (MultispreadConstants.ENABLE_DOOR_DIAG_ACTION_TAG.equals(action)) {
+                writeCharacteristic(MultispreadConstants.HANDLE_COMMAND_REQUEST, unsignedBytesFromBytePair(MultispreadConstants.CMD_CONTEXT_DOOR_DIAG, MultispreadConstants.CMD_DIAG_REQUEST_ENABLE), true);
+
+            } else if (MultispreadConstants.DISABLE_DOOR_DIAG_ACTION_TAG.equals(action)) {
+                writeCharacteristic(MultispreadConstants.HANDLE_COMMAND_REQUEST, unsignedBytesFromBytePair(MultispreadConstants.CMD_CONTEXT_DOOR_DIAG, MultispreadConstants.CMD_DIAG_REQUEST_DISABLE), true);
+            }
+        }
+    }
+
+    @Override
+    public void decodeData(final int handle, final byte[] data, final long timestamp) {
+
+        if (handle == MultispreadConstants.HANDLE_COMMAND_RESPONSE) {
+            decodeResponseData(data);
+        } else {
+            decodeSensorData(handle, data, timestamp);
+        }
+    }
+
+    private void decodeSensorData(final int handle, final byte[] data, final long now) {
+
+        // Map the handle to a field.
+        final int field = handleToField(handle);
+        if (field == FIELD_NONE) {
+            return;
+        }
+
+        // If this update opens a new tick, e.g. on a repetition (speed, then speed), then first
+        // publish the snapshot of the last one.
+        if (sync.beforeUpdate(field, now)) {
+            publishFrame();
+        }
+
+        // Now decode the supplied characteristic, in place, record it, and check whether it
+        // passes the channel filters.
+        switch (field) {
+            case FIELD_SPEED:
+                frame.decodeSpeed(data);
+                spinnerHistory.add(now, frame.getSpinnerSpeed());
+                significant |= accept(MultispreadConstants.SPINNER_SPEED_TAG, now, frame.getSpinnerSpeed());
+                if (data.length > 2) {
+                    beltHistory.add(now, frame.getBeltSpeed());
+                    significant |= accept(MultispreadConstants.BELT_SPEED_TAG, now, frame.getBeltSpeed());
+                }
+                break;
+
+            case FIELD_DOOR:
+                frame.decodeDoorOpening(data);
+                doorHistory.add(now, frame.getDoorOpening());
+                significant |= accept(MultispreadConstants.DOOR_OPENING_TAG, now, frame.getDoorOpening());
+                break;
+
+            case FIELD_LC:
+                decodeLoadCells(data);
+                recordLoadCells(now);
+                significant |= accept(MultispreadConstants.LOAD_CELL_TAG, now, frame.getLoadTotal());
+                break;
+        }
+
+        // Dispatch, if the snapshot is complete under the policy.
+        if (sync.update(field, now)) {
+            publishFrame();
+        }
+    }
+
+    // Publish the snapshot, unless the filters found nothing significant in it, in which case the
+    // map is never built.
+    private void publishFrame() {
+        if (significant) {
+            HashMap<String, Object> values = frame.toMap();
+            values.put(MultispreadConstants.TIMESTAMP_TAG, sync.getSnapshotTime());
+            values.put(MultispreadConstants.FIELD_TIMESTAMPS_TAG, sync.timestampsToMap());
+            publishData(MultispreadConstants.SENSORS_TAG, values);
+        }
+
+        sync.published();
+        significant = false;
+    }
+
+    // Decode the load cells with the current calibration, first applying any pending tare or zero,
+    // which are taken from the readings of this packet.
+    private void decodeLoadCells(final byte[] data) {
+        frame.decodeLoadCells(data, calibration);
+
+        int action = pendingCalibration;
+        pendingCalibration = CAL_NONE;
+        if (action != CAL_NONE && frame.has(MultispreadFrame.HAS_LOAD_CELL)) {
+            if (action == CAL_ZERO) {
+                setCalibration(calibration.zeroed(frame));
+            } else {
+                setCalibration(calibration.withTare(frame.getLoadTotal() + calibration.getTare()));
+            }
+            frame.decodeLoadCells(data, calibration);
+        }
+
+        if (calibrationChanged) {
+            calibrationChanged = false;
+            publishData(MultispreadConstants.LOAD_CELL_CALIBRATION_TAG, calibration.toMap());
+        }
+    }
+
+    // Merge the ports and tare of a table from the app into the calibration. Settings a port
+    // leaves out are kept.
+    private void updateCalibrationTable(Map table) {
+        LoadCellCalibration updated = calibration;
+
+        for (Object entry : table.entrySet()) {
+            Map.Entry e = (Map.Entry) entry;
+            String key = e.getKey().toString();
+
+            if (LoadCellCalibration.TARE_TAG.equals(key)) {
+                updated = updated.withTare(asInt(String.valueOf(e.getValue())));
+                continue;
+            }
+
+            int port = portOf(key);
+            if (port < 0 || !(e.getValue() instanceof Map)) {
+                continue;
+            }
+
+            Map cell = (Map) e.getValue();
+            Object offset = cell.get(LoadCellCalibration.OFFSET_TAG);
+            Object gain = cell.get(LoadCellCalibration.GAIN_TAG);
+            Object enabled = cell.get(LoadCellCalibration.ENABLED_TAG);
+
+            updated = updated.withPort(port,
+                                       (offset != null) ? asInt(offset.toString()) : updated.getOffset(port),
+                                       (gain != null) ? asDouble(gain.toString()) : updated.getGain(port),
+                                       (enabled != null) ? Boolean.parseBoolean(enabled.toString())
+                                                         : updated.isEnabled(port));
+        }
+
+        setCalibration(updated);
+    }
+
+    // Swap in a new calibration, and save it.
+    private void setCalibration(LoadCellCalibration updated) {
+        calibration = updated;
+        calibrationChanged = true;
+
+        if (store != null && address != null) {
+            store.save(address, updated.encode());
+        }
+    }
+
+    // The port of a key such as "port3", or -1.
+    private static int portOf(String key) {
+        try {
+            int port = Integer.parseInt(key.startsWith("port") ? key.substring(4) : key);
+            return (port >= 0 && port < MultispreadFrame.MAX_PORTS) ? port : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private void recordLoadCells(long now) {
+        loadHistory.add(now, frame.getLoadTotal());
+
+        for (int i = 0; i < frame.getPortCount(); ++i) {
+            int port = frame.getPort(i);
+            SampleRing ring = cellHistory[port];
+            if (ring == null) {
+                ring = getHistory().channel("port" + port);
+                cellHistory[port] = ring;
+            }
+            ring.add(now, frame.getCell(port));
+        }
+    }
+
+    private void decodeResponseData(final byte[] data) {
+        HashMap<String, Object> responseValues = MultispreadResponseDecoder.decode(data);
+
+        if (responseValues != null) {
+            publishData(MultispreadConstants.COMMAND_RESPONSE_TAG, responseValues);
+        }
+    }
+
+    private int handleToField(int handle) {
+        switch (handle) {
+            case MultispreadConstants.HANDLE_SPEED:
+                return FIELD_SPEED;
+
+            case MultispreadConstants.HANDLE_DOOR_OPENING:
+                return FIELD_DOOR;
+
+            case MultispreadConstants.HANDLE_LOAD_CELL:
+                return FIELD_LC;
+        }
+
+        return FIELD_NONE;
+    }
+
+    /**
+     * Convert an int16 into an unsigned byte array.
+     */
+    private byte[] unsignedBytesFromInt(int value) {
+        byte[] data = new byte[2];
+
+        data[0] = (byte) ((value & 0xff00) >> 8);
+        data[1] = (byte) ((value & 0xff));
+
+        return data;
+    }
+
+    /**
+     * Convert a pair of bytes into an unsigned byte array.
+     */
+    private byte[] unsignedBytesFromBytePair(byte value1, byte value2) {
+        byte[] data = new byte[2];
+
+        data[0] = value1;
+        data[1] = value2;
+
+        return data;
+    }
+
+    private int asInt(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (Throwable ex) {
+            // Numbers from JavaScript may arrive as doubles.
+            return (int) asDouble(value);
+        }
+    }
+
+    private double asDouble(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (Throwable ex) {
+            return 0;
+        }
+    }
+}
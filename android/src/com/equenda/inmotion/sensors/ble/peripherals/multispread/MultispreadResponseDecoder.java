@@ -0,0 +1,134 @@
+package com.equenda.inmotion.sensors.ble.peripherals.multispread;
+
+import com.equenda.inmotion.sensors.ble.peripherals.CharacteristicLayout;
+
+import java.util.HashMap;
+
+/**
+ * Decodes responses to Multispread controller commands.
+ * <p>
+ * This works on the raw characteristic value only, and has no Android dependencies, so that it
+ * can be exercised and benchmarked on a plain JVM. The byte layouts are in
+ * {@link MultispreadLayouts}.
+ *
+ * @author Jason Waring
+ */
+public final class MultispreadResponseDecoder {
+
+    private MultispreadResponseDecoder() {
+    }
+
+    /**
+     * Decode a command response.
+     *
+     * @param data The characteristic value.
+     * @return The response values, or null if the response is not recognised.
+     */
+    public static HashMap<String, Object> decode(byte[] data) {
+        if (data.length == 0) {
+            return null;
+        }
+
+        HashMap<String, Object> responseValues = new HashMap<String, Object>();
+
+        switch (data[0] & 0xFF) {
+            case MultispreadConstants.CMD_CONTEXT_CALIBRATE:
+                if (data.length == 2) {
+                    responseValues.put("context", "door-calibration-status");
+                    responseValues.put("status", asCalibrationStatus(MultispreadLayouts.COMMAND_STATUS.decodeInt(0, data)));
+                }
+                break;
+
+            case MultispreadConstants.CMD_CONTEXT_DRIVE_WHEEL:
+                if (data.length == 2) {
+                    responseValues.put("context", "drive-wheel-status");
+                    responseValues.put("status", asDriveWheelStatus(MultispreadLayouts.COMMAND_STATUS.decodeInt(0, data)));
+                }
+                break;
+
+            case MultispreadConstants.CMD_CONTEXT_DOOR_DIAG:
+                /*
+                 0 - low battery in last 10 seconds (Linak spec 12v +/- 20% - set our threshold at 10.5V)
+                 1- drive off target (drive position not at target)
+                 2 - drive movement fail (drive position not at target at end of timeout)
+                 3 - drive extending (engaging)
+                 4 - drive retracting (disengaging)
+                 5 - drive extended (engaged)
+                 6 - drive retracted (disengaged)
+                 */
+                if (data.length == 7) {
+                    responseValues.put("context", "door-diagnostics");
+                    MultispreadLayouts.DOOR_DIAGNOSTICS.decode(data, responseValues);
+                    responseValues.put("status", decodeStatusBits(data));
+                }
+                break;
+
+            case MultispreadConstants.CMD_CONTEXT_DW_DIAG:
+                /*
+                 0 - low battery in last 10 seconds (Linak spec 12v +/- 20% - set our threshold at 10.5V)
+                 1 - door off target (door position not at target)
+                 2 - door movement fail (door position not at target at end of timeout)
+                 3 - door extending (close)
+                 4 - door retracting (open)
+                 5 - door fully extended (closed)
+                 6 - door fully retracted (open)
+                 */
+                if (data.length == 7) {
+                    responseValues.put("context", "drive-wheel-diagnostics");
+                    MultispreadLayouts.DRIVE_WHEEL_DIAGNOSTICS.decode(data, responseValues);
+                    responseValues.put("status", decodeStatusBits(data));
+                }
+                break;
+        }
+
+        return (responseValues.size() > 0) ? responseValues : null;
+    }
+
+    private static String asCalibrationStatus(int value) {
+        switch (value) {
+            case MultispreadConstants.CMD_CAL_RESPONSE_SUCCESS:
+                return "completed";
+
+            case MultispreadConstants.CMD_CAL_RESPONSE_TIMEOUT:
+                return "timeout";
+
+            case MultispreadConstants.CMD_CAL_RESPONSE_CANCEL:
+                return "cancelled";
+        }
+        return "unknown";
+    }
+
+
+    private static String asDriveWheelStatus(int value) {
+        switch (value) {
+            case MultispreadConstants.CMD_DW_RESPONSE_ENGAGED:
+                return "engaged";
+
+            case MultispreadConstants.CMD_DW_RESPONSE_ENGAGING:
+                return "engaging";
+
+            case MultispreadConstants.CMD_DW_RESPONSE_DISENGAGED:
+                return "disengaged";
+
+            case MultispreadConstants.CMD_DW_RESPONSE_DISENGAGING:
+                return "disengaging";
+
+            case MultispreadConstants.CMD_DW_RESPONSE_TIMEOUT:
+                return "timeout";
+        }
+
+        return "unknown";
+    }
+
+    // The diagnostics status bits, reported as "true" or "false" by name.
+    private static HashMap<String, String> decodeStatusBits(byte[] data) {
+        CharacteristicLayout layout = MultispreadLayouts.DIAGNOSTICS_STATUS;
+        HashMap<String, String> statusBits = new HashMap<String, String>();
+
+        for (int i = 0; i < layout.size(); i++) {
+            statusBits.put(layout.getName(i), (layout.decodeInt(i, data) != 0) ? "true" : "false");
+        }
+
+        return statusBits;
+    }
+}